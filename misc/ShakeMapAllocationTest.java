@@ -0,0 +1,219 @@
+import com.bbn.openmap.omGraphics.OMGraphicList;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import org.reakteu.eewd.Application;
+import org.reakteu.eewd.data.EventData;
+import org.reakteu.eewd.data.Shaking;
+import org.reakteu.eewd.data.ShakingCalculator;
+import org.reakteu.eewd.data.WorkerPool;
+import org.reakteu.eewd.layer.ShakeMapLayer;
+
+/**
+ * Allocation test of the shake map computation: updates of one event are
+ * computed by the shaking calculator for a small and a large synthetic grid
+ * over the Swiss region, configured by eewd.properties, once for a point
+ * source and once for a rupture line. The heap memory allocated per update is
+ * measured per thread
+ * - inside the work items of the worker pools, i.e. the distance and shake
+ * map tasks processing the grid points, and
+ * - by all threads during the whole update, including the preparation of the
+ * models and the shake map image.
+ * The test fails if either grows with the grid size by more than the stated
+ * bytes per additional grid point. The work items are expected not to
+ * allocate anything, the total includes the scheduling of the chunks and the
+ * copy of the image rows which grow with the number of chunks and image rows
+ * only.
+ *
+ * Usage, after building the project (ant jar), from the project directory:
+ * javac -cp dist/eewd.jar -d /tmp misc/ShakeMapAllocationTest.java
+ * java -Djava.awt.headless=true -cp dist/eewd.jar:/tmp ShakeMapAllocationTest
+ * The exit code is 1 if the test fails.
+ */
+public class ShakeMapAllocationTest {
+
+    private static final int SmallGrid = 20000;
+    private static final int LargeGrid = 320000;
+    private static final int WarmUp = 10;
+    private static final int Rounds = 5;
+    // maximum growth of the allocated memory per additional grid point
+    // (bytes), a single object per grid point exceeds both limits
+    private static final double MaxTaskGrowth = 0.01;
+    private static final double MaxUpdateGrowth = 1.0;
+    private static final double[] Amplifications = {0.47, 0.86, 0.94, 0.96, 1.03, 1.11};
+
+    private static final com.sun.management.ThreadMXBean ThreadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        if (!WorkerPool.setAllocationCounter(true)) {
+            System.out.println("allocated memory not measurable by this Java runtime");
+            System.exit(1);
+        }
+        if (!checkCounter()) {
+            System.out.println("allocation counter of the worker pool does not "
+                               + "count the memory allocated by work items");
+            System.exit(1);
+        }
+        Properties props = new Properties();
+        FileInputStream in = new FileInputStream("eewd.properties");
+        props.load(in);
+        in.close();
+        // the computation must not be degraded during the measurement
+        props.setProperty("processing.degrade", "false");
+
+        boolean failed = false;
+        for (boolean line : new boolean[]{false, true}) {
+            long[] small = measure(props, SmallGrid, line);
+            long[] large = measure(props, LargeGrid, line);
+            double taskGrowth = (double) (large[0] - small[0]) / (LargeGrid - SmallGrid);
+            double updateGrowth = (double) (large[1] - small[1]) / (LargeGrid - SmallGrid);
+            boolean ok = taskGrowth <= MaxTaskGrowth && updateGrowth <= MaxUpdateGrowth;
+            failed |= !ok;
+            System.out.println(String.format(
+                    "%s source: per update %d/%d bytes in work items and %d/%d "
+                    + "bytes in total for %d/%d grid points, growth per grid "
+                    + "point %.4f bytes (max %.2f) in work items, %.4f bytes "
+                    + "(max %.2f) in total, max per thread %d bytes: %s",
+                    line ? "line" : "point", small[0], large[0], small[1],
+                    large[1], SmallGrid, LargeGrid, taskGrowth, MaxTaskGrowth,
+                    updateGrowth, MaxUpdateGrowth, large[2],
+                    ok ? "OK" : "FAILED"));
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Computes event updates for a grid of the given size
+     *
+     * @return minimum memory allocated per update in the work items, in total
+     * and by a single thread (bytes)
+     */
+    private static long[] measure(Properties props, int size, boolean line)
+            throws IOException, InterruptedException {
+        File file = File.createTempFile("shakemap", ".csv");
+        file.deleteOnExit();
+        writeGrid(file, size);
+        Properties p = new Properties();
+        p.putAll(props);
+        p.setProperty(Application.PropertySMFile, file.getPath());
+        Application.createHeadless(p);
+
+        // the image is updated at the end of each shake map computation
+        final Semaphore done = new Semaphore(0);
+        ShakeMapLayer layer = new ShakeMapLayer() {
+            @Override
+            public synchronized void updateImage(Set<Shaking.Type> valid) {
+                super.updateImage(valid);
+                done.release();
+            }
+
+            @Override
+            public synchronized OMGraphicList prepare() {
+                // no map projection without user interface
+                return null;
+            }
+        };
+        ShakingCalculator calculator = new ShakingCalculator(
+                new ArrayList(), new HashMap(), layer);
+
+        long[] result = {Long.MAX_VALUE, Long.MAX_VALUE, 0};
+        for (int round = 0; round < WarmUp + Rounds; ++round) {
+            // updates change the magnitude and location, the distances are
+            // recomputed
+            EventData event = new EventData(
+                    "test", System.currentTimeMillis(), 46.8 + 0.01 * round,
+                    8.2 + 0.01 * round, 8000, 5.0 + 0.1 * round,
+                    line ? 40.0f : null, line ? 30.0f : null);
+            Map<Long, Long> before = threadAllocations();
+            long task = WorkerPool.getAllocatedBytes();
+            calculator.processEvent(event);
+            done.acquire();
+            task = WorkerPool.getAllocatedBytes() - task;
+            long total = 0;
+            long max = 0;
+            for (Map.Entry<Long, Long> e : threadAllocations().entrySet()) {
+                Long b = before.get(e.getKey());
+                long a = e.getValue() - (b == null ? 0 : b);
+                total += a;
+                max = Math.max(max, a);
+            }
+            if (round >= WarmUp) {
+                result[0] = Math.min(result[0], task);
+                result[1] = Math.min(result[1], total);
+                result[2] = Math.max(result[2], max);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Runs a work item allocating one array per item
+     *
+     * @return true if the allocation counter includes the arrays
+     */
+    private static boolean checkCounter() {
+        final int items = 4096;
+        final double[][] arrays = new double[items][];
+        WorkerPool pool = new WorkerPool(WorkerPool.TypeForkJoin, 2, 256);
+        long bytes = WorkerPool.getAllocatedBytes();
+        pool.run("allocation counter check", items, new WorkerPool.Task() {
+            @Override
+            public void process(int from, int to) {
+                for (int i = from; i < to; ++i) {
+                    arrays[i] = new double[16];
+                }
+            }
+        });
+        bytes = WorkerPool.getAllocatedBytes() - bytes;
+        pool.shutdown();
+        return bytes >= items * 16 * 8;
+    }
+
+    /**
+     * @return memory allocated since the start of each live thread (bytes)
+     */
+    private static Map<Long, Long> threadAllocations() {
+        long[] ids = ThreadBean.getAllThreadIds();
+        long[] bytes = ThreadBean.getThreadAllocatedBytes(ids);
+        Map<Long, Long> result = new HashMap();
+        for (int i = 0; i < ids.length; ++i) {
+            if (bytes[i] >= 0) {
+                result.put(ids[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a regular grid of about the given size over the Swiss region in
+     * the format of the shake map file: longitude, latitude, elevation and
+     * amplification, ordered by longitude
+     */
+    private static void writeGrid(File file, int size) throws IOException {
+        int columns = (int) Math.round(Math.sqrt(size * 2.0));
+        int rows = size / columns;
+        double dLon = 4.6 / columns;
+        double dLat = 2.0 / rows;
+        Random random = new Random(42);
+        PrintWriter out = new PrintWriter(file);
+        out.println("Lon,Lat,Elev,ampli");
+        for (int c = 0; c < columns; ++c) {
+            for (int r = 0; r < rows; ++r) {
+                out.println(String.format("%.6f,%.6f,0,%.2f", 5.9 + c * dLon,
+                                          45.8 + r * dLat,
+                                          Amplifications[random.nextInt(Amplifications.length)]));
+            }
+        }
+        out.close();
+    }
+}
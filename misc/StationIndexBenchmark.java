@@ -0,0 +1,85 @@
+import java.util.Random;
+import org.reakteu.eewd.data.StationIndex;
+import org.reakteu.eewd.utils.GeoCalc;
+
+/**
+ * Benchmark of the nearest station search used for the onsite estimates:
+ * 10000 targets and 2000 stations randomly distributed over the Swiss region,
+ * spatial index compared to a linear search over all stations.
+ *
+ * Usage, after building the project:
+ * javac -cp build/classes -d /tmp misc/StationIndexBenchmark.java
+ * java -cp build/classes:/tmp StationIndexBenchmark [radiusKm]
+ */
+public class StationIndexBenchmark {
+
+    private static final int Targets = 10000;
+    private static final int Stations = 2000;
+    private static final int Rounds = 20;
+
+    public static void main(String[] args) {
+        double radiusM = (args.length > 0 ? Double.parseDouble(args[0]) : 5) * 1000;
+        Random random = new Random(42);
+        double[] sLat = new double[Stations];
+        double[] sLon = new double[Stations];
+        for (int i = 0; i < Stations; ++i) {
+            sLat[i] = 45.5 + random.nextDouble() * 2.5;
+            sLon[i] = 5.5 + random.nextDouble() * 5.0;
+        }
+        double[] tLat = new double[Targets];
+        double[] tLon = new double[Targets];
+        for (int i = 0; i < Targets; ++i) {
+            tLat[i] = 45.5 + random.nextDouble() * 2.5;
+            tLon[i] = 5.5 + random.nextDouble() * 5.0;
+        }
+
+        long start = System.nanoTime();
+        StationIndex index = new StationIndex(sLat, sLon, Stations, radiusM);
+        long build = System.nanoTime() - start;
+
+        int[] indexed = new int[Targets];
+        int[] linear = new int[Targets];
+        long indexNs = Long.MAX_VALUE;
+        long linearNs = Long.MAX_VALUE;
+        for (int round = 0; round < Rounds; ++round) {
+            start = System.nanoTime();
+            for (int i = 0; i < Targets; ++i) {
+                indexed[i] = index.nearest(tLat[i], tLon[i]);
+            }
+            indexNs = Math.min(indexNs, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < Targets; ++i) {
+                linear[i] = linearNearest(sLat, sLon, tLat[i], tLon[i], radiusM);
+            }
+            linearNs = Math.min(linearNs, System.nanoTime() - start);
+        }
+
+        int found = 0;
+        int mismatches = 0;
+        for (int i = 0; i < Targets; ++i) {
+            found += indexed[i] >= 0 ? 1 : 0;
+            mismatches += indexed[i] != linear[i] ? 1 : 0;
+        }
+        System.out.println(String.format(
+                "%d targets, %d stations, radius %.1fkm: index built in %.3fms, "
+                + "index %.3fms, linear %.3fms, speedup %.1f, %d targets with "
+                + "station, %d mismatches",
+                Targets, Stations, radiusM / 1000, build / 1e6, indexNs / 1e6,
+                linearNs / 1e6, (double) linearNs / indexNs, found, mismatches));
+    }
+
+    private static int linearNearest(double[] sLat, double[] sLon,
+                                     double lat, double lon, double radiusM) {
+        int best = -1;
+        double bestDistance = radiusM;
+        for (int i = 0; i < sLat.length; ++i) {
+            double d = GeoCalc.Haversine(lat, lon, sLat[i], sLon[i]);
+            if (d < bestDistance || d == bestDistance && best < 0) {
+                best = i;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+}
@@ -48,11 +48,13 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import javax.swing.JEditorPane;
 import javax.swing.JMenu;
 import javax.swing.JMenuItem;
@@ -105,6 +107,8 @@ public class Application implements QMLListener, ActionListener {
     public static final String PropertySMMinValue = PropertySM + ".minValue";
     public static final String PropertySMMaxValue = PropertySM + ".maxValue";
     public static final String PropertySMLogScale = PropertySM + ".logScale";
+    public static final String PropertySMProgressiveStep = PropertySM + ".progressiveStep";
+    public static final String PropertySMParameters = PropertySM + ".parameters";
 
     // event
     public static final String PropertyVP = "vp";
@@ -131,6 +135,32 @@ public class Application implements QMLListener, ActionListener {
 
     public static final String PropertyControlPeriod = "controlPeriod";
 
+    public static final String PropertyProcessing = "processing";
+    public static final String PropertyProcessingPool = PropertyProcessing + ".pool";
+    public static final String PropertyProcessingThreads = PropertyProcessing + ".threads";
+    public static final String PropertyProcessingChunkSize = PropertyProcessing + ".chunkSize";
+    public static final String PropertyProcessingProfileStep = PropertyProcessing + ".profileStep";
+    public static final String PropertyProcessingDegrade = PropertyProcessing + ".degrade";
+    public static final String PropertyProcessingUpdateInterval = PropertyProcessing + ".updateInterval";
+    public static final String PropertyProcessingTargetBudget = PropertyProcessing + ".targetBudget";
+
+    // attenuation model cache
+    public static final String PropertyModelCache = "modelCache";
+    public static final String PropertyModelCacheEnabled = PropertyModelCache + ".enabled";
+    public static final String PropertyModelCacheSize = PropertyModelCache + ".size";
+    public static final String PropertyModelCacheMagnitudeStep = PropertyModelCache + ".magnitudeStep";
+    public static final String PropertyModelCacheLocationStep = PropertyModelCache + ".locationStep";
+    public static final String PropertyModelCacheDepthStep = PropertyModelCache + ".depthStep";
+    public static final String PropertyModelCacheDistanceStep = PropertyModelCache + ".distanceStep";
+    public static final String PropertySurrogate = "surrogate";
+    public static final String PropertySurrogateEnabled = PropertySurrogate + ".enabled";
+    public static final String PropertySurrogateMaxError = PropertySurrogate + ".maxError";
+    public static final String PropertySurrogateMinMagnitude = PropertySurrogate + ".minMagnitude";
+    public static final String PropertySurrogateMaxMagnitude = PropertySurrogate + ".maxMagnitude";
+    public static final String PropertySurrogateMinDistance = PropertySurrogate + ".minDistance";
+    public static final String PropertySurrogateMaxDistance = PropertySurrogate + ".maxDistance";
+    public static final String PropertySurrogateMaxNodes = PropertySurrogate + ".maxNodes";
+
     // spectrum plot
     public static final String PropertySpec = "spectrum";
     public static final String PropertySpecPeriods = PropertySpec + ".periods";
@@ -138,6 +168,7 @@ public class Application implements QMLListener, ActionListener {
     public static final String PropertySpecParameter = PropertySpec + ".parameter";
     public static final String PropertySpecRef1 = PropertySpec + ".reference1";
     public static final String PropertySpecRef2 = PropertySpec + ".reference2";
+    public static final String PropertySpecEager = PropertySpec + ".eager";
 
     public static final String PropertyUseFrequencies = "useFrequencies";
     public static final String PropertyRIsHypocentral = "rIsHypocentral";
@@ -145,6 +176,7 @@ public class Application implements QMLListener, ActionListener {
     public static final String PropertyRadiusOfInfluence = "radiusOfInfluence";
     public static final String PropertyStationDisplacementThreshold = "stationDisplacementThreshold";
     public static final String PropertyStationTauCThreshold = "stationTauCThreshold";
+    public static final String PropertyOnsite = "onsite";
 
     // messaging
     public static final String PropertyConHost = "connection.host";
@@ -191,6 +223,7 @@ public class Application implements QMLListener, ActionListener {
     private boolean useFrequencies = false;
     private Shaking.Type spectrumParameter = Shaking.Type.PSA;
     private Shaking.Type shakeMapParameter = Shaking.Type.PGA;
+    private Shaking.Type[] shakeMapParameters = Shaking.Type.values();
 
     private String title = null;
 
@@ -243,7 +276,7 @@ public class Application implements QMLListener, ActionListener {
         messaging = new Messaging();
 
         // read targets and stations // read targets and stations
-        stations = new HashMap();
+        stations = new HashMap<>();
         for (POI station : readPOIs(properties.getProperty(PropertyStationFile,
                                                            "data/stations.csv"))) {
             stations.put(station.name, station);
@@ -251,6 +284,59 @@ public class Application implements QMLListener, ActionListener {
         targets = readPOIs(properties.getProperty(PropertyTargetFile,
                                                   "data/targets.csv"));
 
+        readParameters();
+
+        shakeMapLayer = new ShakeMapLayer();
+        shakeMapLayer.setName("Shake Map");
+
+        shakingCalculator = new ShakingCalculator(targets, stations, shakeMapLayer);
+        title = mapPropertyHandler.getProperties().getProperty("openmap.Title");
+
+        configureMapPanel(mapPropertyHandler);
+
+        // Schedule a job for the event-dispatching thread:
+        // creating and showing this application's GUI.
+        javax.swing.SwingUtilities.invokeLater(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        showInFrame();
+                    }
+                }
+        );
+
+        messaging.listen();
+    }
+
+    /**
+     * Creates an application without user interface, messaging, schedulers,
+     * targets and stations. Only the properties and the computation
+     * parameters derived from them are available, e.g. for running the
+     * shaking calculation of a shake map layer in the harnesses in misc/.
+     */
+    public static Application createHeadless(Properties props) {
+        return new Application(props, new ArrayList<POI>(), new HashMap<String, POI>());
+    }
+
+    private Application(Properties props, List<POI> targets,
+                        Map<String, POI> stations) {
+        instance = this;
+        properties = props;
+        eventArchive = null;
+        eventTimeScheduler = null;
+        eventFileScheduler = null;
+        eventCountdown = null;
+        messaging = null;
+        shakingCalculator = null;
+        this.targets = targets;
+        this.stations = stations;
+        readParameters();
+    }
+
+    /**
+     * Reads the spectrum and shake map parameters from the properties
+     */
+    private void readParameters() {
         controlPeriod = getProperty(PropertyControlPeriod, (Double) null);
         periods = getProperty(PropertySpecPeriods, new double[0]);
         useFrequencies = getProperty(PropertyUseFrequencies, false);
@@ -278,26 +364,19 @@ public class Application implements QMLListener, ActionListener {
             }
         }
 
-        shakeMapLayer = new ShakeMapLayer();
-        shakeMapLayer.setName("Shake Map");
-
-        shakingCalculator = new ShakingCalculator(targets, stations, shakeMapLayer);
-        title = mapPropertyHandler.getProperties().getProperty("openmap.Title");
-
-        configureMapPanel(mapPropertyHandler);
-
-        // Schedule a job for the event-dispatching thread:
-        // creating and showing this application's GUI.
-        javax.swing.SwingUtilities.invokeLater(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        showInFrame();
-                    }
+        // read shake map parameters computed in addition to the displayed one
+        param = properties.getProperty(Application.PropertySMParameters);
+        if (param != null) {
+            Set<Shaking.Type> types = EnumSet.of(shakeMapParameter);
+            for (String value : param.split(",")) {
+                try {
+                    types.add(Shaking.Type.valueOf(value.trim()));
+                } catch (IllegalArgumentException iae) {
+                    LOG.warn("invalid " + Application.PropertySMParameters + " value: " + value);
                 }
-        );
-
-        messaging.listen();
+            }
+            shakeMapParameters = types.toArray(new Shaking.Type[types.size()]);
+        }
     }
 
     public Double getControlPeriod() {
@@ -320,6 +399,14 @@ public class Application implements QMLListener, ActionListener {
         return shakeMapParameter;
     }
 
+    /**
+     * @return all shake map parameters to compute, includes the initially
+     * displayed shake map parameter
+     */
+    public Shaking.Type[] getShakeMapParameters() {
+        return shakeMapParameters;
+    }
+
     public static final Application getInstance() {
         return instance;
     }
@@ -461,11 +548,11 @@ public class Application implements QMLListener, ActionListener {
             logoLayer.setName("Logo");
             layerHandler.addLayer(logoLayer, 0);
 
-            if (!shakeMapLayer.getPoints().isEmpty()) {
+            if (!shakeMapLayer.getGrid().isEmpty()) {
                 layerHandler.addLayer(shakeMapLayer, 0);
             }
 
-            stationLayer = new StationLayer(stations);
+            stationLayer = new StationLayer(stations, shakeMapLayer);
             stationLayer.setName("Stations");
             layerHandler.addLayer(stationLayer, 0);
 
@@ -490,6 +577,15 @@ public class Application implements QMLListener, ActionListener {
         eventCountdown.setTarget(target);
     }
 
+    /**
+     * Updates the spectrum of a target computed on demand
+     */
+    public void updateSpectrum(POI target) {
+        if (shakingCalculator != null) {
+            shakingCalculator.updateSpectrum(target);
+        }
+    }
+
     protected void showInFrame() {
         openMapFrame = (OpenMapFrame) mapPanel.getMapHandler().get(OpenMapFrame.class);
 
@@ -573,7 +669,7 @@ public class Application implements QMLListener, ActionListener {
     }
 
     private List<POI> readPOIs(String fileName) {
-        List<POI> pois = new ArrayList();
+        List<POI> pois = new ArrayList<>();
         BufferedReader br;
         try {
             br = new BufferedReader(new FileReader(fileName));
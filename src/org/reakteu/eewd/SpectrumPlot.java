@@ -91,6 +91,10 @@ public class SpectrumPlot extends JPanel {
 
     public void setTarget(POI target) {
         this.target = target;
+        Application app = Application.getInstance();
+        if (app != null) {
+            app.updateSpectrum(target);
+        }
     }
 
     @Override
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.reakteu.eewd.Application;
+
+/**
+ * Latency budget of the computation of event updates. The work of an update
+ * is divided into tiers of decreasing priority: the target values used for
+ * alerting, the shake map, the spectra of all targets if computed eagerly and
+ * the stations. The targets are always computed completely, their latency
+ * budget is only reported. The lower tiers are degraded if they exceed the
+ * deadline given by the next expected update of the computed events: the
+ * shake map stops refining after the current pass and keeps the coarser
+ * passes displayed, the spectra and the stations are deferred. The deferred
+ * work is completed by a follow-up computation without deadline unless a
+ * newer update arrives first.
+ *
+ * The interval to the next update of an event is estimated from the arrival
+ * times of its previous updates, the configured update interval is used for
+ * the first update of an event. All methods are thread safe.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class ComputationBudget {
+
+    public enum Tier {
+
+        Targets("targets"),
+        ShakeMap("shake map"),
+        Spectra("spectra"),
+        Stations("stations");
+
+        private final String string;
+
+        private Tier(final String string) {
+            this.string = string;
+        }
+
+        @Override
+        public String toString() {
+            return string;
+        }
+    }
+
+    // weight of the latest interval in the interval estimate
+    private static final double Smoothing = 0.5;
+
+    private final boolean degrade;
+    private final long defaultIntervalNanos;
+    private final long targetBudgetNanos;
+
+    // arrival time of the last update and estimated update interval per
+    // event (nanoseconds)
+    private final Map<String, long[]> arrivals = new HashMap<>();
+
+    // deadline of the current computation, Long.MAX_VALUE if unlimited
+    private long deadline = Long.MAX_VALUE;
+
+    // latency of the tiers in the current computation, -1 if not computed
+    private final long[] latency = new long[Tier.values().length];
+    private final boolean[] degraded = new boolean[Tier.values().length];
+    private long tierStart = 0;
+
+    // statistics per tier: computations, total and maximum latency, degraded
+    // computations
+    private final long[][] statistics = new long[Tier.values().length][4];
+    private long targetsOverBudget = 0;
+
+    public ComputationBudget(boolean degrade, double defaultIntervalS,
+                             double targetBudgetS) {
+        this.degrade = degrade;
+        this.defaultIntervalNanos = (long) (defaultIntervalS * 1e9);
+        this.targetBudgetNanos = (long) (targetBudgetS * 1e9);
+    }
+
+    /**
+     * Creates the budget configured by the application properties
+     */
+    public static ComputationBudget create() {
+        Application app = Application.getInstance();
+        return new ComputationBudget(
+                app.getProperty(Application.PropertyProcessingDegrade, true),
+                app.getProperty(Application.PropertyProcessingUpdateInterval, 1.0),
+                app.getProperty(Application.PropertyProcessingTargetBudget, 0.1));
+    }
+
+    /**
+     * Records the arrival of an event update
+     */
+    public synchronized void arrived(String key) {
+        long now = System.nanoTime();
+        long[] a = arrivals.get(key);
+        if (a == null) {
+            arrivals.put(key, new long[]{now, defaultIntervalNanos});
+        } else {
+            long interval = now - a[0];
+            a[1] = (long) (Smoothing * interval + (1 - Smoothing) * a[1]);
+            a[0] = now;
+        }
+    }
+
+    public synchronized void remove(String key) {
+        arrivals.remove(key);
+    }
+
+    /**
+     * Starts the computation of event updates. The deadline is the earliest
+     * expected arrival of the next update of the given events.
+     *
+     * @param keys events with a new update, follow-up computations of
+     * deferred work are not limited if empty
+     */
+    public synchronized void start(List<String> keys) {
+        deadline = Long.MAX_VALUE;
+        if (degrade) {
+            for (String key : keys) {
+                long[] a = arrivals.get(key);
+                if (a != null) {
+                    deadline = Math.min(deadline, a[0] + a[1]);
+                }
+            }
+        }
+        for (int i = 0; i < latency.length; ++i) {
+            latency[i] = -1;
+            degraded[i] = false;
+        }
+    }
+
+    /**
+     * @return true if the deadline of the current computation is exceeded
+     * and lower tiers are to be degraded
+     */
+    public synchronized boolean isExpired() {
+        return System.nanoTime() > deadline;
+    }
+
+    public synchronized void startTier(Tier tier) {
+        tierStart = System.nanoTime();
+    }
+
+    /**
+     * Finishes the computation of a tier
+     *
+     * @param degraded true if the tier was degraded or deferred
+     */
+    public synchronized void finishTier(Tier tier, boolean degraded) {
+        long l = System.nanoTime() - tierStart;
+        int t = tier.ordinal();
+        latency[t] = l;
+        this.degraded[t] = degraded;
+        long[] s = statistics[t];
+        ++s[0];
+        s[1] += l;
+        s[2] = Math.max(s[2], l);
+        if (degraded) {
+            ++s[3];
+        }
+        if (tier == Tier.Targets && l > targetBudgetNanos) {
+            ++targetsOverBudget;
+        }
+    }
+
+    /**
+     * @return true if the target tier of the current computation exceeded its
+     * budget
+     */
+    public synchronized boolean isTargetBudgetExceeded() {
+        return latency[Tier.Targets.ordinal()] > targetBudgetNanos;
+    }
+
+    /**
+     * @return latency per tier of the current computation
+     */
+    public synchronized String getLatency() {
+        StringBuilder sb = new StringBuilder("latency per tier:");
+        for (Tier tier : Tier.values()) {
+            int t = tier.ordinal();
+            sb.append(' ').append(tier.toString()).append(' ');
+            if (latency[t] < 0) {
+                sb.append("-");
+            } else {
+                sb.append(String.format("%.3fs", latency[t] / 1e9));
+                if (degraded[t]) {
+                    sb.append(" (degraded)");
+                }
+            }
+            if (tier != Tier.Stations) {
+                sb.append(',');
+            }
+        }
+        if (deadline != Long.MAX_VALUE) {
+            sb.append(String.format(", deadline %+.3fs",
+                                    (deadline - System.nanoTime()) / 1e9));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return latency statistics per tier of all computations
+     */
+    public synchronized String getStatistics() {
+        StringBuilder sb = new StringBuilder("tier statistics:");
+        for (Tier tier : Tier.values()) {
+            long[] s = statistics[tier.ordinal()];
+            sb.append(String.format(" %s %d computations, avg %.3fs, max %.3fs, "
+                                    + "%d degraded;", tier.toString(), s[0],
+                                    s[0] == 0 ? 0 : s[1] / 1e9 / s[0], s[2] / 1e9,
+                                    s[3]));
+        }
+        sb.append(String.format(" targets over budget of %.3fs: %d",
+                                targetBudgetNanos / 1e9, targetsOverBudget));
+        return sb.toString();
+    }
+}
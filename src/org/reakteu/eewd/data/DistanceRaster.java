@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Source to site distances of a fixed set of points, computed once per event
+ * update and shared by all shaking parameters, spectral periods and models.
+ * The distance is the one returned by {@link EventContext#distance}, i.e. the
+ * distance to the rupture line if a rupture is available and to the
+ * hypocenter otherwise.
+ *
+ * The distances only depend on the source geometry. Updates changing e.g.
+ * the magnitude only reuse the previously computed values.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class DistanceRaster {
+
+    private static final Logger LOG = LogManager.getLogger(DistanceRaster.class);
+
+    private final String name;
+    private final double[] latitude;
+    private final double[] longitude;
+    private final double[] altitude;
+    private final int size;
+    private final double[] distance;
+    private EventContext event;
+
+    /**
+     * @param name name used in log messages
+     * @param latitude point latitudes (degree)
+     * @param longitude point longitudes (degree)
+     * @param altitude point elevations (meter)
+     * @param size number of points
+     */
+    public DistanceRaster(String name, double[] latitude, double[] longitude,
+                          double[] altitude, int size) {
+        this.name = name;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.altitude = altitude;
+        this.size = size;
+        this.distance = new double[size];
+        this.event = null;
+    }
+
+    /**
+     * Computes the distances for a new event update unless the source
+     * geometry is unchanged
+     *
+     * @param event source parameters
+     * @param pool worker pool used for the computation
+     * @return true if the distances are valid
+     */
+    public boolean update(final EventContext event, WorkerPool pool) {
+        if (this.event != null && this.event.sameGeometry(event)) {
+            LOG.debug(name + ": source geometry unchanged, reusing distances");
+            this.event = event;
+            return true;
+        }
+
+        this.event = null;
+        boolean success = pool.run(name + " distances", size, new WorkerPool.Task() {
+            @Override
+            public void process(int from, int to) {
+                for (int i = from; i < to; ++i) {
+                    distance[i] = event.distance(latitude[i], longitude[i], altitude[i]);
+                }
+            }
+        });
+        if (success) {
+            this.event = event;
+        }
+        return success;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return distance of each point to the source (meter)
+     */
+    public double[] getDistance() {
+        return distance;
+    }
+}
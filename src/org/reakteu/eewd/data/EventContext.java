@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import org.quakeml.xmlns.bedRt.x12.EventParameters;
+import org.reakteu.eewd.utils.GeoCalc;
+
+/**
+ * Source parameters shared by all target points of one shaking calculation.
+ * Terms depending on the source only, e.g. the length of one degree at the
+ * epicenter or the extremes of the rupture line, are computed once in the
+ * constructor.
+ *
+ * The distance calculation reproduces the results of the scalar attenuation
+ * implementations exactly. It operates on primitives only and does not
+ * allocate any objects.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class EventContext {
+
+    public final double magnitude;
+    public final double latitude;
+    public final double longitude;
+    public final double depth;
+    public final String amplificationType;
+    public final EventParameters eventParameters;
+    public final Float ruptureLength;
+    public final Float ruptureStrike;
+
+    // point source: length of one degree at the hypocenter
+    private final double pointScale;
+
+    // line source: rupture segment start and end point (lat/lon) and length
+    // of one degree at its start point
+    private final boolean line;
+    private final double segmentLat;
+    private final double segmentLon;
+    private final double segmentEndLat;
+    private final double segmentEndLon;
+    private final double segmentScale;
+
+    public EventContext(EventData event, String amplificationType) {
+        this(event.magnitude, event.latitude, event.longitude, event.depth,
+             amplificationType, event.eventParameters, event.ruptureLength,
+             event.ruptureStrike);
+    }
+
+    public EventContext(double magnitude, double latitude, double longitude,
+                        double depth, String amplificationType,
+                        EventParameters eventParameters, Float ruptureLength,
+                        Float ruptureStrike) {
+        this.magnitude = magnitude;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.depth = depth;
+        this.amplificationType = amplificationType;
+        this.eventParameters = eventParameters;
+        this.ruptureLength = ruptureLength;
+        this.ruptureStrike = ruptureStrike;
+
+        if (ruptureLength != null) {
+            double[] lExtremes = GeoCalc.CentroidToExtremes(
+                    ruptureStrike, ruptureLength, longitude, latitude, -depth);
+            line = true;
+            segmentLat = lExtremes[1];
+            segmentLon = lExtremes[0];
+            segmentEndLat = lExtremes[4];
+            segmentEndLon = lExtremes[3];
+            segmentScale = GeoCalc.DegreeScale(lExtremes[1], lExtremes[0]);
+            pointScale = 0;
+        } else {
+            line = false;
+            segmentLat = segmentLon = segmentEndLat = segmentEndLon = 0;
+            segmentScale = 0;
+            pointScale = GeoCalc.DegreeScale(latitude, longitude);
+        }
+    }
+
+    /**
+     * @return true if the distance calculation of the other event context
+     * yields the same results, i.e. the location, depth and rupture are equal
+     */
+    public boolean sameGeometry(EventContext other) {
+        return other != null && latitude == other.latitude
+               && longitude == other.longitude && depth == other.depth
+               && (ruptureLength == null ? other.ruptureLength == null
+                   : ruptureLength.equals(other.ruptureLength))
+               && (ruptureStrike == null ? other.ruptureStrike == null
+                   : ruptureStrike.equals(other.ruptureStrike));
+    }
+
+    /**
+     * Calculates the distance of a target to the hypocenter or, if a rupture
+     * length is available, to the rupture line.
+     *
+     * @param targetLat target latitude (degree)
+     * @param targetLon target longitude (degree)
+     * @param targetElevM target elevation (meter)
+     * @return distance in meter
+     */
+    public double distance(double targetLat, double targetLon, double targetElevM) {
+        if (line) {
+            double d = GeoCalc.DistanceFromSegmentDeg(
+                    segmentLat, segmentLon, segmentEndLat, segmentEndLon,
+                    targetLat, targetLon) * segmentScale;
+            return Math.sqrt(d * d + (depth + targetElevM) * (depth + targetElevM));
+        }
+        return GeoCalc.Distance3DDegToM(latitude, longitude, -depth, targetLat,
+                                        targetLon, targetElevM, pointScale);
+    }
+}
@@ -4,12 +4,14 @@
  */
 package org.reakteu.eewd.data;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
+import org.quakeml.xmlns.bedRt.x12.Amplitude;
 import org.quakeml.xmlns.bedRt.x12.Arrival;
 import org.quakeml.xmlns.bedRt.x12.Event;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
@@ -54,10 +56,24 @@ public class EventData {
     public final Float ruptureStrike;
     public final Float ruptureLength;
 
+    // peak displacement (m) and tauC (s) of the P-wave onset by station code
+    public final Map<String, Double> stationPd;
+    public final Map<String, Double> stationTauC;
+
     public EventParameters eventParameters = null;
 
     public EventData(String id, long time, double latitude,
                      double longitude, double depth, double magnitude) {
+        this(id, time, latitude, longitude, depth, magnitude, null, null);
+    }
+
+    /**
+     * @param ruptureLength length of the rupture line (km), may be null
+     * @param ruptureStrike strike of the rupture line (degree), may be null
+     */
+    public EventData(String id, long time, double latitude,
+                     double longitude, double depth, double magnitude,
+                     Float ruptureLength, Float ruptureStrike) {
         this.eventID = id;
         this.isFakeEvent = false;
         this.time = time;
@@ -68,8 +84,10 @@ public class EventData {
         this.depth = depth;
         this.magnitude = magnitude;
         this.likelihood = null;
-        this.ruptureStrike = null;
-        this.ruptureLength = null;
+        this.ruptureStrike = ruptureStrike;
+        this.ruptureLength = ruptureLength;
+        this.stationPd = new HashMap<>();
+        this.stationTauC = new HashMap<>();
     }
 
     public EventData(EventParameters eventParameters, long offset,
@@ -172,6 +190,32 @@ public class EventData {
         }
         ruptureLength = tmplength;
 
+        // station amplitudes, the maximum is used if a station reports
+        // multiple values
+        stationPd = new HashMap<>();
+        stationTauC = new HashMap<>();
+        for (Amplitude a : eventParameters.getAmplitudeArray()) {
+            if (a.getTypeArray().length != 1 || a.getWaveformIDArray().length != 1
+                || a.getGenericAmplitudeArray().length != 1
+                || a.getGenericAmplitudeArray(0).getValueArray().length != 1) {
+                continue;
+            }
+            Map<String, Double> values;
+            if ("Pd".equals(a.getTypeArray(0))) {
+                values = stationPd;
+            } else if ("TauC".equals(a.getTypeArray(0))) {
+                values = stationTauC;
+            } else {
+                continue;
+            }
+            String code = a.getWaveformIDArray(0).getStationCode();
+            double value = a.getGenericAmplitudeArray(0).getValueArray(0);
+            Double previous = values.get(code);
+            if (previous == null || value > previous) {
+                values.put(code, value);
+            }
+        }
+
         // station information
         if (stations == null || stations.isEmpty()) {
             return;
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Latest-wins mailbox with one slot per event. A new update replaces a
+ * pending update of the same event, so only the most recent update of each
+ * event is processed. Updates of different events never replace each other.
+ *
+ * Events are taken in the order their first pending update arrived. An event
+ * receiving a new update after it has been taken is queued behind all other
+ * pending events, so a frequently updated event can not starve the others.
+ *
+ * The number of pending events is bounded. If the mailbox is full, the
+ * pending event waiting the longest is evicted.
+ *
+ * Publishing does not block and may be called from multiple threads. Only a
+ * single consumer thread may take updates.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class EventMailbox {
+
+    private static final Logger LOG = LogManager.getLogger(EventMailbox.class);
+
+    public static final int DefaultCapacity = 32;
+
+    private final int capacity;
+    // latest pending update per event ID
+    private final Map<String, EventData> slots;
+    // event IDs with a pending update in order of arrival
+    private final Queue<String> order;
+    // one permit per queued event ID, may exceed the queue size after an
+    // eviction
+    private final Semaphore available;
+    private final AtomicInteger depth;
+    private final AtomicLong published;
+    private final AtomicLong dropped;
+    private final AtomicLong evicted;
+
+    public EventMailbox(int capacity) {
+        this.capacity = capacity > 0 ? capacity : DefaultCapacity;
+        slots = new ConcurrentHashMap<>();
+        order = new ConcurrentLinkedQueue<>();
+        available = new Semaphore(0);
+        depth = new AtomicInteger();
+        published = new AtomicLong();
+        dropped = new AtomicLong();
+        evicted = new AtomicLong();
+    }
+
+    private static String key(EventData event) {
+        return event.eventID == null ? "" : event.eventID;
+    }
+
+    /**
+     * Publishes an event update, replacing a pending update of the same
+     * event
+     */
+    public void put(EventData event) {
+        published.incrementAndGet();
+        String key = key(event);
+        if (slots.put(key, event) != null) {
+            // the replaced update is never processed
+            dropped.incrementAndGet();
+            return;
+        }
+        enqueue(key);
+    }
+
+    /**
+     * Publishes an event update unless an update of the same event is
+     * already pending, e.g. to requeue an update whose processing was
+     * aborted
+     *
+     * @return true if the update was added
+     */
+    public boolean putIfAbsent(EventData event) {
+        String key = key(event);
+        if (slots.putIfAbsent(key, event) != null) {
+            return false;
+        }
+        published.incrementAndGet();
+        enqueue(key);
+        return true;
+    }
+
+    private void enqueue(String key) {
+        if (depth.incrementAndGet() > capacity) {
+            // evict the event waiting the longest
+            String oldest = order.poll();
+            if (oldest != null && slots.remove(oldest) != null) {
+                depth.decrementAndGet();
+                evicted.incrementAndGet();
+                LOG.warn("event mailbox full, evicted pending update of event "
+                         + oldest);
+            }
+        }
+        order.offer(key);
+        available.release();
+    }
+
+    /**
+     * Waits for and removes the next pending event update
+     *
+     * @return the most recent update of the next event
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public EventData take() throws InterruptedException {
+        while (true) {
+            available.acquire();
+            String key = order.poll();
+            if (key == null) {
+                // permit of an evicted event
+                continue;
+            }
+            EventData event = slots.remove(key);
+            if (event != null) {
+                depth.decrementAndGet();
+                return event;
+            }
+        }
+    }
+
+    /**
+     * Waits for the next pending event update and removes it together with
+     * the updates of all other events pending at this time
+     *
+     * @return the most recent update of each pending event in the order of
+     * arrival
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<EventData> takeAll() throws InterruptedException {
+        List<EventData> events = new ArrayList<>();
+        events.add(take());
+        while (available.tryAcquire()) {
+            String key = order.poll();
+            if (key == null) {
+                continue;
+            }
+            EventData event = slots.remove(key);
+            if (event != null) {
+                depth.decrementAndGet();
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @return number of events with a pending update
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return total number of published updates
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return number of updates replaced by a newer update of the same event
+     * before being processed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of pending updates evicted because the mailbox was full
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+}
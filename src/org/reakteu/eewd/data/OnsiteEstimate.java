@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reakteu.eewd.Application;
+
+/**
+ * PGA and PGV derived from the peak displacement (Pd) of the P-wave onset
+ * measured at the triggered stations of an event. Points within the radius of
+ * influence of such a station use the value of the nearest station instead of
+ * the attenuation model.
+ *
+ * The shaking is derived by a log-linear relation
+ * {@code log10(Y) = a * log10(Pd) + b} with Y and Pd in SI units and a
+ * standard deviation sigma of log10(Y), configured per parameter by the
+ * properties {@code onsite.<PGA|PGV>.a}, {@code .b} and {@code .sigma}. Only
+ * stations with a Pd and, if available, a tauC above the configured
+ * thresholds are used.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class OnsiteEstimate {
+
+    private static final Logger LOG = LogManager.getLogger(OnsiteEstimate.class);
+
+    private static final Shaking.Type[] Types = {Shaking.Type.PGA, Shaking.Type.PGV};
+
+    private final StationIndex index;
+    private final String[] names;
+    // median and percentiles per parameter ordinal and station, null if no
+    // relation is configured for the parameter
+    private final double[][] median;
+    private final double[][] p16;
+    private final double[][] p84;
+
+    private OnsiteEstimate(StationIndex index, String[] names, double[][] median,
+                           double[][] p16, double[][] p84) {
+        this.index = index;
+        this.names = names;
+        this.median = median;
+        this.p16 = p16;
+        this.p84 = p84;
+    }
+
+    /**
+     * Creates the onsite estimate of an event
+     *
+     * @param event event data containing the station amplitudes
+     * @param stations configured stations by station code
+     * @return onsite estimate or null if no relation is configured or no
+     * station exceeds the thresholds
+     */
+    public static OnsiteEstimate create(EventData event, Map<String, POI> stations) {
+        if (event.stationPd.isEmpty() || stations == null) {
+            return null;
+        }
+
+        Application app = Application.getInstance();
+        double radiusM = app.getProperty(Application.PropertyRadiusOfInfluence, 0.0) * 1000;
+        double pdThreshold = app.getProperty(
+                Application.PropertyStationDisplacementThreshold, 0.0);
+        double tauCThreshold = app.getProperty(
+                Application.PropertyStationTauCThreshold, 0.0);
+        if (radiusM <= 0) {
+            return null;
+        }
+
+        // relation coefficients a, b and sigma per parameter
+        double[][] relations = new double[Shaking.Type.values().length][];
+        boolean configured = false;
+        for (Shaking.Type type : Types) {
+            String prefix = Application.PropertyOnsite + "." + type.toString();
+            Double a = app.getProperty(prefix + ".a", (Double) null);
+            Double b = app.getProperty(prefix + ".b", (Double) null);
+            if (a != null && b != null) {
+                relations[type.ordinal()] = new double[]{
+                    a, b, app.getProperty(prefix + ".sigma", 0.0)};
+                configured = true;
+            }
+        }
+        if (!configured) {
+            return null;
+        }
+
+        List<POI> used = new ArrayList<>();
+        List<Double> pds = new ArrayList<>();
+        for (Map.Entry<String, Double> e : event.stationPd.entrySet()) {
+            POI station = stations.get(e.getKey());
+            double pd = e.getValue();
+            Double tauC = event.stationTauC.get(e.getKey());
+            if (station == null || !(pd >= pdThreshold) || pd <= 0
+                || tauC != null && tauC < tauCThreshold) {
+                continue;
+            }
+            used.add(station);
+            pds.add(pd);
+        }
+        if (used.isEmpty()) {
+            return null;
+        }
+
+        int n = used.size();
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        String[] names = new String[n];
+        double[][] median = new double[relations.length][];
+        double[][] p16 = new double[relations.length][];
+        double[][] p84 = new double[relations.length][];
+        for (int i = 0; i < n; ++i) {
+            POI station = used.get(i);
+            lat[i] = station.latitude;
+            lon[i] = station.longitude;
+            names[i] = station.name;
+        }
+        for (Shaking.Type type : Types) {
+            double[] r = relations[type.ordinal()];
+            if (r == null) {
+                continue;
+            }
+            int t = type.ordinal();
+            median[t] = new double[n];
+            p16[t] = new double[n];
+            p84[t] = new double[n];
+            for (int i = 0; i < n; ++i) {
+                double log = r[0] * Math.log10(pds.get(i)) + r[1];
+                median[t][i] = Math.pow(10, log);
+                p16[t][i] = Math.pow(10, log - r[2]);
+                p84[t][i] = Math.pow(10, log + r[2]);
+            }
+        }
+
+        LOG.debug(String.format("onsite estimate of event %s: %d of %d stations "
+                                + "with Pd above threshold", event.eventID, n,
+                                event.stationPd.size()));
+        return new OnsiteEstimate(new StationIndex(lat, lon, n, radiusM), names,
+                                  median, p16, p84);
+    }
+
+    /**
+     * @return true if the shaking parameter is derived from Pd
+     */
+    public boolean supports(Shaking.Type type) {
+        return median[type.ordinal()] != null;
+    }
+
+    /**
+     * @return index of the nearest station within the radius of influence or
+     * -1 if the point is outside the radius of all stations
+     */
+    public int nearest(double lat, double lon) {
+        return index.nearest(lat, lon);
+    }
+
+    /**
+     * @return median of the shaking parameter at a station (SI units)
+     */
+    public double getValue(Shaking.Type type, int station) {
+        return median[type.ordinal()][station];
+    }
+
+    public Shaking getShaking(Shaking.Type type, int station) {
+        int t = type.ordinal();
+        Shaking s = new Shaking();
+        s.expectedSI = median[t][station];
+        s.percentile16 = p16[t][station];
+        s.percentile84 = p84[t][station];
+        return s;
+    }
+
+    public String getStationName(int station) {
+        return names[station];
+    }
+
+    public int size() {
+        return index.size();
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import java.util.Arrays;
+
+/**
+ * Shake map grid stored as one primitive array per attribute. Point i is
+ * described by the values at index i of all arrays. Compared to one object
+ * per point this saves memory and allows the grid to be processed in index
+ * ranges without pointer chasing.
+ *
+ * The arrays are filled by {@link #add} while loading the grid and are
+ * trimmed to the final size by {@link #compact}. Afterwards only the values
+ * may be modified. One value array is kept per configured shake map
+ * parameter, stored in single precision which suffices for the display.
+ *
+ * For progressive computation the points may be ordered into refinement
+ * passes by {@link #orderPasses}. The first pass contains every n-th point in
+ * both image directions, each following pass halves the step. The points of
+ * one pass occupy a contiguous index range.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class ShakeMapGrid {
+
+    private static final int InitialCapacity = 1024;
+
+    private int size;
+    private double[] latitude;
+    private double[] longitude;
+    private double[] altitude;
+    private double[] amplification;
+    // value arrays indexed by the ordinal of the shaking parameter, null for
+    // parameters not configured
+    private float[][] values;
+    private int[] x;
+    private int[] y;
+    // end index and image step of each refinement pass, null if the points
+    // are not ordered progressively
+    private int[] passEnd;
+    private int[] passStep;
+
+    /**
+     * @param types shaking parameters for which value arrays are kept
+     */
+    public ShakeMapGrid(Shaking.Type[] types) {
+        size = 0;
+        passEnd = null;
+        passStep = null;
+        latitude = new double[InitialCapacity];
+        longitude = new double[InitialCapacity];
+        altitude = new double[InitialCapacity];
+        amplification = new double[InitialCapacity];
+        values = new float[Shaking.Type.values().length][];
+        for (Shaking.Type type : types) {
+            values[type.ordinal()] = new float[InitialCapacity];
+        }
+        x = new int[InitialCapacity];
+        y = new int[InitialCapacity];
+    }
+
+    /**
+     * Appends a grid point
+     *
+     * @return index of the new point
+     */
+    public int add(double latitude, double longitude, double altitude,
+                   double amplification) {
+        if (size == this.latitude.length) {
+            resize(size * 2);
+        }
+        this.latitude[size] = latitude;
+        this.longitude[size] = longitude;
+        this.altitude[size] = altitude;
+        this.amplification[size] = amplification;
+        return size++;
+    }
+
+    /**
+     * Removes all points with a negative image index and trims the arrays to
+     * the number of remaining points.
+     *
+     * @return number of removed points
+     */
+    public int compact() {
+        int n = 0;
+        for (int i = 0; i < size; ++i) {
+            if (x[i] < 0 || y[i] < 0) {
+                continue;
+            }
+            if (n != i) {
+                latitude[n] = latitude[i];
+                longitude[n] = longitude[i];
+                altitude[n] = altitude[i];
+                amplification[n] = amplification[i];
+                for (float[] value : values) {
+                    if (value != null) {
+                        value[n] = value[i];
+                    }
+                }
+                x[n] = x[i];
+                y[n] = y[i];
+            }
+            ++n;
+        }
+        int removed = size - n;
+        size = n;
+        resize(n);
+        passEnd = null;
+        passStep = null;
+        return removed;
+    }
+
+    /**
+     * Orders the points into refinement passes by their image index. A point
+     * belongs to the first pass with a step its x and y index are a multiple
+     * of. The order of the points within one pass is kept.
+     *
+     * @param step image step of the first pass, rounded down to a power of 2,
+     * 1 disables the progressive order
+     */
+    public void orderPasses(int step) {
+        step = step > 1 ? Integer.highestOneBit(step) : 1;
+        int passes = Integer.numberOfTrailingZeros(step) + 1;
+        if (passes == 1) {
+            passEnd = null;
+            passStep = null;
+            return;
+        }
+
+        // count points per pass
+        int[] pass = new int[size];
+        int[] count = new int[passes];
+        for (int i = 0; i < size; ++i) {
+            int s = step;
+            int p = 0;
+            while (s > 1 && (x[i] % s != 0 || y[i] % s != 0)) {
+                s >>= 1;
+                ++p;
+            }
+            pass[i] = p;
+            ++count[p];
+        }
+
+        passEnd = new int[passes];
+        passStep = new int[passes];
+        int[] next = new int[passes];
+        for (int p = 0, end = 0; p < passes; ++p) {
+            next[p] = end;
+            end += count[p];
+            passEnd[p] = end;
+            passStep[p] = step >> p;
+        }
+
+        // stable reorder of all attributes
+        int[] target = new int[size];
+        for (int i = 0; i < size; ++i) {
+            target[i] = next[pass[i]]++;
+        }
+        latitude = reorder(latitude, target);
+        longitude = reorder(longitude, target);
+        altitude = reorder(altitude, target);
+        amplification = reorder(amplification, target);
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] != null) {
+                values[i] = reorder(values[i], target);
+            }
+        }
+        x = reorder(x, target);
+        y = reorder(y, target);
+    }
+
+    private static double[] reorder(double[] values, int[] target) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < target.length; ++i) {
+            result[target[i]] = values[i];
+        }
+        return result;
+    }
+
+    private static float[] reorder(float[] values, int[] target) {
+        float[] result = new float[values.length];
+        for (int i = 0; i < target.length; ++i) {
+            result[target[i]] = values[i];
+        }
+        return result;
+    }
+
+    private static int[] reorder(int[] values, int[] target) {
+        int[] result = new int[values.length];
+        for (int i = 0; i < target.length; ++i) {
+            result[target[i]] = values[i];
+        }
+        return result;
+    }
+
+    /**
+     * @return number of refinement passes, 1 if the points are not ordered
+     * progressively
+     */
+    public int getPassCount() {
+        return passEnd == null ? 1 : passEnd.length;
+    }
+
+    /**
+     * @return start index of the points of a pass
+     */
+    public int getPassStart(int pass) {
+        return pass == 0 ? 0 : passEnd[pass - 1];
+    }
+
+    /**
+     * @return end index (exclusive) of the points of a pass
+     */
+    public int getPassEnd(int pass) {
+        return passEnd == null ? size : passEnd[pass];
+    }
+
+    /**
+     * @return image step of a pass, the value of a point of this pass is
+     * representative for a square of step x step pixels
+     */
+    public int getPassStep(int pass) {
+        return passStep == null ? 1 : passStep[pass];
+    }
+
+    private void resize(int capacity) {
+        latitude = Arrays.copyOf(latitude, capacity);
+        longitude = Arrays.copyOf(longitude, capacity);
+        altitude = Arrays.copyOf(altitude, capacity);
+        amplification = Arrays.copyOf(amplification, capacity);
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i] != null) {
+                values[i] = Arrays.copyOf(values[i], capacity);
+            }
+        }
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public double[] getLatitude() {
+        return latitude;
+    }
+
+    public double[] getLongitude() {
+        return longitude;
+    }
+
+    public double[] getAltitude() {
+        return altitude;
+    }
+
+    public double[] getAmplification() {
+        return amplification;
+    }
+
+    /**
+     * @return shake map values of a shaking parameter in display units,
+     * written by the shaking calculator, null if the parameter is not
+     * configured
+     */
+    public float[] getValue(Shaking.Type type) {
+        return values[type.ordinal()];
+    }
+
+    /**
+     * @return horizontal image index of each point
+     */
+    public int[] getX() {
+        return x;
+    }
+
+    /**
+     * @return vertical image index of each point
+     */
+    public int[] getY() {
+        return y;
+    }
+}
@@ -4,24 +4,62 @@
  */
 package org.reakteu.eewd.data;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.reakteu.eewd.Application;
 import org.reakteu.eewd.gmice.IntensityFromAcceleration;
+import org.reakteu.eewd.gmice.IntensityFromAccelerationBatch;
 import org.reakteu.eewd.gmice.IntensityFromVelocity;
+import org.reakteu.eewd.gmice.IntensityFromVelocityBatch;
 import org.reakteu.eewd.gmpe.AttenuationDRS;
 import org.reakteu.eewd.ipe.AttenuationInt;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
 import org.reakteu.eewd.gmpe.AttenuationPGV;
 import org.reakteu.eewd.gmpe.AttenuationPSA;
+import org.reakteu.eewd.gmpe.BatchAdapter;
+import org.reakteu.eewd.gmpe.ModelCache;
+import org.reakteu.eewd.gmpe.ModelSurrogate;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.gmpe.PreparedSpectrum;
+import org.reakteu.eewd.gmpe.RadialProfile;
 import org.reakteu.eewd.layer.ShakeMapLayer;
+import org.reakteu.eewd.utils.GeoCalc;
 
 /**
+ * Computes the shaking of the targets and the shake map grid for all active
+ * events. Each event keeps its own computation state. Event updates arriving
+ * together are computed in one run on the worker pool while the results of the
+ * other events are reused. The targets, the shake map and the stations show
+ * the maximum over all active events. The work is scheduled in tiers by a
+ * {@link ComputationBudget}: the targets are computed first, the shake map,
+ * eagerly computed spectra and the stations are degraded or deferred if they
+ * would delay the next expected update. Events not updated within the timeout
+ * after their origin time are removed.
+ *
+ * The targets are computed in the order of the estimated S-wave arrival of
+ * the event, i.e. shortest lead time first, and each target is published as
+ * soon as its values are computed.
+ *
+ * Only the spectrum of the target selected in the event panel is displayed,
+ * so by default the spectra are computed on demand per target and cached
+ * until the next update of the event. The spectrum of the selected target is
+ * prefetched after each update. The spectra of all targets are computed after
+ * the shake map if {@code spectrum.eager} is set.
  *
  * @author Stephan Herrnkind herrnkind at gempa dot de
  */
@@ -29,10 +67,50 @@ public class ShakingCalculator implements Runnable {
 
     private static final Logger LOG = LogManager.getLogger(ShakingCalculator.class);
 
-    private final List<POI> targets;
+    // maximum number of active events, the oldest ones are removed first
+    private static final int MaxEvents = 8;
+
     private final Map<String, POI> stations;
     private final ShakeMapLayer shakeMap;
-    private final BlockingQueue<EventData> queue;
+    private final EventMailbox mailbox;
+    private final WorkerPool pool;
+    private final ComputationBudget budget;
+    private final ModelCache modelCache;
+    private final ModelSurrogate surrogate;
+    // distinct amplification values of the shake map grid and relative
+    // distance step of the model profiles, 0 if disabled
+    private final double[] gridAmplifications;
+    private final double profileStep;
+    // model values of the grid points in double precision before they are
+    // stored in the float values of an event, written by the shake map task
+    // for the chunk in progress only
+    private final double[] gridScratch;
+    // distance rasters of the shake map grid not assigned to an event, an
+    // event only holds a raster while its shake map is computed
+    private final Deque<DistanceRaster> gridRasters = new ArrayDeque<>();
+    private final long timeoutMillis;
+    private final double vs;
+    private final boolean eagerSpectrum;
+
+    // on demand spectra of the active events and selected target, set by the
+    // calculation thread and read by the event panel
+    private volatile List<LazySpectrum> spectra = null;
+    private volatile POI selectedTarget = null;
+
+    // targets and stations in a fixed order
+    private final POI[] targetPoints;
+    private final POI[] stationPoints;
+
+    // active events in the order of their first arrival, only modified by the
+    // calculation thread. The workers of the pool read the events while the
+    // calculation thread is blocked in pool.run, e.g. in combine called by a
+    // PointTask, so the map is never modified concurrently to a read.
+    private final Map<String, EventState> events = new LinkedHashMap<>();
+
+    // events and cancellation flag of the running computation, guarded by
+    // this
+    private final Set<String> computedEventIDs = new HashSet<>();
+    private WorkerPool.Cancellation cancellation = null;
 
     private final String ampliProxyName;
     private final AttenuationPGA gmpePGAImpl;
@@ -45,17 +123,20 @@ public class ShakingCalculator implements Runnable {
 
     public ShakingCalculator(List<POI> targets, Map<String, POI> stations,
                              ShakeMapLayer shakeMap) {
-        this.targets = targets;
         this.stations = stations;
         this.shakeMap = shakeMap;
 
         Application app = Application.getInstance();
 
         ampliProxyName = app.getProperty(Application.PropertyAmpliProxyName, "");
+        timeoutMillis = (long) (app.getProperty(
+                Application.PropertyTimeoutAfterOriginTime, 60.0) * 1000);
+        eagerSpectrum = app.getProperty(Application.PropertySpecEager, false);
+        vs = app.getProperty(Application.PropertyVS, Application.DefaultVS);
 
         // cache already loaded instances since one class may implement
         // multiple interfaces
-        Map<String, Object> cache = new HashMap();
+        Map<String, Object> cache = new HashMap<>();
         String prefix;
 
         // gmpe PGA
@@ -90,10 +171,88 @@ public class ShakingCalculator implements Runnable {
             gmicePGVImpl = (IntensityFromVelocity) loadImpl(prefix, cache, IntensityFromVelocity.class);
         }
 
-        queue = new LinkedBlockingQueue();
+        pool = WorkerPool.create();
+        budget = ComputationBudget.create();
+        modelCache = ModelCache.create();
+
+        targetPoints = targets.toArray(new POI[targets.size()]);
+        stationPoints = stations == null ? new POI[0]
+                        : stations.values().toArray(new POI[stations.size()]);
+
+        ShakeMapGrid grid = shakeMap == null ? null : shakeMap.getGrid();
+        int gridSize = grid == null ? 0 : grid.size();
+        gridAmplifications = grid == null ? new double[0]
+                             : RadialProfile.distinct(grid.getAmplification(), gridSize);
+        // the amplification values of the grid are the surrogate table nodes
+        surrogate = gridSize == 0 ? null
+                    : ModelSurrogate.create(pool, gridAmplifications);
+        if (surrogate != null) {
+            prepareSurrogate(grid);
+        }
+        profileStep = app.getProperty(Application.PropertyProcessingProfileStep,
+                                      RadialProfile.DefaultStep);
+        gridScratch = new double[gridSize];
+
+        mailbox = new EventMailbox(EventMailbox.DefaultCapacity);
         new Thread(this).start();
     }
 
+    /**
+     * Starts the creation of the surrogate tables of the shake map parameters
+     * in the background for a source in the center of the grid, so the first
+     * event does not wait for the tables
+     */
+    private void prepareSurrogate(ShakeMapGrid grid) {
+        double[] lat = grid.getLatitude();
+        double[] lon = grid.getLongitude();
+        double minLat = Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        double minLon = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        for (int i = 0; i < grid.size(); ++i) {
+            minLat = Math.min(minLat, lat[i]);
+            maxLat = Math.max(maxLat, lat[i]);
+            minLon = Math.min(minLon, lon[i]);
+            maxLon = Math.max(maxLon, lon[i]);
+        }
+        double latitude = 0.5 * (minLat + maxLat);
+        double longitude = 0.5 * (minLon + maxLon);
+
+        Double controlPeriod = Application.getInstance().getControlPeriod();
+        for (Shaking.Type type : Application.getInstance().getShakeMapParameters()) {
+            if (type == Shaking.Type.PGA) {
+                surrogate.prepareTable(gmpePGAImpl, latitude, longitude,
+                                       ampliProxyName, type, 0);
+            } else if (type == Shaking.Type.PGV) {
+                surrogate.prepareTable(gmpePGVImpl, latitude, longitude,
+                                       ampliProxyName, type, 0);
+            } else if (type == Shaking.Type.PSA) {
+                if (controlPeriod != null) {
+                    surrogate.prepareTable(gmpePSAImpl, latitude, longitude,
+                                           ampliProxyName, type, controlPeriod);
+                }
+            } else if (type == Shaking.Type.DRS) {
+                if (controlPeriod != null) {
+                    surrogate.prepareTable(gmpeDRSImpl, latitude, longitude,
+                                           ampliProxyName, type, controlPeriod);
+                }
+            } else if (type == Shaking.Type.Intensity) {
+                // same model selection as in createShakeMapParameter
+                if (surrogate.prepareTable(ipeIntImpl, latitude, longitude,
+                                           ampliProxyName, type, 0)) {
+                    continue;
+                }
+                if (gmicePGAImpl != null && gmpePGAImpl != null) {
+                    surrogate.prepareTable(gmpePGAImpl, latitude, longitude,
+                                           ampliProxyName, Shaking.Type.PGA, 0);
+                } else if (gmicePGVImpl != null && gmpePGVImpl != null) {
+                    surrogate.prepareTable(gmpePGVImpl, latitude, longitude,
+                                           ampliProxyName, Shaking.Type.PGV, 0);
+                }
+            }
+        }
+    }
+
     private Object loadImpl(String prefix, Map<String, Object> cache, Class type) {
         String className = Application.getInstance().getProperty(
                 prefix + ".class", (String) null);
@@ -128,246 +287,1357 @@ public class ShakingCalculator implements Runnable {
 
     @Override
     public void run() {
-        Application app = Application.getInstance();
-        Double controlPeriod = app.getControlPeriod();
-        double[] periods = app.getPeriods();
         while (true) {
-            EventData event;
+            List<EventData> updates;
             try {
                 LOG.info("waiting for next event");
-                event = queue.take();
-                if (!queue.isEmpty()) {
-                    LOG.debug("skipping event");
-                    continue; // process only the most recent event
-                }
+                // only the most recent update of each event is taken
+                updates = mailbox.takeAll();
+                LOG.debug(String.format("event mailbox: %d pending, %d published, "
+                                        + "%d dropped, %d evicted",
+                                        mailbox.getDepth(), mailbox.getPublished(),
+                                        mailbox.getDropped(), mailbox.getEvicted()));
             } catch (InterruptedException ex) {
                 LOG.error("take interrupted");
                 continue;
             }
 
-            LOG.debug("processing event");
-            // TODO: check for available Pd and derived PGA/PGV from Pd for
-            // stations and for targets with a minimum station distance of
-            // 'RadiusOfInfluence'
-            // Algoritm:
-            //  - create list of stations with Pd and derive PGA/PGV
-            //  - for each target find nearest station with Pd and copy PGA/PGV
-            //    value
-            //  - continue with stations/targets without PGA/PGV
-            //
-            // make sure the same algorithm is used for one all POIs
-            AttenuationPGA gmpePGA = gmpePGAImpl;
-            AttenuationPGV gmpePGV = gmpePGVImpl;
-            AttenuationPSA gmpePSA = gmpePSAImpl;
-            AttenuationDRS gmpeDRS = gmpeDRSImpl;
-            AttenuationInt gmpeInt = ipeIntImpl;
-
-            IntensityFromAcceleration gmicePGA = gmicePGAImpl;
-            IntensityFromVelocity gmicePGV = gmicePGVImpl;
+            process(updates);
+        }
+    }
 
-            Shaking s;
-            for (POI target : targets) {
-                synchronized (target) {
-                    target.clearValues();
-                    if (gmpePGA != null) {
-                        s = gmpePGA.getPGA(
-                                event.magnitude, event.latitude, event.longitude,
-                                event.depth, target.latitude, target.longitude,
-                                target.altitude, ampliProxyName, target.amplification,
-                                event.eventParameters,
-                                event.ruptureLength,
-                                event.ruptureStrike);
-                        target.shakingValues.put(Shaking.Type.PGA, s);
-                        if (gmpeInt == null && gmicePGA != null) {
-                            s = gmicePGA.getIntensityFromAcceleration(s);
-                            target.shakingValues.put(Shaking.Type.Intensity, s);
-                        }
-                    }
-                    if (gmpePGV != null) {
-                        s = gmpePGV.getPGV(
-                                event.magnitude, event.latitude, event.longitude,
-                                event.depth, target.latitude, target.longitude,
-                                target.altitude, ampliProxyName, target.amplification,
-                                event.eventParameters,
-                                event.ruptureLength,
-                                event.ruptureStrike);
-                        target.shakingValues.put(Shaking.Type.PGV, s);
-                        if (gmpeInt == null && gmicePGV != null) {
-                            s = gmicePGV.getIntensityFromVelocity(s);
-                            target.shakingValues.put(Shaking.Type.Intensity, s);
+    /**
+     * Computes the updated events and combines the results with the ones of
+     * the other active events
+     */
+    private void process(List<EventData> updates) {
+        LOG.debug("processing " + updates.size() + " event update(s)");
+        List<EventState> updated = new ArrayList<>();
+        // events with a new update, the others are requeued to complete
+        // deferred or cancelled work of an update already computed
+        List<EventState> fresh = new ArrayList<>();
+        List<String> freshKeys = new ArrayList<>();
+        for (EventData event : updates) {
+            String key = eventKey(event);
+            EventState state = events.get(key);
+            if (state == null) {
+                state = new EventState(key);
+                events.put(key, state);
+            }
+            if (state.event != event) {
+                state.event = event;
+                state.context = new EventContext(event, ampliProxyName);
+                // PGA/PGV derived from the Pd of stations near a point replace
+                // the model values for all targets, stations and grid points
+                state.onsite = OnsiteEstimate.create(event, stations);
+                state.spectraValid = false;
+                state.shakeMapValid = false;
+                state.shakeMapPasses = 0;
+                fresh.add(state);
+                freshKeys.add(key);
+            }
+            updated.add(state);
+        }
+        boolean removed = removeEvents(updated);
+        budget.start(freshKeys);
+
+        WorkerPool.Cancellation cancellation = new WorkerPool.Cancellation();
+        synchronized (this) {
+            for (EventState state : updated) {
+                computedEventIDs.add(state.key);
+            }
+            this.cancellation = cancellation;
+        }
+
+        if (!fresh.isEmpty() || removed) {
+            budget.startTier(ComputationBudget.Tier.Targets);
+            for (EventState state : fresh) {
+                computeTargets(state);
+            }
+            if (!eagerSpectrum) {
+                publishSpectra(fresh);
+            }
+            if (fresh.isEmpty()) {
+                // values of removed events
+                combine(targetPoints, false);
+            }
+            if (!eagerSpectrum) {
+                updateSpectrum(selectedTarget);
+            }
+            budget.finishTier(ComputationBudget.Tier.Targets, false);
+            if (budget.isTargetBudgetExceeded()) {
+                LOG.warn("target calculation exceeded its latency budget, "
+                         + budget.getLatency());
+            }
+        }
+
+        boolean completed = shakeMap == null
+                            || computeShakeMap(updated, removed, cancellation);
+        if (completed && eagerSpectrum) {
+            completed = computeSpectra(updated, cancellation);
+        }
+        if (completed) {
+            completed = computeStations(updated, cancellation);
+        }
+        if (!completed) {
+            // requeue the events of the cancelled or deferred computation,
+            // the newer updates already pending are kept
+            for (EventState state : updated) {
+                mailbox.putIfAbsent(state.event);
+            }
+        }
+        finishComputation();
+        LOG.debug(budget.getLatency());
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(budget.getStatistics());
+        }
+        if (modelCache != null && LOG.isDebugEnabled()) {
+            LOG.debug(modelCache.getStatistics());
+        }
+    }
+
+    /**
+     * Removes the events which were not updated within the timeout after
+     * their origin time and the oldest events exceeding the maximum number of
+     * active events
+     *
+     * @return true if any event was removed
+     */
+    private boolean removeEvents(List<EventState> updated) {
+        long now = System.currentTimeMillis();
+        int excess = events.size() - MaxEvents;
+        boolean removed = false;
+        Iterator<EventState> it = events.values().iterator();
+        while (it.hasNext()) {
+            EventState state = it.next();
+            if (updated.contains(state)) {
+                continue;
+            }
+            if (excess > 0 || now - state.event.time > timeoutMillis) {
+                LOG.info("removing event " + state.key + " from shaking calculation");
+                it.remove();
+                state.releaseGridDistances();
+                budget.remove(state.key);
+                removed = true;
+                --excess;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Computes the shaking of all targets for one event in the order of
+     * their lead time and publishes each target as soon as it is computed
+     */
+    private void computeTargets(EventState state) {
+        state.spectrum = prepareSpectrum(state.context);
+        double[] distances = state.targetDistances.update(state.context, pool)
+                             ? state.targetDistances.getDistance() : null;
+        pool.run("targets", targetPoints.length,
+                 new PointTask(state, targetPoints, distances,
+                               state.shakingValues, true,
+                               leadTimeOrder(state.event)));
+    }
+
+    /**
+     * @return indices of the targets sorted by the estimated S-wave arrival
+     * of an event, using the hypocentral distance of the event countdown
+     */
+    private int[] leadTimeOrder(EventData event) {
+        double scale = GeoCalc.DegreeScale(event.latitude, event.longitude);
+        final double[] eta = new double[targetPoints.length];
+        Integer[] sorted = new Integer[targetPoints.length];
+        for (int i = 0; i < targetPoints.length; ++i) {
+            POI target = targetPoints[i];
+            eta[i] = event.time + GeoCalc.Distance3DDegToM(
+                    event.latitude, event.longitude, -event.depth,
+                    target.latitude, target.longitude, target.altitude, scale) / vs;
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(eta[a], eta[b]);
+            }
+        });
+        int[] order = new int[sorted.length];
+        for (int i = 0; i < sorted.length; ++i) {
+            order[i] = sorted[i];
+        }
+        return order;
+    }
+
+    /**
+     * Computes the spectra of all targets for the updated events if not
+     * already computed. The spectra are skipped if the computation is
+     * cancelled and deferred if the deadline is exceeded.
+     *
+     * @return false if the computation was cancelled or deferred
+     */
+    private boolean computeSpectra(List<EventState> updated,
+                                   WorkerPool.Cancellation cancellation) {
+        budget.startTier(ComputationBudget.Tier.Spectra);
+        for (final EventState state : updated) {
+            if (state.spectraValid) {
+                continue;
+            }
+            if (budget.isExpired()) {
+                LOG.info("deadline exceeded, spectra calculation deferred");
+                budget.finishTier(ComputationBudget.Tier.Spectra, true);
+                return false;
+            }
+            final PreparedSpectrum spectrum = state.spectrum;
+            final double[] distances = state.targetDistances.update(state.context, pool)
+                                       ? state.targetDistances.getDistance() : null;
+            boolean success = pool.run("spectra", 0, targetPoints.length,
+                                       new WorkerPool.Task() {
+                @Override
+                public void process(int from, int to) {
+                    int n = spectrum == null ? 0 : spectrum.getPeriods().length;
+                    double[] median = new double[n];
+                    double[] p16 = new double[n];
+                    double[] p84 = new double[n];
+                    for (int index = from; index < to; ++index) {
+                        List<Shaking> values = state.spectralValues.get(index);
+                        values.clear();
+                        if (spectrum == null) {
+                            continue;
                         }
-                    }
-                    if (gmpePSA != null) {
-                        if (controlPeriod != null) {
-                            s = gmpePSA.getPSA(
-                                    event.magnitude, event.latitude, event.longitude,
-                                    event.depth, target.latitude, target.longitude,
-                                    target.altitude, ampliProxyName, target.amplification,
-                                    controlPeriod, event.eventParameters,
-                                    event.ruptureLength,
-                                    event.ruptureStrike);
-                            target.shakingValues.put(Shaking.Type.PSA, s);
+                        POI target = targetPoints[index];
+                        if (distances != null && spectrum.supportsDistance()) {
+                            spectrum.evaluate(distances[index], target.amplification,
+                                              median, p16, p84);
+                        } else {
+                            spectrum.evaluate(target.latitude, target.longitude,
+                                              target.altitude, target.amplification,
+                                              median, p16, p84);
                         }
-                        if (app.getSpectrumParameter() == Shaking.Type.PSA) {
-                            for (double p : periods) {
-                                target.spectralValues.add(gmpePSA.getPSA(
-                                        event.magnitude, event.latitude, event.longitude,
-                                        event.depth, target.latitude, target.longitude,
-                                        target.altitude, ampliProxyName, target.amplification,
-                                        p, event.eventParameters,
-                                        event.ruptureLength,
-                                        event.ruptureStrike));
-                            }
+                        for (int i = 0; i < n; ++i) {
+                            values.add(shaking(median, p16, p84, i));
                         }
                     }
-                    if (gmpeDRS != null) {
-                        if (controlPeriod != null) {
-                            s = gmpeDRS.getDRS(
-                                    event.magnitude, event.latitude, event.longitude,
-                                    event.depth, target.latitude, target.longitude,
-                                    target.altitude, ampliProxyName, target.amplification,
-                                    controlPeriod, event.eventParameters,
-                                    event.ruptureLength,
-                                    event.ruptureStrike);
-                            target.shakingValues.put(Shaking.Type.DRS, s);
-                        }
-                        if (app.getSpectrumParameter() == Shaking.Type.DRS) {
-                            for (double p : periods) {
-                                target.spectralValues.add(gmpeDRS.getDRS(
-                                        event.magnitude, event.latitude, event.longitude,
-                                        event.depth, target.latitude, target.longitude,
-                                        target.altitude, ampliProxyName, target.amplification,
-                                        p, event.eventParameters,
-                                        event.ruptureLength,
-                                        event.ruptureStrike));
-                            }
-                        }
+                }
+            }, cancellation);
+            if (!success && cancellation.isCancelled()) {
+                LOG.info("spectra calculation cancelled");
+                budget.finishTier(ComputationBudget.Tier.Spectra, false);
+                return false;
+            }
+            state.spectraValid = success;
+        }
+        combine(targetPoints, false);
+        budget.finishTier(ComputationBudget.Tier.Spectra, false);
+        return true;
+    }
+
+    /**
+     * Replaces the on demand spectra by the ones of the current event
+     * updates. The cached spectra of events not updated are kept.
+     */
+    private void publishSpectra(List<EventState> updated) {
+        List<LazySpectrum> list = new ArrayList<>();
+        for (EventState state : events.values()) {
+            if (state.spectrum == null) {
+                continue;
+            }
+            if (updated.contains(state) || state.lazySpectrum == null) {
+                state.lazySpectrum = new LazySpectrum(state.spectrum);
+            }
+            list.add(state.lazySpectrum);
+        }
+        spectra = list;
+    }
+
+    /**
+     * Computes the spectrum of a target from the cached spectra of the active
+     * events unless the spectra of all targets are computed with the other
+     * shaking parameters. The target is prefetched after the following event
+     * updates.
+     *
+     * @param target target displayed in the spectrum plot, may be null
+     */
+    public void updateSpectrum(POI target) {
+        if (eagerSpectrum || target == null) {
+            return;
+        }
+        selectedTarget = target;
+        List<LazySpectrum> current = spectra;
+        if (current == null) {
+            return;
+        }
+        List<Shaking> values = new ArrayList<>();
+        for (LazySpectrum spectrum : current) {
+            List<Shaking> eventValues = spectrum.get(target);
+            for (int i = 0; i < eventValues.size(); ++i) {
+                Shaking s = eventValues.get(i);
+                if (i >= values.size()) {
+                    values.add(s);
+                } else if (exceeds(s, values.get(i))) {
+                    values.set(i, s);
+                }
+            }
+        }
+        synchronized (target) {
+            // values of outdated spectra are replaced by the prefetch of the
+            // calculation thread
+            if (current == spectra) {
+                target.spectralValues.clear();
+                target.spectralValues.addAll(values);
+            }
+        }
+    }
+
+    /**
+     * Spectrum of one event update, computed on demand per target and cached
+     * until the next update of the event
+     */
+    private static class LazySpectrum {
+
+        private final PreparedSpectrum spectrum;
+        private final Map<POI, List<Shaking>> values = new ConcurrentHashMap<>();
+
+        LazySpectrum(PreparedSpectrum spectrum) {
+            this.spectrum = spectrum;
+        }
+
+        List<Shaking> get(POI target) {
+            List<Shaking> v = values.get(target);
+            if (v != null) {
+                return v;
+            }
+            int n = spectrum.getPeriods().length;
+            double[] median = new double[n];
+            double[] p16 = new double[n];
+            double[] p84 = new double[n];
+            spectrum.evaluate(target.latitude, target.longitude, target.altitude,
+                              target.amplification, median, p16, p84);
+            v = new ArrayList<>(n);
+            for (int i = 0; i < n; ++i) {
+                Shaking s = new Shaking();
+                s.expectedSI = median[i];
+                s.percentile16 = p16[i];
+                s.percentile84 = p84[i];
+                v.add(s);
+            }
+            values.put(target, v);
+            return v;
+        }
+    }
+
+    /**
+     * Computes the shaking of all stations for the updated events. The
+     * stations are computed after the targets and the shake map and are
+     * skipped if the computation is cancelled.
+     *
+     * @return false if the computation was cancelled
+     */
+    private boolean computeStations(List<EventState> updated,
+                                    WorkerPool.Cancellation cancellation) {
+        if (stationPoints.length == 0) {
+            return true;
+        }
+        budget.startTier(ComputationBudget.Tier.Stations);
+        if (budget.isExpired()) {
+            LOG.info("deadline exceeded, station calculation deferred");
+            budget.finishTier(ComputationBudget.Tier.Stations, true);
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        for (EventState state : updated) {
+            double[] distances = state.stationDistances.update(state.context, pool)
+                                 ? state.stationDistances.getDistance() : null;
+            boolean success = pool.run(
+                    "stations", 0, stationPoints.length,
+                    new PointTask(state, stationPoints, distances,
+                                  state.stationValues, false, null),
+                    cancellation);
+            if (!success && cancellation.isCancelled()) {
+                LOG.info("station calculation cancelled");
+                budget.finishTier(ComputationBudget.Tier.Stations, false);
+                return false;
+            }
+        }
+        combine(stationPoints, true);
+        budget.finishTier(ComputationBudget.Tier.Stations, false);
+        LOG.debug(String.format("%d stations calculated in %.3fs",
+                                stationPoints.length,
+                                (double) (System.currentTimeMillis() - start) / 1000.0));
+        return true;
+    }
+
+    /**
+     * Sets the shaking of each target or station to the maximum over all
+     * active events, determined per parameter and per spectral period
+     */
+    private void combine(POI[] points, boolean stations) {
+        for (int index = 0; index < points.length; ++index) {
+            combine(points, index, stations);
+        }
+    }
+
+    /**
+     * Combines the results of the active events for one point. Called by the
+     * workers of a PointTask, which read the events while the calculation
+     * thread waits for the task.
+     */
+    private void combine(POI[] points, int index, boolean stations) {
+        POI point = points[index];
+        synchronized (point) {
+            // the trigger flag is set by the event data and kept
+            point.shakingValues.clear();
+            point.spectralValues.clear();
+            for (EventState state : events.values()) {
+                Map<Shaking.Type, Shaking> values = stations
+                                                    ? state.stationValues.get(index)
+                                                    : state.shakingValues.get(index);
+                for (Map.Entry<Shaking.Type, Shaking> e : values.entrySet()) {
+                    Shaking s = point.shakingValues.get(e.getKey());
+                    if (s == null || exceeds(e.getValue(), s)) {
+                        point.shakingValues.put(e.getKey(), e.getValue());
                     }
-                    if (gmpeInt != null) {
-                        s = gmpeInt.getInt(
-                                event.magnitude, event.latitude, event.longitude,
-                                event.depth, target.latitude, target.longitude,
-                                target.altitude, ampliProxyName, target.amplification,
-                                event.eventParameters,event.ruptureLength,event.ruptureStrike);
-                        target.shakingValues.put(Shaking.Type.Intensity, s);
+                }
+                if (stations) {
+                    continue;
+                }
+                List<Shaking> spectralValues = state.spectralValues.get(index);
+                for (int i = 0; i < spectralValues.size(); ++i) {
+                    Shaking s = spectralValues.get(i);
+                    if (i >= point.spectralValues.size()) {
+                        point.spectralValues.add(s);
+                    } else if (exceeds(s, point.spectralValues.get(i))) {
+                        point.spectralValues.set(i, s);
                     }
                 }
             }
+        }
+    }
+
+    private static boolean exceeds(Shaking s, Shaking other) {
+        return s.expectedSI > other.expectedSI
+               || other.expectedSI != other.expectedSI;
+    }
+
+    /**
+     * Computes all shaking parameters of a range of targets or stations for
+     * one event. The models are prepared once per event, only the site
+     * dependent terms are computed per point. PGA and PGV of points within the
+     * radius of influence of a station with Pd are copied from the onsite
+     * estimate. The percentiles are only computed if
+     * requested, e.g. for the targets shown in the event panel, otherwise they
+     * are set to NaN. If an evaluation order is given, the task range refers
+     * to positions in the order and each point is combined with the results
+     * of the other events as soon as it is computed.
+     */
+    private class PointTask implements WorkerPool.Task {
+
+        private final OnsiteEstimate onsite;
+        private final POI[] points;
+        private final double[] distances;
+        private final List<Map<Shaking.Type, Shaking>> values;
+        private final boolean percentiles;
+        private final int[] order;
 
-            // shake map
-            Shaking.Type shakeMapParameter = app.getShakeMapParameter();
-            if (shakeMap != null && shakeMapParameter != null) {
-                LOG.debug("starting shake map calculation");
-                long start = System.currentTimeMillis();
-                boolean success = true;
-                if (app.getShakeMapParameter() == Shaking.Type.PGA && gmpePGA != null) {
-                    for (ShakeMapLayer.Point p : shakeMap.getPoints()) {
-                        p.value = gmpePGA.getPGA(
-                                event.magnitude, event.latitude, event.longitude,
-                                event.depth, p.latitude, p.longitude, p.altitude,
-                                ampliProxyName, p.amplification,
-                                event.eventParameters,
-                                event.ruptureLength,
-                                event.ruptureStrike).expectedSI * Application.EarthAcceleration1;
+        private final PreparedModel gmpePGA;
+        private final PreparedModel gmpePGV;
+        private final PreparedModel gmpePSA;
+        private final PreparedModel gmpeDRS;
+        private final PreparedModel gmpeInt;
+        private final IntensityFromAccelerationBatch gmicePGA;
+        private final IntensityFromVelocityBatch gmicePGV;
+
+        /**
+         * @param distances precomputed distances of the points, may be null
+         * @param percentiles compute the percentiles in addition to the
+         * median
+         * @param order point indices in the order of evaluation, the points
+         * are published as soon as computed, null to evaluate in index order
+         * without publishing
+         */
+        PointTask(EventState state, POI[] points, double[] distances,
+                  List<Map<Shaking.Type, Shaking>> values,
+                  boolean percentiles, int[] order) {
+            EventContext context = state.context;
+            this.onsite = state.onsite;
+            this.points = points;
+            this.distances = distances;
+            this.values = values;
+            this.percentiles = percentiles;
+            this.order = order;
+
+            Application app = Application.getInstance();
+            Double controlPeriod = app.getControlPeriod();
+            gmpePGA = BatchAdapter.prepare(gmpePGAImpl, context, Shaking.Type.PGA, 0);
+            gmpePGV = BatchAdapter.prepare(gmpePGVImpl, context, Shaking.Type.PGV, 0);
+            gmpePSA = controlPeriod == null ? null
+                      : BatchAdapter.prepare(gmpePSAImpl, context,
+                                             Shaking.Type.PSA, controlPeriod);
+            gmpeDRS = controlPeriod == null ? null
+                      : BatchAdapter.prepare(gmpeDRSImpl, context,
+                                             Shaking.Type.DRS, controlPeriod);
+            gmpeInt = BatchAdapter.prepare(ipeIntImpl, context, Shaking.Type.Intensity, 0);
+            gmicePGA = BatchAdapter.gmicePGA(gmicePGAImpl);
+            gmicePGV = BatchAdapter.gmicePGV(gmicePGVImpl);
+        }
+
+        @Override
+        public void process(int from, int to) {
+            Shaking s;
+            // output arrays of a single point, reused for all parameters
+            double[] median = new double[1];
+            double[] p16 = percentiles ? new double[1] : null;
+            double[] p84 = percentiles ? new double[1] : null;
+            for (int position = from; position < to; ++position) {
+                int index = order == null ? position : order[position];
+                POI point = points[index];
+                double distance = distances == null ? Double.NaN : distances[index];
+                int station = onsite == null ? -1
+                              : onsite.nearest(point.latitude, point.longitude);
+                Map<Shaking.Type, Shaking> v = values.get(index);
+                v.clear();
+                s = estimate(gmpePGA, Shaking.Type.PGA, point, distance, station,
+                             median, p16, p84);
+                if (s != null) {
+                    v.put(Shaking.Type.PGA, s);
+                    if (gmpeInt == null && gmicePGA != null) {
+                        load(s, median, p16, p84);
+                        gmicePGA.getIntensityFromAcceleration(0, 1, median, p16, p84);
+                        v.put(Shaking.Type.Intensity, shaking(median, p16, p84, 0));
                     }
-                } else if (shakeMapParameter == Shaking.Type.PGV && gmpePGV != null) {
-                    for (ShakeMapLayer.Point p : shakeMap.getPoints()) {
-                        p.value = gmpePGV.getPGV(
-                                event.magnitude, event.latitude, event.longitude,
-                                event.depth, p.latitude, p.longitude, p.altitude,
-                                ampliProxyName, p.amplification,
-                                event.eventParameters,
-                                event.ruptureLength,
-                                event.ruptureStrike).expectedSI * 100;
+                }
+                s = estimate(gmpePGV, Shaking.Type.PGV, point, distance, station,
+                             median, p16, p84);
+                if (s != null) {
+                    v.put(Shaking.Type.PGV, s);
+                    if (gmpeInt == null && gmicePGV != null) {
+                        load(s, median, p16, p84);
+                        gmicePGV.getIntensityFromVelocity(0, 1, median, p16, p84);
+                        v.put(Shaking.Type.Intensity, shaking(median, p16, p84, 0));
                     }
-                } else if (shakeMapParameter == Shaking.Type.PSA && gmpePSA != null) {
-                    if (controlPeriod != null) {
-                        for (ShakeMapLayer.Point p : shakeMap.getPoints()) {
-                            p.value = gmpePSA.getPSA(
-                                    event.magnitude, event.latitude, event.longitude,
-                                    event.depth, p.latitude, p.longitude, p.altitude,
-                                    ampliProxyName, p.amplification, controlPeriod,
-                                    event.eventParameters,
-                                    event.ruptureLength,
-                                    event.ruptureStrike).expectedSI * Application.EarthAcceleration1;
-                        }
+                }
+                if (gmpePSA != null) {
+                    s = evaluate(gmpePSA, point, distance, median, p16, p84);
+                    v.put(Shaking.Type.PSA, s);
+                }
+                if (gmpeDRS != null) {
+                    s = evaluate(gmpeDRS, point, distance, median, p16, p84);
+                    v.put(Shaking.Type.DRS, s);
+                }
+                if (gmpeInt != null) {
+                    s = evaluate(gmpeInt, point, distance, median, p16, p84);
+                    v.put(Shaking.Type.Intensity, s);
+                }
+                if (order != null) {
+                    combine(points, index, false);
+                }
+            }
+        }
+
+        /**
+         * @return onsite estimate of the nearest station if available, the
+         * model value otherwise or null if no model is available
+         */
+        private Shaking estimate(PreparedModel model, Shaking.Type type,
+                                 POI point, double distance, int station,
+                                 double[] median, double[] p16, double[] p84) {
+            if (station >= 0 && onsite.supports(type)) {
+                return onsite.getShaking(type, station);
+            }
+            return model == null ? null
+                   : evaluate(model, point, distance, median, p16, p84);
+        }
+
+        /**
+         * Evaluates a model for a point, using the precomputed distance if
+         * available and supported by the model. The percentile arrays are
+         * null if the percentiles are not requested.
+         */
+        private Shaking evaluate(PreparedModel model, POI point, double distance,
+                                 double[] median, double[] p16, double[] p84) {
+            if (distance == distance && model.supportsDistance()) {
+                model.evaluate(distance, point.amplification, 0, median, p16, p84);
+                return shaking(median, p16, p84, 0);
+            }
+            // scalar implementations always compute the percentiles
+            return model.evaluate(point.latitude, point.longitude,
+                                  point.altitude, point.amplification);
+        }
+    }
+
+    private static Shaking shaking(double[] median, double[] p16, double[] p84,
+                                   int index) {
+        Shaking s = new Shaking();
+        s.expectedSI = median[index];
+        s.percentile16 = p16 == null ? Double.NaN : p16[index];
+        s.percentile84 = p84 == null ? Double.NaN : p84[index];
+        return s;
+    }
+
+    private static void load(Shaking s, double[] median, double[] p16,
+                             double[] p84) {
+        median[0] = s.expectedSI;
+        if (p16 != null) {
+            p16[0] = s.percentile16;
+        }
+        if (p84 != null) {
+            p84[0] = s.percentile84;
+        }
+    }
+
+    /**
+     * Computes the shake map of the updated events and the envelope over all
+     * active events. If the deadline is exceeded the refinement stops after
+     * the current pass. Events whose shake map is already complete, e.g. in a
+     * follow-up computation of deferred stations, are not computed again.
+     * A degraded shake map continues with the first pass not completed on
+     * top of the image displayed so far. Each event resumes at its own pass,
+     * so an event whose computation was cancelled together with a newer
+     * update of another event keeps the passes already completed.
+     *
+     * @param removed true if events were removed from the envelope
+     * @return false if the computation was cancelled or degraded
+     */
+    private boolean computeShakeMap(List<EventState> updated, boolean removed,
+                                    WorkerPool.Cancellation cancellation) {
+        List<EventState> pending = new ArrayList<>();
+        int firstPass = Integer.MAX_VALUE;
+        for (EventState state : updated) {
+            if (!state.shakeMapValid) {
+                pending.add(state);
+                firstPass = Math.min(firstPass, state.shakeMapPasses);
+            }
+        }
+        if (pending.isEmpty() && !removed) {
+            LOG.debug("shake map of all updated events complete");
+            return true;
+        }
+        // the envelope of removed events is recomputed completely
+        if (removed || pending.isEmpty()) {
+            firstPass = 0;
+        }
+
+        LOG.debug("starting shake map calculation" + (firstPass > 0
+                  ? " at refinement pass " + firstPass : ""));
+        budget.startTier(ComputationBudget.Tier.ShakeMap);
+        long start = System.currentTimeMillis();
+        ShakeMapGrid grid = shakeMap.getGrid();
+        ShakeMapTask task = createShakeMapTask(grid, pending);
+        if (task == null) {
+            if (!pending.isEmpty()) {
+                LOG.warn("no implementation found for any shake map parameter");
+            }
+            for (EventState state : pending) {
+                state.shakeMapValid = true;
+            }
+        } else {
+            // compute the grid in refinement passes, all but the last pass are
+            // displayed upsampled as soon as they are ready
+            int passes = grid.getPassCount();
+            boolean reset = firstPass == 0;
+            boolean success = true;
+            int pass = firstPass;
+            for (; pass < passes && success; ++pass) {
+                int from = grid.getPassStart(pass);
+                int to = grid.getPassEnd(pass);
+                if (from == to) {
+                    continue;
+                }
+                if (pass > 0 && !reset && budget.isExpired()) {
+                    // keep the coarse passes displayed until the follow-up
+                    // computation completes the grid
+                    LOG.info(String.format("deadline exceeded, shake map "
+                                           + "refinement stopped after %d of "
+                                           + "%d passes", pass, passes));
+                    budget.finishTier(ComputationBudget.Tier.ShakeMap, true);
+                    return false;
+                }
+                task.setPass(pass);
+                success = pool.run("shake map pass " + pass, from, to, task,
+                                   cancellation);
+                if (success) {
+                    for (EventState state : pending) {
+                        state.shakeMapPasses = Math.max(state.shakeMapPasses,
+                                                        pass + 1);
                     }
-                } else if (shakeMapParameter == Shaking.Type.DRS && gmpeDRS != null) {
-                    if (controlPeriod != null) {
-                        for (ShakeMapLayer.Point p : shakeMap.getPoints()) {
-                            p.value = gmpeDRS.getDRS(
-                                    event.magnitude, event.latitude, event.longitude,
-                                    event.depth, p.latitude, p.longitude, p.altitude,
-                                    ampliProxyName, p.amplification, controlPeriod,
-                                    event.eventParameters,
-                                    event.ruptureLength,
-                                    event.ruptureStrike).expectedSI * 100;
+                }
+                if (success && pass < passes - 1) {
+                    shakeMap.updatePass(pass, reset, task.getTypes());
+                    reset = false;
+                    LOG.debug(String.format("shake map pass %d: %d grid points calculated after %.3fs",
+                                            pass, to,
+                                            (double) (System.currentTimeMillis() - start) / 1000.0));
+                }
+            }
+            if (success) {
+                task.setValid();
+                for (EventState state : pending) {
+                    state.shakeMapValid = true;
+                    // only the values are needed for the envelope of later
+                    // computations
+                    state.releaseGridDistances();
+                }
+                LOG.debug(String.format("%d grid points of %d events calculated in %.3fs",
+                                        grid.size(), pending.size(),
+                                        (double) (System.currentTimeMillis() - start) / 1000.0));
+            } else if (cancellation.isCancelled()) {
+                // skipped chunks of the cancelled pass and all following
+                // passes
+                long skipped = cancellation.getSkipped()
+                               + grid.size() - grid.getPassEnd(pass - 1);
+                LOG.info(String.format("shake map calculation cancelled "
+                                       + "after %.3fs, %d of %d grid "
+                                       + "points (%.1f%%) skipped",
+                                       (double) (System.currentTimeMillis() - start) / 1000.0,
+                                       skipped, grid.size(),
+                                       100.0 * skipped / grid.size()));
+                // keep the passes displayed so far as preview until the newer
+                // update is computed
+                budget.finishTier(ComputationBudget.Tier.ShakeMap, false);
+                return false;
+            } else {
+                LOG.warn("shake map calculation failed");
+            }
+        }
+
+        Set<Shaking.Type> valid = EnumSet.noneOf(Shaking.Type.class);
+        for (EventState state : events.values()) {
+            valid.addAll(state.validTypes);
+        }
+        shakeMap.updateImage(valid);
+        budget.finishTier(ComputationBudget.Tier.ShakeMap, false);
+        return true;
+    }
+
+    /**
+     * Prepares a model of the shake map for an event, using the model
+     * surrogate or the model cache if enabled. Both are only used for the
+     * grid, whose many points share few amplification values and similar
+     * distances, targets and stations are computed by the exact models.
+     */
+    private PreparedModel prepareGrid(Object impl, EventContext event,
+                                      Shaking.Type type, double period) {
+        if (surrogate != null) {
+            return surrogate.prepare(impl, event, type, period);
+        }
+        if (modelCache != null) {
+            return modelCache.prepare(impl, event, type, period);
+        }
+        return BatchAdapter.prepare(impl, event, type, period);
+    }
+
+    /**
+     * Prepares the spectrum of the configured spectrum parameter for an event
+     *
+     * @return spectrum or null if no implementation is available for the
+     * spectrum parameter
+     */
+    private PreparedSpectrum prepareSpectrum(EventContext context) {
+        Application app = Application.getInstance();
+        Shaking.Type spectrumParameter = app.getSpectrumParameter();
+        Object spectrumImpl = null;
+        if (spectrumParameter == Shaking.Type.PSA) {
+            spectrumImpl = gmpePSAImpl;
+        } else if (spectrumParameter == Shaking.Type.DRS) {
+            spectrumImpl = gmpeDRSImpl;
+        }
+        double[] periods = app.getPeriods();
+        return spectrumImpl == null || periods.length == 0 ? null
+               : BatchAdapter.prepareSpectrum(spectrumImpl, context,
+                                              spectrumParameter, periods);
+    }
+
+    /**
+     * Creates the work item computing the shake map values of a range of grid
+     * points for all shake map parameters of the updated events in one pass.
+     * The attenuation models are prepared once per event and the distances
+     * are shared by all parameters of an event. The results are written to the
+     * value arrays of the events and combined with the values of the other
+     * active events to the envelope stored in the grid. Apart from scalar
+     * implementations wrapped by the {@link BatchAdapter} the task does not
+     * allocate any memory while processing the grid points.
+     *
+     * @return task or null if no values are available for any of the shake
+     * map parameters
+     */
+    private ShakeMapTask createShakeMapTask(ShakeMapGrid grid,
+                                            List<EventState> updated) {
+        Application app = Application.getInstance();
+        Shaking.Type[] types = app.getShakeMapParameters();
+        List<ShakeMapParameter> parameters = new ArrayList<>();
+        for (EventState state : updated) {
+            // the values of the event are overwritten
+            state.validTypes.clear();
+
+            List<ShakeMapParameter> eventParameters = new ArrayList<>();
+            boolean distanceBased = false;
+            for (Shaking.Type type : types) {
+                ShakeMapParameter parameter = createShakeMapParameter(
+                        grid, type, state, app.getControlPeriod());
+                if (parameter == null) {
+                    LOG.warn("no implementation found for shake map parameter "
+                             + type.toString());
+                    continue;
+                }
+                eventParameters.add(parameter);
+                distanceBased |= parameter.model.supportsDistance();
+            }
+
+            // use the distance raster if supported by any of the models
+            if (distanceBased && state.acquireGridDistances()
+                && state.gridDistances.update(state.context, pool)) {
+                for (ShakeMapParameter parameter : eventParameters) {
+                    parameter.distances = state.gridDistances.getDistance();
+                }
+            }
+
+            if (eventParameters.isEmpty()) {
+                continue;
+            }
+
+            // distance range of the grid points
+            double[] distances = eventParameters.get(0).distances;
+            double minDistance = Double.POSITIVE_INFINITY;
+            double maxDistance = 0;
+            for (int i = 0; distances != null && i < grid.size(); ++i) {
+                minDistance = Math.min(minDistance, distances[i]);
+                maxDistance = Math.max(maxDistance, distances[i]);
+            }
+            for (ShakeMapParameter parameter : eventParameters) {
+                if (distances != null) {
+                    parameter.createProfile(minDistance, maxDistance);
+                }
+                parameter.prune();
+            }
+            parameters.addAll(eventParameters);
+        }
+
+        // sources of the envelope per parameter: the values computed by the
+        // task and the valid values of the events not updated
+        List<Shaking.Type> envelopeTypes = new ArrayList<>();
+        List<float[][]> sources = new ArrayList<>();
+        for (Shaking.Type type : types) {
+            List<float[]> typeSources = new ArrayList<>();
+            for (ShakeMapParameter parameter : parameters) {
+                if (parameter.type == type) {
+                    typeSources.add(parameter.values);
+                }
+            }
+            for (EventState state : events.values()) {
+                if (!updated.contains(state) && state.validTypes.contains(type)) {
+                    typeSources.add(state.getValue(type, grid.size()));
+                }
+            }
+            if (!typeSources.isEmpty()) {
+                envelopeTypes.add(type);
+                sources.add(typeSources.toArray(new float[typeSources.size()][]));
+            }
+        }
+
+        if (envelopeTypes.isEmpty()) {
+            return null;
+        }
+        return new ShakeMapTask(grid, parameters.toArray(
+                new ShakeMapParameter[parameters.size()]),
+                                envelopeTypes.toArray(new Shaking.Type[envelopeTypes.size()]),
+                                sources.toArray(new float[sources.size()][][]));
+    }
+
+    /**
+     * Prepares the computation of one shake map parameter of an event
+     *
+     * @return parameter or null if no implementation is available
+     */
+    private ShakeMapParameter createShakeMapParameter(ShakeMapGrid grid,
+                                                      Shaking.Type type,
+                                                      EventState state,
+                                                      Double controlPeriod) {
+        EventContext event = state.context;
+        PreparedModel model = null;
+        double scale = displayScale(type);
+        IntensityFromAccelerationBatch gmicePGA = null;
+        IntensityFromVelocityBatch gmicePGV = null;
+        if (type == Shaking.Type.PGA) {
+            model = prepareGrid(gmpePGAImpl, event, Shaking.Type.PGA, 0);
+        } else if (type == Shaking.Type.PGV) {
+            model = prepareGrid(gmpePGVImpl, event, Shaking.Type.PGV, 0);
+        } else if (type == Shaking.Type.PSA) {
+            if (controlPeriod != null) {
+                model = prepareGrid(gmpePSAImpl, event, Shaking.Type.PSA,
+                                    controlPeriod);
+            }
+        } else if (type == Shaking.Type.DRS) {
+            if (controlPeriod != null) {
+                model = prepareGrid(gmpeDRSImpl, event, Shaking.Type.DRS,
+                                    controlPeriod);
+            }
+        } else if (type == Shaking.Type.Intensity) {
+            model = prepareGrid(ipeIntImpl, event, Shaking.Type.Intensity, 0);
+            if (model == null && gmicePGAImpl != null && gmpePGAImpl != null) {
+                model = prepareGrid(gmpePGAImpl, event, Shaking.Type.PGA, 0);
+                gmicePGA = BatchAdapter.gmicePGA(gmicePGAImpl);
+            } else if (model == null && gmicePGVImpl != null && gmpePGVImpl != null) {
+                model = prepareGrid(gmpePGVImpl, event, Shaking.Type.PGV, 0);
+                gmicePGV = BatchAdapter.gmicePGV(gmicePGVImpl);
+            }
+        }
+
+        if (model == null) {
+            return null;
+        }
+        ShakeMapParameter parameter = new ShakeMapParameter(
+                grid, state, type, model, scale, gmicePGA, gmicePGV);
+        Shaking.Type modelType = gmicePGA != null ? Shaking.Type.PGA
+                                 : gmicePGV != null ? Shaking.Type.PGV : type;
+        if (state.onsite != null && state.onsite.supports(modelType)) {
+            parameter.onsiteType = modelType;
+        }
+        return parameter;
+    }
+
+    /**
+     * Computes the shake map values of all parameters for a range of grid
+     * points. The parameters are processed one after another for each chunk
+     * while the coordinates and distances of the chunk are in the cache.
+     * Afterwards the maximum over all events is stored in the grid for the
+     * same chunk.
+     */
+    private static class ShakeMapTask implements WorkerPool.Task {
+
+        private final ShakeMapParameter[] parameters;
+        private final Shaking.Type[] envelopeTypes;
+        private final float[][][] sources;
+        private final float[][] envelope;
+        private final Set<Shaking.Type> types;
+        // refinement pass processed, set by the calculation thread before the
+        // pass is started
+        private int pass = 0;
+
+        ShakeMapTask(ShakeMapGrid grid, ShakeMapParameter[] parameters,
+                     Shaking.Type[] envelopeTypes, float[][][] sources) {
+            this.parameters = parameters;
+            this.envelopeTypes = envelopeTypes;
+            this.sources = sources;
+            this.envelope = new float[envelopeTypes.length][];
+            this.types = EnumSet.noneOf(Shaking.Type.class);
+            for (int i = 0; i < envelopeTypes.length; ++i) {
+                envelope[i] = grid.getValue(envelopeTypes[i]);
+                types.add(envelopeTypes[i]);
+            }
+        }
+
+        /**
+         * @return shaking parameters of the envelope
+         */
+        Set<Shaking.Type> getTypes() {
+            return types;
+        }
+
+        /**
+         * Sets the refinement pass processed next. Parameters of events which
+         * completed this pass already are not computed again, their values
+         * only contribute to the envelope.
+         */
+        void setPass(int pass) {
+            this.pass = pass;
+        }
+
+        /**
+         * Marks the parameters computed by this task valid for their events
+         */
+        void setValid() {
+            for (ShakeMapParameter parameter : parameters) {
+                parameter.state.validTypes.add(parameter.type);
+            }
+        }
+
+        @Override
+        public void process(int from, int to) {
+            for (ShakeMapParameter parameter : parameters) {
+                if (parameter.firstPass <= pass) {
+                    parameter.process(from, to);
+                }
+            }
+            for (int k = 0; k < envelopeTypes.length; ++k) {
+                float[][] source = sources[k];
+                float[] values = envelope[k];
+                if (source.length == 1) {
+                    System.arraycopy(source[0], from, values, from, to - from);
+                    continue;
+                }
+                for (int i = from; i < to; ++i) {
+                    float max = Float.NaN;
+                    for (float[] s : source) {
+                        float v = s[i];
+                        if (v > max || max != max) {
+                            max = v;
                         }
                     }
-                } else if (shakeMapParameter == Shaking.Type.Intensity) {
-                    if (gmpeInt == null) {
-                        if (gmicePGA != null && gmpePGA != null) {
-                            for (ShakeMapLayer.Point p : shakeMap.getPoints()) {
-                                p.value = gmicePGA.getIntensityFromAcceleration(
-                                        gmpePGA.getPGA(
-                                                event.magnitude, event.latitude,
-                                                event.longitude, event.depth,
-                                                p.latitude, p.longitude, p.altitude,
-                                                ampliProxyName, p.amplification,
-                                                event.eventParameters,
-                                                event.ruptureLength,
-                                                event.ruptureStrike)).expectedSI;
-                            }
-                        } else if (gmicePGV != null && gmpePGV != null) {
-                            for (ShakeMapLayer.Point p : shakeMap.getPoints()) {
-                                p.value = gmicePGV.getIntensityFromVelocity(
-                                        gmpePGV.getPGV(
-                                                event.magnitude, event.latitude,
-                                                event.longitude, event.depth,
-                                                p.latitude, p.longitude, p.altitude,
-                                                ampliProxyName, p.amplification,
-                                                event.eventParameters,
-                                                event.ruptureLength,
-                                                event.ruptureStrike)).expectedSI;
-                            }
-                        } else {
-                            success = false;
-                        }
+                    values[i] = max;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the values of one shake map parameter. The model is evaluated
+     * into the double precision scratch array of the calculator and the
+     * display values of the chunk are then stored in the float values of the
+     * event. Grid points beyond a
+     * cutoff distance, at which the shaking falls below the minimum value of
+     * the color gradient, are not computed but filled with the value at the
+     * cutoff distance since they are displayed with the same color. Grid
+     * points within the radius of influence of a station with Pd use the
+     * onsite estimate of the nearest station.
+     */
+    private class ShakeMapParameter {
+
+        // maximum distance considered for the cutoff search, exceeds half of
+        // the earth circumference (meter)
+        private static final double MaxDistanceM = 21000e3;
+        // distance resolution of the cutoff search (meter)
+        private static final double CutoffResolutionM = 100;
+        // number of distances beyond the cutoff checked for a monotonic decay
+        private static final int DecaySamples = 100;
+
+        private final ShakeMapGrid grid;
+        private final EventState state;
+        private final Shaking.Type type;
+        private PreparedModel model;
+        private final double scale;
+        private final IntensityFromAccelerationBatch gmicePGA;
+        private final IntensityFromVelocityBatch gmicePGV;
+        private final float[] values;
+        // first refinement pass not completed for the event
+        private final int firstPass;
+        private double[] distances = null;
+        // model parameter replaced by the onsite estimate near stations
+        private Shaking.Type onsiteType = null;
+
+        private double cutoffM = Double.POSITIVE_INFINITY;
+        private double fill = 0;
+
+        ShakeMapParameter(ShakeMapGrid grid, EventState state,
+                          Shaking.Type type, PreparedModel model, double scale,
+                          IntensityFromAccelerationBatch gmicePGA,
+                          IntensityFromVelocityBatch gmicePGV) {
+            this.grid = grid;
+            this.state = state;
+            this.type = type;
+            this.model = model;
+            this.scale = scale;
+            this.gmicePGA = gmicePGA;
+            this.gmicePGV = gmicePGV;
+            this.values = state.getValue(type, grid.size());
+            this.firstPass = state.shakeMapPasses;
+        }
+
+        /**
+         * Replaces the model by its distance profile if the profile requires
+         * less model evaluations than half of the grid points. Points closer
+         * than the cutoff resolution are evaluated by the model.
+         */
+        void createProfile(double minDistanceM, double maxDistanceM) {
+            if (profileStep <= 0 || surrogate != null) {
+                return;
+            }
+            RadialProfile profile = RadialProfile.create(
+                    model, gridAmplifications,
+                    Math.max(minDistanceM, CutoffResolutionM), maxDistanceM,
+                    profileStep, grid.size() / 2, false);
+            if (profile != null) {
+                LOG.debug(String.format("shake map %s profile: %d distances x %d "
+                                        + "amplification rows for %d grid points",
+                                        type.toString(), profile.getDistances(),
+                                        profile.getRows(), grid.size()));
+                model = profile;
+            }
+        }
+
+        void process(int from, int to) {
+            double[] lat = grid.getLatitude();
+            double[] lon = grid.getLongitude();
+            double[] elev = grid.getAltitude();
+            double[] ampli = grid.getAmplification();
+            double[] distances = model.supportsDistance() ? this.distances : null;
+            double[] values = gridScratch;
+
+            if (cutoffM == Double.POSITIVE_INFINITY) {
+                if (distances != null) {
+                    model.evaluate(distances, ampli, from, to, values, null, null);
+                } else {
+                    model.evaluate(lat, lon, elev, ampli, from, to, values, null, null);
+                }
+            } else {
+                EventContext event = model.getEvent();
+                for (int i = from; i < to; ++i) {
+                    double d = distances != null ? distances[i]
+                               : event.distance(lat[i], lon[i], elev[i]);
+                    if (d > cutoffM) {
+                        values[i] = fill;
                     } else {
-                        for (ShakeMapLayer.Point p : shakeMap.getPoints()) {
-                            p.value = gmpeInt.getInt(
-                                    event.magnitude, event.latitude, event.longitude,
-                                    event.depth, p.latitude, p.longitude, p.altitude,
-                                    ampliProxyName, p.amplification,
-                                    event.eventParameters,event.ruptureLength,event.ruptureStrike).expectedSI;
-                        }
+                        model.evaluate(d, ampli[i], i, values, null, null);
+                    }
+                }
+            }
+            if (onsiteType != null) {
+                OnsiteEstimate onsite = state.onsite;
+                for (int i = from; i < to; ++i) {
+                    int station = onsite.nearest(lat[i], lon[i]);
+                    if (station >= 0) {
+                        values[i] = onsite.getValue(onsiteType, station);
                     }
-                } else {
-                    success = false;
                 }
+            }
+            convert(from, to, values);
+            float[] result = this.values;
+            for (int i = from; i < to; ++i) {
+                result[i] = (float) values[i];
+            }
+        }
 
-                if (success) {
-                    LOG.debug(String.format("%d grid points calculated in %.3fs",
-                                            shakeMap.getPoints().size(),
-                                            (double) (System.currentTimeMillis() - start) / 1000.0));
-                } else {
-                    LOG.warn("no implementation found for "
-                             + Application.PropertySMParameter + " "
-                             + shakeMapParameter.toString());
+        /**
+         * Converts model values to display units
+         */
+        private void convert(int from, int to, double[] values) {
+            if (gmicePGA != null) {
+                gmicePGA.getIntensityFromAcceleration(from, to, values, null, null);
+            } else if (gmicePGV != null) {
+                gmicePGV.getIntensityFromVelocity(from, to, values, null, null);
+            } else if (scale != 1) {
+                for (int i = from; i < to; ++i) {
+                    values[i] *= scale;
                 }
+            }
+        }
 
-                shakeMap.updateImage(success);
+        /**
+         * Evaluates the model at the given distance for the minimum and
+         * maximum amplification of the grid and stores the model value of the
+         * stronger shaking at index 0 and its display value at index 1 of the
+         * result array.
+         */
+        private void evaluate(double distanceM, double[] ampliRange,
+                              double[] result) {
+            double[] value = new double[2];
+            double[] display = new double[2];
+            for (int i = 0; i < 2; ++i) {
+                model.evaluate(distanceM, ampliRange[i], i, value, null, null);
             }
+            System.arraycopy(value, 0, display, 0, 2);
+            convert(0, 2, display);
+            int i = display[0] >= display[1] || display[1] != display[1] ? 0 : 1;
+            result[0] = value[i];
+            result[1] = display[i];
+        }
+
+        /**
+         * Determines the cutoff distance by bisection. Requires a model
+         * decaying monotonically with distance beyond the cutoff, which is
+         * checked by sampling the model up to the maximum distance.
+         */
+        private void prune() {
+            cutoffM = Double.POSITIVE_INFINITY;
+            if (!model.supportsDistance() || grid.isEmpty()) {
+                return;
+            }
+
+            double[] ampliRange = {Double.MAX_VALUE, -Double.MAX_VALUE};
+            double[] ampli = grid.getAmplification();
+            for (int i = 0; i < grid.size(); ++i) {
+                ampliRange[0] = Math.min(ampliRange[0], ampli[i]);
+                ampliRange[1] = Math.max(ampliRange[1], ampli[i]);
+            }
+
+            double[] result = new double[2];
+            double hi = MaxDistanceM;
+            evaluate(hi, ampliRange, result);
+            if (!shakeMap.isMinimumColor(type, result[1])) {
+                return;
+            }
+            double hiValue = result[0];
+
+            double lo = CutoffResolutionM;
+            evaluate(lo, ampliRange, result);
+            if (shakeMap.isMinimumColor(type, result[1])) {
+                hi = lo;
+                hiValue = result[0];
+            } else {
+                while (hi - lo > CutoffResolutionM) {
+                    double mid = 0.5 * (lo + hi);
+                    evaluate(mid, ampliRange, result);
+                    if (shakeMap.isMinimumColor(type, result[1])) {
+                        hi = mid;
+                        hiValue = result[0];
+                    } else {
+                        lo = mid;
+                    }
+                }
+            }
+
+            // check decay beyond the cutoff on a logarithmic distance scale
+            double factor = Math.pow(MaxDistanceM / hi, 1.0 / DecaySamples);
+            for (double d = hi * factor; d < MaxDistanceM; d *= factor) {
+                evaluate(d, ampliRange, result);
+                if (!shakeMap.isMinimumColor(type, result[1])) {
+                    LOG.debug(String.format("shake map %s model does not decay "
+                                            + "monotonically at %.1fkm, pruning "
+                                            + "disabled", type.toString(), d / 1000));
+                    return;
+                }
+            }
+
+            cutoffM = hi;
+            fill = hiValue;
+            LOG.debug(String.format("shake map %s cutoff distance: %.1fkm",
+                                    type.toString(), hi / 1000));
+        }
+    }
+
+    /**
+     * @return factor converting the model values of a shaking parameter to
+     * display units, i.e. acceleration in g, velocity in cm/s and
+     * displacement in cm
+     */
+    public static double displayScale(Shaking.Type type) {
+        if (type == Shaking.Type.PGA || type == Shaking.Type.PSA) {
+            return Application.EarthAcceleration1;
+        } else if (type == Shaking.Type.PGV || type == Shaking.Type.DRS) {
+            return 100;
+        }
+        return 1;
+    }
+
+    /**
+     * Computation state of one active event
+     */
+    private class EventState {
+
+        private final String key;
+        private EventData event = null;
+        private EventContext context = null;
+        private OnsiteEstimate onsite = null;
+        private PreparedSpectrum spectrum = null;
+        private LazySpectrum lazySpectrum = null;
+        // spectra of all targets computed for the current update
+        private boolean spectraValid = false;
+        // shake map of the current update completed respectively number of
+        // refinement passes completed before the computation was degraded
+        private boolean shakeMapValid = false;
+        private int shakeMapPasses = 0;
+
+        private final DistanceRaster targetDistances;
+        private final DistanceRaster stationDistances;
+        // distances of the shake map grid while the shake map is computed
+        private DistanceRaster gridDistances = null;
+
+        // shaking and spectrum per target, shaking per station
+        private final List<Map<Shaking.Type, Shaking>> shakingValues;
+        private final List<List<Shaking>> spectralValues;
+        private final List<Map<Shaking.Type, Shaking>> stationValues;
+
+        // shake map values per parameter, allocated on first use of a
+        // configured parameter
+        private final float[][] gridValues;
+        private final Set<Shaking.Type> validTypes;
+
+        EventState(String key) {
+            this.key = key;
+            targetDistances = createRaster("targets", targetPoints);
+            stationDistances = createRaster("stations", stationPoints);
+            shakingValues = new ArrayList<>();
+            spectralValues = new ArrayList<>();
+            for (POI target : targetPoints) {
+                shakingValues.add(new EnumMap<Shaking.Type, Shaking>(Shaking.Type.class));
+                spectralValues.add(new ArrayList<Shaking>());
+            }
+            stationValues = new ArrayList<>();
+            for (POI station : stationPoints) {
+                stationValues.add(new EnumMap<Shaking.Type, Shaking>(Shaking.Type.class));
+            }
+            gridValues = new float[Shaking.Type.values().length][];
+            validTypes = EnumSet.noneOf(Shaking.Type.class);
+        }
+
+        private DistanceRaster createRaster(String name, POI[] points) {
+            double[] lat = new double[points.length];
+            double[] lon = new double[points.length];
+            double[] alt = new double[points.length];
+            for (int i = 0; i < points.length; ++i) {
+                lat[i] = points[i].latitude;
+                lon[i] = points[i].longitude;
+                alt[i] = points[i].altitude;
+            }
+            return new DistanceRaster(name, lat, lon, alt, points.length);
+        }
+
+        /**
+         * Assigns a distance raster of the shake map grid to the event,
+         * reusing a raster released by another event if available
+         *
+         * @return false if no shake map grid is available
+         */
+        boolean acquireGridDistances() {
+            if (gridDistances == null && shakeMap != null
+                && !shakeMap.getGrid().isEmpty()) {
+                gridDistances = gridRasters.poll();
+                if (gridDistances == null) {
+                    ShakeMapGrid grid = shakeMap.getGrid();
+                    gridDistances = new DistanceRaster(
+                            "shake map", grid.getLatitude(), grid.getLongitude(),
+                            grid.getAltitude(), grid.size());
+                }
+            }
+            return gridDistances != null;
+        }
+
+        /**
+         * Returns the distance raster of the shake map grid for reuse by other
+         * events
+         */
+        void releaseGridDistances() {
+            if (gridDistances != null) {
+                gridRasters.push(gridDistances);
+                gridDistances = null;
+            }
+        }
+
+        float[] getValue(Shaking.Type type, int size) {
+            float[] values = gridValues[type.ordinal()];
+            if (values == null) {
+                values = new float[size];
+                gridValues[type.ordinal()] = values;
+            }
+            return values;
         }
     }
 
+    private synchronized void finishComputation() {
+        computedEventIDs.clear();
+        cancellation = null;
+    }
+
     public void processEvent(EventData event) {
         LOG.debug("adding new event");
-        try {
-            queue.put(event);
-        } catch (InterruptedException ex) {
-            // should never happen since queue size is Interger.MAX_VALUE
-            LOG.error("put interrupted");
+        // a newer update of an event in computation outdates the running
+        // computation
+        synchronized (this) {
+            if (cancellation != null && event.eventID != null
+                && computedEventIDs.contains(event.eventID)) {
+                LOG.debug("cancelling computation of outdated event update");
+                cancellation.cancel();
+            }
         }
+        budget.arrived(eventKey(event));
+        mailbox.put(event);
+    }
+
+    private static String eventKey(EventData event) {
+        return event.eventID == null ? "" : event.eventID;
+    }
+
+    /**
+     * @return mailbox of event updates waiting for computation
+     */
+    public EventMailbox getMailbox() {
+        return mailbox;
     }
 }
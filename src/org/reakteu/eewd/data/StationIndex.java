@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import java.util.Arrays;
+import org.reakteu.eewd.utils.GeoCalc;
+
+/**
+ * Spatial index finding the nearest station within a fixed search radius. The
+ * stations are sorted into the cells of a uniform latitude/longitude grid with
+ * a cell size of the search radius. The occupied cells are kept in a sorted
+ * key array, so a query searches the few cells overlapping the radius, each
+ * in O(log n), and does not allocate any memory.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class StationIndex {
+
+    // length of one degree on the mean earth sphere (meter)
+    private static final double MetersPerDegree = GeoCalc.SemiMeanAxis * Math.PI / 180.0;
+
+    private final double[] latitude;
+    private final double[] longitude;
+    private final double radiusM;
+    private final double cellDeg;
+    private final double cellLon;
+    private final int rows;
+    private final int cols;
+
+    // sorted keys of the occupied cells, stations of cell i are
+    // order[cellStart[i]] to order[cellStart[i + 1] - 1]
+    private final long[] cellKeys;
+    private final int[] cellStart;
+    private final int[] order;
+
+    /**
+     * @param latitude station latitudes (degree)
+     * @param longitude station longitudes (degree)
+     * @param size number of stations
+     * @param radiusM search radius (meter)
+     */
+    public StationIndex(double[] latitude, double[] longitude, int size,
+                        double radiusM) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radiusM = radiusM;
+        this.cellDeg = Math.min(90.0, Math.max(radiusM / MetersPerDegree, 1e-6));
+        this.rows = (int) Math.ceil(180.0 / cellDeg) + 1;
+        // the columns divide the full circle to wrap around the date line
+        this.cols = (int) Math.ceil(360.0 / cellDeg);
+        this.cellLon = 360.0 / cols;
+
+        // sort the stations by cell key
+        long[] keys = new long[size];
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; ++i) {
+            keys[i] = key(row(latitude[i]), col(longitude[i]));
+            sorted[i] = keys[i];
+        }
+        Arrays.sort(sorted);
+        int cells = 0;
+        for (int i = 0; i < size; ++i) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[cells++] = sorted[i];
+            }
+        }
+        cellKeys = Arrays.copyOf(sorted, cells);
+        cellStart = new int[cells + 1];
+        for (int i = 0; i < size; ++i) {
+            ++cellStart[Arrays.binarySearch(cellKeys, keys[i]) + 1];
+        }
+        for (int i = 0; i < cells; ++i) {
+            cellStart[i + 1] += cellStart[i];
+        }
+        order = new int[size];
+        int[] fill = Arrays.copyOf(cellStart, cells);
+        for (int i = 0; i < size; ++i) {
+            order[fill[Arrays.binarySearch(cellKeys, keys[i])]++] = i;
+        }
+    }
+
+    public int size() {
+        return order.length;
+    }
+
+    public double getRadius() {
+        return radiusM;
+    }
+
+    /**
+     * Finds the station nearest to a point within the search radius
+     *
+     * @param lat latitude of the point (degree)
+     * @param lon longitude of the point (degree)
+     * @return index of the station or -1 if no station is within the radius
+     */
+    public int nearest(double lat, double lon) {
+        if (cellKeys.length == 0) {
+            return -1;
+        }
+
+        double radiusDeg = radiusM / MetersPerDegree;
+        int rowFrom = Math.max(0, row(lat - radiusDeg));
+        int rowTo = Math.min(rows - 1, row(lat + radiusDeg));
+
+        // longitude extent of the spherical cap, widens towards the poles
+        double sinRadius = Math.sin(Math.toRadians(radiusDeg));
+        double cosLat = Math.cos(Math.toRadians(lat));
+        int colFrom, colTo;
+        if (sinRadius >= cosLat) {
+            colFrom = 0;
+            colTo = cols - 1;
+        } else {
+            double radiusLon = Math.toDegrees(Math.asin(sinRadius / cosLat));
+            colFrom = (int) Math.floor((lon - radiusLon + 180.0) / cellLon);
+            colTo = (int) Math.floor((lon + radiusLon + 180.0) / cellLon);
+            if (colTo - colFrom >= cols) {
+                colFrom = 0;
+                colTo = cols - 1;
+            }
+        }
+
+        int best = -1;
+        double bestDistance = radiusM;
+        for (int r = rowFrom; r <= rowTo; ++r) {
+            for (int c = colFrom; c <= colTo; ++c) {
+                // wrap around the date line
+                int col = ((c % cols) + cols) % cols;
+                int cell = Arrays.binarySearch(cellKeys, key(r, col));
+                if (cell < 0) {
+                    continue;
+                }
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; ++i) {
+                    int station = order[i];
+                    double d = GeoCalc.Haversine(lat, lon, latitude[station],
+                                                 longitude[station]);
+                    // prefer the lower index for equal distances
+                    if (d < bestDistance
+                        || d == bestDistance && (best < 0 || station < best)) {
+                        best = station;
+                        bestDistance = d;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    private int row(double lat) {
+        return (int) Math.floor((Math.max(-90.0, Math.min(90.0, lat)) + 90.0) / cellDeg);
+    }
+
+    private int col(double lon) {
+        int c = (int) Math.floor((lon + 180.0) / cellLon);
+        return ((c % cols) + cols) % cols;
+    }
+
+    private long key(int row, int col) {
+        return (long) row * cols + col;
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reakteu.eewd.Application;
+
+/**
+ * Splits an index range into chunks and processes the chunks on a pool of
+ * worker threads. The pool type is read from the {@code processing.pool}
+ * property and may be one of {@code forkjoin}, {@code fixed} or
+ * {@code virtual}.
+ *
+ * The heap memory allocated by the work items is measured per thread, if
+ * supported by the Java runtime, while the allocation counter is enabled, see
+ * {@link #setAllocationCounter}. This allows to verify that the processing of
+ * a chunk does not allocate memory proportional to the chunk size, e.g. by
+ * misc/ShakeMapAllocationTest. If debug logging is enabled, the memory is
+ * measured as well and logged per worker together with the processing time.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class WorkerPool {
+
+    private static final Logger LOG = LogManager.getLogger(WorkerPool.class);
+
+    public static final String TypeForkJoin = "forkjoin";
+    public static final String TypeFixed = "fixed";
+    public static final String TypeVirtual = "virtual";
+
+    public static final int DefaultChunkSize = 1024;
+
+    private static final com.sun.management.ThreadMXBean ThreadBean = createThreadBean();
+
+    // heap memory allocated by the work items of all pools while the counter
+    // is enabled
+    private static volatile boolean countAllocations = false;
+    private static final AtomicLong AllocatedBytes = new AtomicLong();
+
+    /**
+     * Work item processing the half-open index range [from, to)
+     */
+    public interface Task {
+
+        public void process(int from, int to);
+    }
+
+    /**
+     * Flag to abort a running computation at chunk granularity. Chunks not
+     * yet started when the flag is set are skipped, chunks already in progress
+     * are completed.
+     */
+    public static class Cancellation {
+
+        private volatile boolean cancelled = false;
+        private final AtomicLong skipped = new AtomicLong();
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return number of items skipped because of the cancellation
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+    }
+
+    private final String type;
+    private final int threads;
+    private final int chunkSize;
+    private final ExecutorService executor;
+
+    public WorkerPool(String type, int threads, int chunkSize) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.chunkSize = chunkSize > 0 ? chunkSize : DefaultChunkSize;
+
+        ExecutorService e = null;
+        if (this.threads > 1) {
+            if (TypeVirtual.equals(type)) {
+                e = createVirtualExecutor();
+                if (e == null) {
+                    LOG.warn("virtual threads not supported by this Java runtime, "
+                             + "using fixed thread pool");
+                    type = TypeFixed;
+                }
+            }
+            if (e == null) {
+                if (TypeFixed.equals(type)) {
+                    e = Executors.newFixedThreadPool(this.threads, new DaemonThreadFactory());
+                } else {
+                    if (type != null && !TypeForkJoin.equals(type)) {
+                        LOG.warn("unknown worker pool type '" + type + "', using "
+                                 + TypeForkJoin);
+                    }
+                    type = TypeForkJoin;
+                    e = new ForkJoinPool(this.threads);
+                }
+            }
+        }
+        this.type = e == null ? "sequential" : type;
+        this.executor = e;
+
+        LOG.info(String.format("worker pool created, type: %s, threads: %d, chunk size: %d",
+                               this.type, this.threads, this.chunkSize));
+    }
+
+    /**
+     * Creates a worker pool configured by the application properties
+     *
+     * @return worker pool instance
+     */
+    public static WorkerPool create() {
+        Application app = Application.getInstance();
+        return new WorkerPool(
+                app.getProperty(Application.PropertyProcessingPool, TypeForkJoin),
+                app.getProperty(Application.PropertyProcessingThreads, 0),
+                app.getProperty(Application.PropertyProcessingChunkSize, DefaultChunkSize));
+    }
+
+    /**
+     * Enables or disables the counter of the heap memory allocated by the
+     * work items of all worker pools
+     *
+     * @return false if the allocated memory can not be measured by this Java
+     * runtime
+     */
+    public static boolean setAllocationCounter(boolean enabled) {
+        countAllocations = enabled;
+        return ThreadBean != null;
+    }
+
+    /**
+     * @return heap memory allocated by the work items of all worker pools
+     * while the counter was enabled (bytes), work items processed by threads
+     * not supported by the Java runtime, e.g. virtual threads, are not
+     * counted
+     */
+    public static long getAllocatedBytes() {
+        return AllocatedBytes.get();
+    }
+
+    public int getThreads() {
+        return executor == null ? 1 : threads;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Processes the index range [0, size) in chunks and blocks until all
+     * chunks are processed.
+     *
+     * @param name name of the work used in log messages
+     * @param size number of indices to process
+     * @param task work item called for each chunk
+     * @return true if all chunks were processed successfully
+     */
+    public boolean run(String name, int size, final Task task) {
+        return run(name, 0, size, task);
+    }
+
+    /**
+     * Processes the index range [from, to) in chunks and blocks until all
+     * chunks are processed.
+     *
+     * @param name name of the work used in log messages
+     * @param from first index to process
+     * @param to end index (exclusive)
+     * @param task work item called for each chunk
+     * @return true if all chunks were processed successfully
+     */
+    public boolean run(String name, int from, int to, final Task task) {
+        return run(name, from, to, task, null);
+    }
+
+    /**
+     * Processes the index range [from, to) in chunks and blocks until all
+     * chunks are processed or skipped because of a cancellation.
+     *
+     * @param name name of the work used in log messages
+     * @param from first index to process
+     * @param to end index (exclusive)
+     * @param task work item called for each chunk
+     * @param cancellation checked before each chunk, may be null
+     * @return true if all chunks were processed successfully, false if
+     * processing failed or was cancelled
+     */
+    public boolean run(String name, int from, int to, final Task task,
+                       final Cancellation cancellation) {
+        int size = to - from;
+        if (size <= 0) {
+            return true;
+        }
+
+        long start = System.nanoTime();
+
+        final boolean debug = LOG.isDebugEnabled();
+        final boolean measure = debug || countAllocations;
+
+        // sequential processing if only one chunk or no executor is available,
+        // the range is only split if it may be cancelled
+        if (executor == null || size <= chunkSize) {
+            long allocated = measure ? allocatedBytes() : -1;
+            int processed = 0;
+            try {
+                if (cancellation == null) {
+                    task.process(from, to);
+                    processed = size;
+                } else {
+                    for (int i = from; i < to; i += chunkSize) {
+                        if (cancellation.isCancelled()) {
+                            cancellation.skipped.addAndGet(to - i);
+                            break;
+                        }
+                        int t = Math.min(to, i + chunkSize);
+                        task.process(i, t);
+                        processed += t - i;
+                    }
+                }
+            } catch (RuntimeException re) {
+                LOG.error(name + ": processing failed", re);
+                return false;
+            }
+            if (measure) {
+                allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+                count(allocated);
+            }
+            if (debug) {
+                LOG.debug(String.format("%s: %d items processed by %s in %.3fs%s",
+                                        name, processed, Thread.currentThread().getName(),
+                                        (System.nanoTime() - start) / 1e9,
+                                        allocationInfo(allocated)));
+            }
+            return processed == size;
+        }
+
+        // statistics per worker: chunks, items, nanoseconds, allocated bytes
+        final Map<String, long[]> stats = new ConcurrentHashMap<>();
+        final AtomicLong skipped = new AtomicLong();
+        List<Callable<Void>> chunks = new ArrayList<>();
+        for (int i = from; i < to; i += chunkSize) {
+            final int f = i;
+            final int t = Math.min(to, i + chunkSize);
+            chunks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (cancellation != null && cancellation.isCancelled()) {
+                        cancellation.skipped.addAndGet(t - f);
+                        skipped.addAndGet(t - f);
+                        return null;
+                    }
+                    long a = measure ? allocatedBytes() : -1;
+                    long s = System.nanoTime();
+                    task.process(f, t);
+                    long d = System.nanoTime() - s;
+                    if (a >= 0) {
+                        a = allocatedBytes() - a;
+                        count(a);
+                    }
+                    Thread thread = Thread.currentThread();
+                    String worker = thread.getName().isEmpty()
+                                    ? "#" + thread.getId() : thread.getName();
+                    long[] stat = stats.get(worker);
+                    if (stat == null) {
+                        stat = new long[4];
+                        stats.put(worker, stat);
+                    }
+                    // each worker only updates its own statistics
+                    stat[0] += 1;
+                    stat[1] += t - f;
+                    stat[2] += d;
+                    stat[3] = a < 0 || stat[3] < 0 ? -1 : stat[3] + a;
+                    return null;
+                }
+            });
+        }
+
+        boolean success = true;
+        try {
+            for (Future<Void> future : executor.invokeAll(chunks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    LOG.error(name + ": processing of chunk failed", ee.getCause());
+                    success = false;
+                }
+            }
+        } catch (InterruptedException ie) {
+            LOG.warn(name + ": processing interrupted");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (debug) {
+            for (Map.Entry<String, long[]> e : stats.entrySet()) {
+                long[] stat = e.getValue();
+                LOG.debug(String.format("%s: worker %s processed %d items in %d chunks, %.3fs%s",
+                                        name, e.getKey(), stat[1], stat[0], stat[2] / 1e9,
+                                        allocationInfo(stat[3])));
+            }
+            LOG.debug(String.format("%s: %d items processed by %d workers in %.3fs",
+                                    name, size - skipped.get(), stats.size(),
+                                    (System.nanoTime() - start) / 1e9));
+        }
+        return success && skipped.get() == 0;
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean createThreadBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+                if (b.isThreadAllocatedMemorySupported()) {
+                    b.setThreadAllocatedMemoryEnabled(true);
+                    return b;
+                }
+            }
+        } catch (LinkageError | RuntimeException ex) {
+            // not available in this Java runtime
+        }
+        return null;
+    }
+
+    /**
+     * @return heap memory allocated by the current thread since its start or
+     * -1 if not supported
+     */
+    private static long allocatedBytes() {
+        if (ThreadBean == null) {
+            return -1;
+        }
+        // negative for threads not supported by the bean, e.g. virtual
+        // threads
+        long bytes = ThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        return bytes < 0 ? -1 : bytes;
+    }
+
+    private static void count(long bytes) {
+        if (countAllocations && bytes > 0) {
+            AllocatedBytes.addAndGet(bytes);
+        }
+    }
+
+    private static String allocationInfo(long bytes) {
+        return bytes < 0 ? "" : String.format(", %d bytes allocated", bytes);
+    }
+
+    private static ExecutorService createVirtualExecutor() {
+        // virtual threads are available since Java 21 only, use reflection to
+        // stay compatible with older runtimes
+        try {
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "shaking-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmice;
+
+/**
+ * Batch variant of {@link IntensityFromVelocity} converting the values
+ * [from, to) of primitive arrays in place. The percentile arrays may be null
+ * if only the median is of interest.
+ */
+public interface IntensityFromVelocityBatch {
+
+    public void getIntensityFromVelocity(int from, int to, double[] median,
+                                         double[] p16, double[] p84);
+
+}
@@ -7,8 +7,12 @@ package org.reakteu.eewd.gmice.impl;
 import org.reakteu.eewd.data.Shaking;
 import org.reakteu.eewd.gmice.IntensityFromVelocity;
 import org.reakteu.eewd.gmice.IntensityFromAcceleration;
+import org.reakteu.eewd.gmice.IntensityFromAccelerationBatch;
+import org.reakteu.eewd.gmice.IntensityFromVelocityBatch;
 
-public class Swiss implements IntensityFromVelocity, IntensityFromAcceleration {
+public class Swiss implements IntensityFromVelocity, IntensityFromAcceleration,
+                              IntensityFromVelocityBatch,
+                              IntensityFromAccelerationBatch {
 
     @Override
     public Shaking getIntensityFromVelocity(Shaking PGV) {
@@ -76,5 +80,36 @@ public class Swiss implements IntensityFromVelocity, IntensityFromAcceleration {
         return IfromPGA;
     }
 
+    @Override
+    public void getIntensityFromVelocity(int from, int to, double[] median,
+                                         double[] p16, double[] p84) {
+        // conversion equation assumes PGV in cm/s
+        convert(5.11, 2.35, from, to, median);
+        convert(5.11, 2.35, from, to, p16);
+        convert(5.11, 2.35, from, to, p84);
+    }
+
+    @Override
+    public void getIntensityFromAcceleration(int from, int to, double[] median,
+                                             double[] p16, double[] p84) {
+        // conversion equation assumes PGA in cm/s2
+        convert(1.68, 2.58, from, to, median);
+        convert(1.68, 2.58, from, to, p16);
+        convert(1.68, 2.58, from, to, p84);
+    }
 
+    /**
+     * Converts the values [from, to) in place: I = c0 + c1 * log10(100 * x),
+     * with a minimum intensity of 1
+     */
+    private static void convert(double c0, double c1, int from, int to,
+                                double[] values) {
+        if (values == null) {
+            return;
+        }
+        for (int i = from; i < to; ++i) {
+            double I = c0 + c1 * Math.log10(100 * values[i]);
+            values[i] = I < 1 ? 1 : I;
+        }
+    }
 }
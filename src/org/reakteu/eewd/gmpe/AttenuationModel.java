@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+
+/**
+ * Attenuation implementation supporting a two-phase evaluation: all terms
+ * depending on the source and the spectral period are computed once per event
+ * by {@link #prepare}, the returned model only computes the site dependent
+ * terms per target point.
+ */
+public interface AttenuationModel {
+
+    /**
+     * Prepares the model for one event and shaking parameter
+     *
+     * @param event source parameters
+     * @param type shaking parameter
+     * @param period spectral period, only used for PSA and DRS
+     * @return prepared model or null if the shaking parameter is not supported
+     */
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period);
+
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+
+/**
+ * Attenuation implementation computing all periods of a response spectrum in
+ * one call, sharing the period independent terms of a target point
+ */
+public interface AttenuationSpectrum {
+
+    /**
+     * Prepares the model for one event and all periods of a spectrum
+     *
+     * @param event source parameters
+     * @param type spectral shaking parameter, PSA or DRS
+     * @param periods spectral periods
+     * @return prepared spectrum or null if the shaking parameter is not
+     * supported
+     */
+    public PreparedSpectrum prepareSpectrum(EventContext event, Shaking.Type type,
+                                            double[] periods);
+
+}
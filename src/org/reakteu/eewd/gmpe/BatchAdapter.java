@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+import org.reakteu.eewd.gmice.IntensityFromAcceleration;
+import org.reakteu.eewd.gmice.IntensityFromAccelerationBatch;
+import org.reakteu.eewd.gmice.IntensityFromVelocity;
+import org.reakteu.eewd.gmice.IntensityFromVelocityBatch;
+import org.reakteu.eewd.ipe.AttenuationInt;
+
+/**
+ * Provides prepared access to attenuation implementations and batch access to
+ * ground motion to intensity conversions. Implementations already supporting
+ * {@link AttenuationModel} or the batch conversion interface are used
+ * directly, scalar implementations are wrapped and called once per target
+ * point.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class BatchAdapter {
+
+    private BatchAdapter() {
+    }
+
+    private static void store(Shaking s, int i, double[] outMedian,
+                              double[] out16, double[] out84) {
+        outMedian[i] = s.expectedSI;
+        if (out16 != null) {
+            out16[i] = s.percentile16;
+        }
+        if (out84 != null) {
+            out84[i] = s.percentile84;
+        }
+    }
+
+    /**
+     * Converts the values [from, to) with a scalar ground motion to intensity
+     * conversion, reusing one input object for all values
+     */
+    private static abstract class ScalarConversion {
+
+        private final Shaking in = new Shaking();
+
+        abstract Shaking convert(Shaking s);
+
+        void convert(int from, int to, double[] median, double[] p16,
+                     double[] p84) {
+            for (int i = from; i < to; ++i) {
+                in.expectedSI = median[i];
+                in.percentile16 = p16 == null ? 0 : p16[i];
+                in.percentile84 = p84 == null ? 0 : p84[i];
+                store(convert(in), i, median, p16, p84);
+            }
+        }
+    }
+
+    public static IntensityFromAccelerationBatch gmicePGA(
+            final IntensityFromAcceleration impl) {
+        if (impl == null || impl instanceof IntensityFromAccelerationBatch) {
+            return (IntensityFromAccelerationBatch) impl;
+        }
+        return new IntensityFromAccelerationBatch() {
+            @Override
+            public void getIntensityFromAcceleration(int from, int to,
+                                                     double[] median,
+                                                     double[] p16,
+                                                     double[] p84) {
+                new ScalarConversion() {
+                    @Override
+                    Shaking convert(Shaking s) {
+                        return impl.getIntensityFromAcceleration(s);
+                    }
+                }.convert(from, to, median, p16, p84);
+            }
+        };
+    }
+
+    public static IntensityFromVelocityBatch gmicePGV(
+            final IntensityFromVelocity impl) {
+        if (impl == null || impl instanceof IntensityFromVelocityBatch) {
+            return (IntensityFromVelocityBatch) impl;
+        }
+        return new IntensityFromVelocityBatch() {
+            @Override
+            public void getIntensityFromVelocity(int from, int to,
+                                                 double[] median,
+                                                 double[] p16,
+                                                 double[] p84) {
+                new ScalarConversion() {
+                    @Override
+                    Shaking convert(Shaking s) {
+                        return impl.getIntensityFromVelocity(s);
+                    }
+                }.convert(from, to, median, p16, p84);
+            }
+        };
+    }
+
+    /**
+     * Prepares an attenuation implementation for one event and shaking
+     * parameter. Scalar implementations not supporting {@link AttenuationModel}
+     * are wrapped, their distance based evaluation is not supported.
+     *
+     * @param impl attenuation implementation, e.g. {@link AttenuationPGA}
+     * @param event source parameters
+     * @param type shaking parameter
+     * @param period spectral period, only used for PSA and DRS
+     * @return prepared model or null if the implementation does not support
+     * the shaking parameter
+     */
+    public static PreparedModel prepare(Object impl, EventContext event,
+                                        Shaking.Type type, double period) {
+        if (impl instanceof AttenuationModel) {
+            return ((AttenuationModel) impl).prepare(event, type, period);
+        }
+        if ((type == Shaking.Type.PGA && impl instanceof AttenuationPGA)
+            || (type == Shaking.Type.PGV && impl instanceof AttenuationPGV)
+            || (type == Shaking.Type.PSA && impl instanceof AttenuationPSA)
+            || (type == Shaking.Type.DRS && impl instanceof AttenuationDRS)
+            || (type == Shaking.Type.Intensity && impl instanceof AttenuationInt)) {
+            return new ScalarModel(impl, event, type, period);
+        }
+        return null;
+    }
+
+    /**
+     * Prepares an attenuation implementation for one event and all periods of
+     * a spectrum. Implementations not supporting {@link AttenuationSpectrum}
+     * are prepared once per period.
+     *
+     * @param impl attenuation implementation, e.g. {@link AttenuationPSA}
+     * @param event source parameters
+     * @param type spectral shaking parameter, PSA or DRS
+     * @param periods spectral periods
+     * @return prepared spectrum or null if the implementation does not
+     * support the shaking parameter
+     */
+    public static PreparedSpectrum prepareSpectrum(Object impl, EventContext event,
+                                                   Shaking.Type type,
+                                                   double[] periods) {
+        if (impl instanceof AttenuationSpectrum) {
+            return ((AttenuationSpectrum) impl).prepareSpectrum(event, type, periods);
+        }
+        PreparedModel[] models = new PreparedModel[periods.length];
+        for (int i = 0; i < periods.length; ++i) {
+            models[i] = prepare(impl, event, type, periods[i]);
+        }
+        return spectrum(event, periods, models);
+    }
+
+    /**
+     * Combines the prepared models of the single periods to a spectrum
+     *
+     * @param models prepared model per period
+     * @return spectrum or null if any of the models is null
+     */
+    public static PreparedSpectrum spectrum(EventContext event, double[] periods,
+                                            PreparedModel[] models) {
+        for (PreparedModel model : models) {
+            if (model == null) {
+                return null;
+            }
+        }
+        return new ModelSpectrum(event, periods, models);
+    }
+
+    /**
+     * Spectrum evaluating one prepared model per period, only the distance of
+     * a target point is shared
+     */
+    private static class ModelSpectrum extends PreparedSpectrum {
+
+        private final PreparedModel[] models;
+        private final boolean distance;
+
+        ModelSpectrum(EventContext event, double[] periods,
+                      PreparedModel[] models) {
+            super(event, periods);
+            this.models = models;
+            boolean distance = true;
+            for (PreparedModel model : models) {
+                distance &= model.supportsDistance();
+            }
+            this.distance = distance;
+        }
+
+        @Override
+        public boolean supportsDistance() {
+            return distance;
+        }
+
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             double[] outMedian, double[] out16, double[] out84) {
+            for (int i = 0; i < models.length; ++i) {
+                models[i].evaluate(distanceM, amplificationProxyValueSI, i,
+                                   outMedian, out16, out84);
+            }
+        }
+
+        @Override
+        public void evaluate(double targetLat, double targetLon,
+                             double targetElevM, double amplificationProxyValueSI,
+                             double[] outMedian, double[] out16, double[] out84) {
+            if (distance) {
+                super.evaluate(targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI, outMedian, out16, out84);
+                return;
+            }
+            for (int i = 0; i < models.length; ++i) {
+                store(models[i].evaluate(targetLat, targetLon, targetElevM,
+                                         amplificationProxyValueSI),
+                      i, outMedian, out16, out84);
+            }
+        }
+    }
+
+    /**
+     * Prepared model calling a scalar implementation once per target point
+     */
+    private static class ScalarModel extends PreparedModel {
+
+        private final Object impl;
+        private final Shaking.Type type;
+        private final double period;
+
+        ScalarModel(Object impl, EventContext event, Shaking.Type type,
+                    double period) {
+            super(event);
+            this.impl = impl;
+            this.type = type;
+            this.period = period;
+        }
+
+        @Override
+        public boolean supportsDistance() {
+            return false;
+        }
+
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            throw new UnsupportedOperationException(
+                    impl.getClass().getName() + " does not support distance based evaluation");
+        }
+
+        @Override
+        public void evaluate(double[] targetLat, double[] targetLon,
+                             double[] targetElevM, double[] amplificationProxyValueSI,
+                             int from, int to,
+                             double[] outMedian, double[] out16, double[] out84) {
+            for (int i = from; i < to; ++i) {
+                store(evaluate(targetLat[i], targetLon[i], targetElevM[i],
+                               amplificationProxyValueSI[i]),
+                      i, outMedian, out16, out84);
+            }
+        }
+
+        @Override
+        public Shaking evaluate(double targetLat, double targetLon,
+                                double targetElevM, double amplificationProxyValueSI) {
+            switch (type) {
+                case PGA:
+                    return ((AttenuationPGA) impl).getPGA(
+                            event.magnitude, event.latitude, event.longitude,
+                            event.depth, targetLat, targetLon, targetElevM,
+                            event.amplificationType, amplificationProxyValueSI,
+                            event.eventParameters, event.ruptureLength,
+                            event.ruptureStrike);
+                case PGV:
+                    return ((AttenuationPGV) impl).getPGV(
+                            event.magnitude, event.latitude, event.longitude,
+                            event.depth, targetLat, targetLon, targetElevM,
+                            event.amplificationType, amplificationProxyValueSI,
+                            event.eventParameters, event.ruptureLength,
+                            event.ruptureStrike);
+                case PSA:
+                    return ((AttenuationPSA) impl).getPSA(
+                            event.magnitude, event.latitude, event.longitude,
+                            event.depth, targetLat, targetLon, targetElevM,
+                            event.amplificationType, amplificationProxyValueSI,
+                            period, event.eventParameters, event.ruptureLength,
+                            event.ruptureStrike);
+                case DRS:
+                    return ((AttenuationDRS) impl).getDRS(
+                            event.magnitude, event.latitude, event.longitude,
+                            event.depth, targetLat, targetLon, targetElevM,
+                            event.amplificationType, amplificationProxyValueSI,
+                            period, event.eventParameters, event.ruptureLength,
+                            event.ruptureStrike);
+                default:
+                    return ((AttenuationInt) impl).getInt(
+                            event.magnitude, event.latitude, event.longitude,
+                            event.depth, targetLat, targetLon, targetElevM,
+                            event.amplificationType, amplificationProxyValueSI,
+                            event.eventParameters, event.ruptureLength,
+                            event.ruptureStrike);
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reakteu.eewd.Application;
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+
+/**
+ * Optional cache of attenuation model results shared by all event updates.
+ * Results are keyed by the model implementation, shaking parameter, period,
+ * the quantized source parameters, the quantized distance and the site
+ * amplification. Consecutive updates of an event differing only slightly and
+ * grid points sharing the same amplification value reuse the cached results.
+ *
+ * The cached models are evaluated on the quantized inputs: the source
+ * dependent terms are prepared for the magnitude, location and depth rounded
+ * to the configured steps and the site terms are evaluated at the center of
+ * the distance step. The distance is quantized on its floating point
+ * representation, i.e. exponent and leading mantissa bits, which yields a
+ * relative step of a power of 2 not larger than the configured step without
+ * computing a logarithm. Results are therefore independent of the cache
+ * content but differ from the exact model values by the model variation
+ * within one step. Only models supporting the distance based evaluation are
+ * cached, the results of scalar implementations may depend on the target
+ * coordinates in other ways.
+ *
+ * The cache has a bounded size. Each key maps to a bucket of a few entries,
+ * an entry of a full bucket is replaced using the CLOCK algorithm, i.e. the
+ * first entry not referenced since the last pass of the clock hand. Entries
+ * are immutable, so lookups do not lock, only insertions are guarded by
+ * striped locks. The cache may be used by the workers of the worker pool
+ * concurrently.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class ModelCache {
+
+    private static final Logger LOG = LogManager.getLogger(ModelCache.class);
+
+    public static final int DefaultSize = 1 << 18;
+    public static final double DefaultMagnitudeStep = 0.05;
+    public static final double DefaultLocationStep = 0.01;
+    public static final double DefaultDepthStep = 1000;
+    public static final double DefaultDistanceStep = 0.005;
+
+    // entries per bucket
+    private static final int Ways = 8;
+    // number of locks, power of 2
+    private static final int Stripes = 64;
+    // source keys kept before the source ids are reset
+    private static final int MaxSources = 10000;
+    // distances below are evaluated at this distance (meter)
+    private static final double MinDistanceM = 1;
+    // maximum number of mantissa bits of the distance key
+    private static final int MaxDistanceBits = 20;
+
+    private final double magnitudeStep;
+    private final double locationStep;
+    private final double depthStep;
+    // the distance key are the bits of the double value above this shift
+    private final int distanceShift;
+
+    private final int bucketMask;
+    private final Object[] locks;
+    // entries of all buckets, null marks an empty entry, replaced under the
+    // stripe lock
+    private final Entry[] entries;
+    private final boolean[] referenced;
+    private final int[] hands;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Integer> sourceIDs = new ConcurrentHashMap<>();
+    private final AtomicInteger nextSourceID = new AtomicInteger(1);
+
+    // median and percentile output per thread for evaluations on a miss
+    private final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+        @Override
+        protected double[][] initialValue() {
+            return new double[3][1];
+        }
+    };
+
+    /**
+     * @param size maximum number of cached results
+     * @param magnitudeStep quantization step of the magnitude
+     * @param locationStep quantization step of the source latitude and
+     * longitude (degree)
+     * @param depthStep quantization step of the source depth (meter)
+     * @param distanceStep relative quantization step of the distance
+     */
+    public ModelCache(int size, double magnitudeStep, double locationStep,
+                      double depthStep, double distanceStep) {
+        this.magnitudeStep = magnitudeStep;
+        this.locationStep = locationStep;
+        this.depthStep = depthStep;
+        // mantissa bits kept for a relative step not larger than the
+        // configured one, at most 20 bits for the key to fit into an int
+        int bits = distanceStep > 0 && distanceStep < 1
+                   ? (int) Math.ceil(-Math.log(distanceStep) / Math.log(2)) : 0;
+        this.distanceShift = 52 - Math.min(bits, MaxDistanceBits);
+
+        int buckets = Integer.highestOneBit(Math.max(Stripes, size / Ways));
+        bucketMask = buckets - 1;
+        int n = buckets * Ways;
+        entries = new Entry[n];
+        referenced = new boolean[n];
+        hands = new int[buckets];
+        locks = new Object[Stripes];
+        for (int i = 0; i < Stripes; ++i) {
+            locks[i] = new Object();
+        }
+
+        LOG.info(String.format("model cache created, entries: %d, magnitude step: %s, "
+                               + "location step: %s, depth step: %s, distance step: %s",
+                               n, magnitudeStep, locationStep, depthStep,
+                               Math.scalb(1.0, distanceShift - 52)));
+    }
+
+    /**
+     * Creates the model cache configured by the application properties
+     *
+     * @return cache instance or null if the cache is disabled
+     */
+    public static ModelCache create() {
+        Application app = Application.getInstance();
+        if (!app.getProperty(Application.PropertyModelCacheEnabled, false)) {
+            return null;
+        }
+        return new ModelCache(
+                app.getProperty(Application.PropertyModelCacheSize, DefaultSize),
+                app.getProperty(Application.PropertyModelCacheMagnitudeStep, DefaultMagnitudeStep),
+                app.getProperty(Application.PropertyModelCacheLocationStep, DefaultLocationStep),
+                app.getProperty(Application.PropertyModelCacheDepthStep, DefaultDepthStep),
+                app.getProperty(Application.PropertyModelCacheDistanceStep, DefaultDistanceStep));
+    }
+
+    /**
+     * Prepares a model for an event, see
+     * {@link BatchAdapter#prepare(Object, EventContext, Shaking.Type, double)}.
+     * If supported the returned model uses the cache.
+     *
+     * @return prepared model or null if the implementation does not support
+     * the shaking parameter
+     */
+    public PreparedModel prepare(Object impl, EventContext event,
+                                 Shaking.Type type, double period) {
+        if (impl == null) {
+            return null;
+        }
+
+        EventContext quantized = new EventContext(
+                quantize(event.magnitude, magnitudeStep),
+                quantize(event.latitude, locationStep),
+                quantize(event.longitude, locationStep),
+                quantize(event.depth, depthStep),
+                event.amplificationType, event.eventParameters,
+                event.ruptureLength, event.ruptureStrike);
+        PreparedModel model = BatchAdapter.prepare(impl, quantized, type, period);
+        if (model == null || !model.supportsDistance()) {
+            return BatchAdapter.prepare(impl, event, type, period);
+        }
+
+        String key = impl.getClass().getName() + "@" + System.identityHashCode(impl)
+                     + "/" + type + "/" + period + "/" + quantized.magnitude
+                     + "/" + quantized.latitude + "/" + quantized.longitude
+                     + "/" + quantized.depth + "/" + quantized.amplificationType
+                     + "/" + quantized.ruptureLength + "/" + quantized.ruptureStrike;
+        Integer id = sourceIDs.get(key);
+        if (id == null) {
+            if (sourceIDs.size() >= MaxSources) {
+                // the entries of the dropped ids are evicted eventually
+                sourceIDs.clear();
+            }
+            id = nextSourceID.getAndIncrement();
+            if (id <= 0) {
+                // wrapped around, never reuse the empty marker
+                nextSourceID.set(1);
+                id = nextSourceID.getAndIncrement();
+            }
+            Integer previous = sourceIDs.putIfAbsent(key, id);
+            if (previous != null) {
+                id = previous;
+            }
+        }
+        return new CachedModel(event, model, id);
+    }
+
+    private static double quantize(double value, double step) {
+        return step > 0 ? Math.round(value / step) * step : value;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return hit ratio and counters as log message
+     */
+    public String getStatistics() {
+        long hits = getHits();
+        long misses = getMisses();
+        return String.format("model cache: %d hits, %d misses, %.1f%% hit ratio, %d evictions",
+                             hits, misses,
+                             hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses),
+                             getEvictions());
+    }
+
+    /**
+     * Looks up the result of a model or evaluates and stores it
+     *
+     * @return true on a cache hit
+     */
+    private boolean evaluate(PreparedModel model, int source, double distanceM,
+                             double ampli, int index, double[] outMedian,
+                             double[] out16, double[] out84) {
+        // the bits of a positive double are monotonic in its value
+        long bits = Double.doubleToRawLongBits(Math.max(MinDistanceM, distanceM));
+        int q = (int) (bits >>> distanceShift);
+        long a = Double.doubleToRawLongBits(ampli);
+
+        long h = (source * 0x9E3779B97F4A7C15L) ^ (q * 0xC2B2AE3D27D4EB4FL) ^ a;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        int bucket = (int) h & bucketMask;
+        int first = bucket * Ways;
+
+        for (int i = first; i < first + Ways; ++i) {
+            Entry e = entries[i];
+            if (e != null && e.source == source && e.distance == q
+                && e.amplification == a) {
+                referenced[i] = true;
+                e.store(index, outMedian, out16, out84);
+                return true;
+            }
+        }
+
+        // evaluate at the center of the distance step
+        double center = Double.longBitsToDouble(
+                ((long) q << distanceShift) | 1L << (distanceShift - 1));
+        double[][] tmp = scratch.get();
+        model.evaluate(center, ampli, 0, tmp[0], tmp[1], tmp[2]);
+        Entry entry = new Entry(source, q, a, tmp[0][0], tmp[1][0], tmp[2][0]);
+
+        synchronized (locks[bucket & (Stripes - 1)]) {
+            int slot = -1;
+            for (int i = first; i < first + Ways; ++i) {
+                Entry e = entries[i];
+                if (e == null || e.source == source && e.distance == q
+                                 && e.amplification == a) {
+                    slot = i;
+                    break;
+                }
+            }
+            if (slot < 0) {
+                // CLOCK: clear the reference bits until an entry not
+                // referenced since the last pass is found
+                int hand = hands[bucket];
+                while (referenced[first + hand]) {
+                    referenced[first + hand] = false;
+                    hand = (hand + 1) % Ways;
+                }
+                slot = first + hand;
+                hands[bucket] = (hand + 1) % Ways;
+                evictions.incrementAndGet();
+            }
+            entries[slot] = entry;
+            referenced[slot] = false;
+        }
+
+        entry.store(index, outMedian, out16, out84);
+        return false;
+    }
+
+    /**
+     * Cached model result, immutable to be read without locking
+     */
+    private static class Entry {
+
+        final int source;
+        final int distance;
+        final long amplification;
+        final double median;
+        final double p16;
+        final double p84;
+
+        Entry(int source, int distance, long amplification, double median,
+              double p16, double p84) {
+            this.source = source;
+            this.distance = distance;
+            this.amplification = amplification;
+            this.median = median;
+            this.p16 = p16;
+            this.p84 = p84;
+        }
+
+        void store(int index, double[] outMedian, double[] out16,
+                   double[] out84) {
+            outMedian[index] = median;
+            if (out16 != null) {
+                out16[index] = p16;
+            }
+            if (out84 != null) {
+                out84[index] = p84;
+            }
+        }
+    }
+
+    /**
+     * Model evaluating the wrapped model through the cache. The distances
+     * are computed for the exact event location, only the source terms and
+     * the distance passed to the wrapped model are quantized.
+     */
+    private class CachedModel extends PreparedModel {
+
+        private final PreparedModel model;
+        private final int source;
+
+        CachedModel(EventContext event, PreparedModel model, int source) {
+            super(event);
+            this.model = model;
+            this.source = source;
+        }
+
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            if (ModelCache.this.evaluate(model, source, distanceM,
+                                         amplificationProxyValueSI, index,
+                                         outMedian, out16, out84)) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void evaluate(double[] distanceM, double[] amplificationProxyValueSI,
+                             int from, int to,
+                             double[] outMedian, double[] out16, double[] out84) {
+            // count per range to keep the shared counters out of the loop
+            int hit = 0;
+            for (int i = from; i < to; ++i) {
+                if (ModelCache.this.evaluate(model, source, distanceM[i],
+                                             amplificationProxyValueSI[i], i,
+                                             outMedian, out16, out84)) {
+                    ++hit;
+                }
+            }
+            hits.addAndGet(hit);
+            misses.addAndGet(to - from - hit);
+        }
+    }
+}
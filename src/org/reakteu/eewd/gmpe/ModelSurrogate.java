@@ -0,0 +1,729 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reakteu.eewd.Application;
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+import org.reakteu.eewd.data.WorkerPool;
+
+/**
+ * Replaces attenuation models by tables interpolated linearly over magnitude,
+ * distance and site amplification, similar to
+ * {@link org.reakteu.eewd.gmpe.impl.LookupTable}. A table of a model for a
+ * shaking parameter and period is created in the background by evaluating the
+ * model on the table nodes in parallel, either ahead of the first event by
+ * {@link #prepareTable} or when no table matches the source of an event.
+ * Until the table is available the model itself is evaluated, so an event
+ * never waits for the creation of a table.
+ *
+ * The distance nodes are spaced logarithmically: each octave of the distance
+ * range is divided into 2^n intervals, so the interval of a distance is given
+ * by the exponent and the leading mantissa bits of its floating point
+ * representation without computing a logarithm. The node density is
+ * increased until the relative error measured between the nodes is below the
+ * configured maximum error or the maximum number of nodes is reached. Cells
+ * still exceeding the maximum error, e.g. at discontinuities of the model, are
+ * evaluated by the model itself. The measured error is logged.
+ *
+ * The amplification nodes are the distinct amplification values of the
+ * points to compute, so these are reproduced exactly. If there are too many
+ * distinct values an evenly spaced range is used.
+ *
+ * Apart from the magnitude the model may depend on other source parameters,
+ * e.g. the region or the depth of the source. A table is therefore only used
+ * for an event if the model prepared for the event matches the table at a set
+ * of probe distances. Otherwise a further table is created for the source of
+ * the event in the background. Events outside of the magnitude range, distances outside of the
+ * distance range and models not supporting the distance based evaluation are
+ * evaluated by the model itself.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class ModelSurrogate {
+
+    private static final Logger LOG = LogManager.getLogger(ModelSurrogate.class);
+
+    public static final double DefaultMaxError = 0.01;
+    public static final double DefaultMinMagnitude = 2.0;
+    public static final double DefaultMaxMagnitude = 8.5;
+    public static final double DefaultMinDistance = 1;
+    public static final double DefaultMaxDistance = 1000;
+    public static final int DefaultMaxNodes = 1 << 20;
+
+    // maximum number of distinct amplification values used as nodes
+    private static final int MaxAmplifications = 64;
+    // initial node spacing, distance intervals per octave as power of 2
+    private static final double InitialMagnitudeStep = 0.1;
+    private static final int InitialDistanceBits = 3;
+    private static final int MaxDistanceBits = 20;
+    // fraction of cells exceeding the maximum error accepted without
+    // further refinement
+    private static final double MaxInvalidCells = 0.005;
+    // tables per model, parameter and period for different sources
+    private static final int MaxVariants = 4;
+    // number of distances checked before a table is used for an event
+    private static final int ProbeDistances = 8;
+    // depth of the source of tables created ahead of the first event (meter)
+    private static final double ReferenceDepthM = 10000;
+
+    private final WorkerPool pool;
+    private final double maxError;
+    private final double minMagnitude;
+    private final double maxMagnitude;
+    private final double minDistanceM;
+    private final double maxDistanceM;
+    private final int maxNodes;
+    private final double[] amplifications;
+    private final boolean exactAmplifications;
+
+    // tables by model key, most recently used first, and keys of the tables
+    // in creation, guarded by this
+    private final Map<String, List<Table>> tables = new HashMap<>();
+    private final Set<String> creating = new HashSet<>();
+    // creates the tables one after another, the table nodes are evaluated by
+    // the worker pool
+    private final ExecutorService creator;
+
+    /**
+     * @param pool worker pool used to evaluate the table nodes
+     * @param amplifications amplification values of the points to compute
+     * @param maxError maximum relative error
+     * @param minMagnitude lower bound of the magnitude range
+     * @param maxMagnitude upper bound of the magnitude range
+     * @param minDistanceM lower bound of the distance range (meter)
+     * @param maxDistanceM upper bound of the distance range (meter)
+     * @param maxNodes maximum number of nodes per table
+     */
+    public ModelSurrogate(WorkerPool pool, double[] amplifications,
+                          double maxError, double minMagnitude,
+                          double maxMagnitude, double minDistanceM,
+                          double maxDistanceM, int maxNodes) {
+        this.pool = pool;
+        this.maxError = maxError;
+        this.minMagnitude = minMagnitude;
+        this.maxMagnitude = maxMagnitude;
+        this.minDistanceM = minDistanceM;
+        this.maxDistanceM = maxDistanceM;
+        this.maxNodes = maxNodes;
+        this.creator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "surrogate");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+
+        double[] sorted = RadialProfile.distinct(amplifications, amplifications.length);
+        int n = sorted.length;
+        if (n == 0) {
+            sorted = new double[]{0};
+            n = 1;
+        }
+        exactAmplifications = n <= MaxAmplifications;
+        if (exactAmplifications) {
+            this.amplifications = Arrays.copyOf(sorted, n);
+        } else {
+            double min = sorted[0];
+            double step = (sorted[n - 1] - min) / (MaxAmplifications - 1);
+            this.amplifications = new double[MaxAmplifications];
+            for (int i = 0; i < MaxAmplifications; ++i) {
+                this.amplifications[i] = min + i * step;
+            }
+        }
+
+        LOG.info(String.format("model surrogate enabled, max error: %.2f%%, "
+                               + "magnitude: %.1f-%.1f, distance: %.1f-%.1fkm, "
+                               + "%d %samplification nodes",
+                               maxError * 100, minMagnitude, maxMagnitude,
+                               minDistanceM / 1000, maxDistanceM / 1000,
+                               this.amplifications.length,
+                               exactAmplifications ? "" : "evenly spaced "));
+    }
+
+    /**
+     * Creates the model surrogate configured by the application properties
+     *
+     * @param pool worker pool used to evaluate the table nodes
+     * @param amplifications amplification values of the points to compute
+     * @return surrogate instance or null if disabled
+     */
+    public static ModelSurrogate create(WorkerPool pool, double[] amplifications) {
+        Application app = Application.getInstance();
+        if (!app.getProperty(Application.PropertySurrogateEnabled, false)) {
+            return null;
+        }
+        return new ModelSurrogate(
+                pool, amplifications,
+                app.getProperty(Application.PropertySurrogateMaxError, DefaultMaxError),
+                app.getProperty(Application.PropertySurrogateMinMagnitude, DefaultMinMagnitude),
+                app.getProperty(Application.PropertySurrogateMaxMagnitude, DefaultMaxMagnitude),
+                app.getProperty(Application.PropertySurrogateMinDistance, DefaultMinDistance) * 1000,
+                app.getProperty(Application.PropertySurrogateMaxDistance, DefaultMaxDistance) * 1000,
+                app.getProperty(Application.PropertySurrogateMaxNodes, DefaultMaxNodes));
+    }
+
+    /**
+     * Prepares a model for an event, see
+     * {@link BatchAdapter#prepare(Object, EventContext, Shaking.Type, double)}.
+     * If supported the returned model interpolates a table of the model. If
+     * no table of the model matches the event the creation of a table is
+     * started in the background and the model itself is returned.
+     *
+     * @return prepared model or null if the implementation does not support
+     * the shaking parameter
+     */
+    public PreparedModel prepare(Object impl, EventContext event,
+                                 Shaking.Type type, double period) {
+        PreparedModel model = BatchAdapter.prepare(impl, event, type, period);
+        if (model == null || !model.supportsDistance()
+            || !(event.magnitude >= minMagnitude && event.magnitude <= maxMagnitude)) {
+            return model;
+        }
+
+        String key = impl.getClass().getName() + "@" + System.identityHashCode(impl)
+                     + "/" + type + "/" + period + "/" + event.amplificationType;
+        synchronized (this) {
+            List<Table> variants = tables.get(key);
+            for (int i = 0; variants != null && i < variants.size(); ++i) {
+                Table table = variants.get(i);
+                if (table.matches(model)) {
+                    variants.add(0, variants.remove(i));
+                    return new SurrogateModel(table, model);
+                }
+            }
+            create(key, impl, event, type, period);
+        }
+        return model;
+    }
+
+    /**
+     * Starts the creation of the table of a model in the background for a
+     * source at the given location, e.g. at startup before the first event
+     * arrives
+     *
+     * @param amplificationType amplification proxy of the points to compute
+     * @return false if the implementation does not support the shaking
+     * parameter
+     */
+    public boolean prepareTable(Object impl, double latitude, double longitude,
+                                String amplificationType, Shaking.Type type,
+                                double period) {
+        EventContext source = new EventContext(
+                0.5 * (minMagnitude + maxMagnitude), latitude, longitude,
+                ReferenceDepthM, amplificationType, null, null, null);
+        return prepare(impl, source, type, period) != null;
+    }
+
+    /**
+     * Schedules the creation of a table for the source of an event unless a
+     * table of the model is already in creation. Must be called while holding
+     * the lock of this instance.
+     */
+    private void create(final String key, final Object impl,
+                        final EventContext event, final Shaking.Type type,
+                        final double period) {
+        if (!creating.add(key)) {
+            return;
+        }
+        creator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    add(key, new Table(impl, event, type, period));
+                } catch (RuntimeException re) {
+                    LOG.error("creation of surrogate of "
+                              + impl.getClass().getSimpleName() + " " + type
+                              + " failed", re);
+                } finally {
+                    synchronized (ModelSurrogate.this) {
+                        creating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized void add(String key, Table table) {
+        List<Table> variants = tables.get(key);
+        if (variants == null) {
+            variants = new ArrayList<>();
+            tables.put(key, variants);
+        }
+        LOG.info(String.format("surrogate of %s %s%s created in %.3fs: "
+                               + "%d magnitudes x %d distances x %d "
+                               + "amplifications, max error: %.3f%%, "
+                               + "%.2f%% of the cells evaluated by the model%s",
+                               table.impl.getClass().getSimpleName(), table.type,
+                               table.type == Shaking.Type.PSA || table.type == Shaking.Type.DRS
+                               ? " " + table.period + "s" : "",
+                               table.seconds, table.magnitudes, table.distances,
+                               amplifications.length, table.error * 100,
+                               table.invalidCells * 100,
+                               variants.isEmpty() ? ""
+                               : String.format(", source at %.2f/%.2f/%.1fkm, "
+                                               + "variant %d", table.source.latitude,
+                                               table.source.longitude,
+                                               table.source.depth / 1000,
+                                               variants.size() + 1)));
+        if (variants.size() >= MaxVariants) {
+            variants.remove(variants.size() - 1);
+        }
+        variants.add(0, table);
+    }
+
+    /**
+     * @return relative deviation of an interpolated value, infinite if only
+     * the interpolated value is undefined
+     */
+    private static double relativeError(double value, double exact) {
+        if (exact != exact || value == exact) {
+            return 0;
+        }
+        if (value != value) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(value - exact) / Math.max(Math.abs(exact), Double.MIN_NORMAL);
+    }
+
+    /**
+     * Finds the interval of the amplification nodes containing a value
+     *
+     * @return index of the lower node or -1 if outside of the nodes
+     */
+    private int findAmplification(double value) {
+        int i = Arrays.binarySearch(amplifications, value);
+        if (i >= 0) {
+            return i == amplifications.length - 1 && i > 0 ? i - 1 : i;
+        }
+        i = -i - 2;
+        return i < 0 || i >= amplifications.length - 1 ? -1 : i;
+    }
+
+    /**
+     * @return interpolation weight of the node following the lower node a
+     */
+    private double amplificationWeight(int a, double value) {
+        return a + 1 >= amplifications.length || value == amplifications[a] ? 0
+               : (value - amplifications[a]) / (amplifications[a + 1] - amplifications[a]);
+    }
+
+    /**
+     * Model values on the nodes of a magnitude x amplification x distance grid
+     * for a fixed source location
+     */
+    private class Table {
+
+        private final Object impl;
+        private final EventContext source;
+        private final Shaking.Type type;
+        private final double period;
+
+        private int magnitudes;
+        private double magnitudeStep;
+        // distance node i is the double with the bits (base + i) << shift
+        private int distances;
+        private int shift;
+        private long base;
+        // median and percentiles, index (magnitude * amplifications +
+        // amplification) * distances + distance
+        private float[][] values;
+        // cells evaluated by the model, same index as the values for the
+        // lower nodes of the cell
+        private boolean[] invalid;
+        private double error;
+        private double invalidCells;
+        private double seconds;
+
+        Table(Object impl, EventContext source, Shaking.Type type, double period) {
+            this.impl = impl;
+            this.source = source;
+            this.type = type;
+            this.period = period;
+
+            long start = System.nanoTime();
+            magnitudes = Math.max(2, (int) Math.ceil(
+                    (maxMagnitude - minMagnitude) / InitialMagnitudeStep) + 1);
+            int bits = InitialDistanceBits;
+            while (true) {
+                magnitudeStep = (maxMagnitude - minMagnitude) / (magnitudes - 1);
+                shift = 52 - bits;
+                base = Double.doubleToRawLongBits(minDistanceM) >>> shift;
+                distances = (int) ((Double.doubleToRawLongBits(maxDistanceM) >>> shift)
+                                   - base) + 2;
+                values = evaluate(0, 0);
+                invalid = new boolean[values[0].length];
+
+                // errors between the magnitude nodes, between the distance
+                // nodes and in the center of the cells
+                double[] errorMagnitude = measure(0.5, 0);
+                double[] errorDistance = measure(0, 0.5);
+                double[] errorCenter = measure(0.5, 0.5);
+                error = Math.max(errorCenter[0],
+                                 Math.max(errorMagnitude[0], errorDistance[0]));
+                if (!exactAmplifications) {
+                    error = Math.max(error, measureAmplification());
+                }
+                int count = 0;
+                for (boolean b : invalid) {
+                    if (b) {
+                        ++count;
+                    }
+                }
+                invalidCells = (double) count / invalid.length;
+                if (invalidCells <= MaxInvalidCells) {
+                    break;
+                }
+
+                // refine the dimension causing the larger error
+                boolean refineMagnitude = errorMagnitude[1] >= errorDistance[1] / 2;
+                boolean refineDistance = errorDistance[1] >= errorMagnitude[1] / 2;
+                if (!refineMagnitude && !refineDistance) {
+                    refineMagnitude = refineDistance = true;
+                }
+                int m = refineMagnitude ? 2 * magnitudes - 1 : magnitudes;
+                int d = refineDistance ? 2 * distances : distances;
+                if ((long) m * d * amplifications.length > maxNodes
+                    || refineDistance && bits >= MaxDistanceBits) {
+                    break;
+                }
+                magnitudes = m;
+                if (refineDistance) {
+                    ++bits;
+                }
+            }
+            seconds = (System.nanoTime() - start) / 1e9;
+        }
+
+        int size() {
+            return magnitudes * distances * amplifications.length;
+        }
+
+        /**
+         * @return distance of node i shifted by a fraction of the interval to
+         * the following node
+         */
+        double distance(int i, double offset) {
+            double d = Double.longBitsToDouble((base + i) << shift);
+            if (offset == 0) {
+                return d;
+            }
+            return d + offset * (Double.longBitsToDouble((base + i + 1) << shift) - d);
+        }
+
+        private EventContext event(double magnitude) {
+            return new EventContext(magnitude, source.latitude, source.longitude,
+                                    source.depth, source.amplificationType,
+                                    source.eventParameters, source.ruptureLength,
+                                    source.ruptureStrike);
+        }
+
+        /**
+         * Evaluates the model on the nodes shifted by the given fraction of
+         * the node spacing
+         *
+         * @return median and percentiles per node
+         */
+        private float[][] evaluate(final double magnitudeOffset,
+                                   final double distanceOffset) {
+            final int size = size();
+            final float[][] result = new float[3][size];
+            final PreparedModel[] models = new PreparedModel[magnitudes];
+            for (int i = 0; i < magnitudes; ++i) {
+                models[i] = BatchAdapter.prepare(
+                        impl, event(minMagnitude + (i + magnitudeOffset) * magnitudeStep),
+                        type, period);
+            }
+            final double[] d = new double[distances];
+            for (int i = 0; i < distances; ++i) {
+                d[i] = distance(i, distanceOffset);
+            }
+
+            // one work item per row of distances
+            pool.run("surrogate", magnitudes * amplifications.length,
+                     new WorkerPool.Task() {
+                         @Override
+                         public void process(int from, int to) {
+                             double[][] row = new double[3][distances];
+                             for (int r = from; r < to; ++r) {
+                                 PreparedModel model = models[r / amplifications.length];
+                                 double ampli = amplifications[r % amplifications.length];
+                                 for (int i = 0; i < distances; ++i) {
+                                     model.evaluate(d[i], ampli, i, row[0], row[1], row[2]);
+                                 }
+                                 for (int k = 0; k < 3; ++k) {
+                                     for (int i = 0; i < distances; ++i) {
+                                         result[k][r * distances + i] = (float) row[k][i];
+                                     }
+                                 }
+                             }
+                         }
+                     });
+            return result;
+        }
+
+        /**
+         * Measures the relative error of the interpolation at the nodes
+         * shifted by the given fraction of the node spacing and marks the
+         * cells adjacent to samples exceeding the maximum error as invalid.
+         *
+         * @return maximum error of the samples within the maximum error and
+         * sum of the errors of all samples
+         */
+        private double[] measure(double magnitudeOffset, double distanceOffset) {
+            float[][] exact = evaluate(magnitudeOffset, distanceOffset);
+            int lastM = magnitudeOffset > 0 ? magnitudes - 1 : magnitudes;
+            int lastD = distanceOffset > 0 ? distances - 1 : distances;
+            double[] result = new double[2];
+            for (int m = 0; m < lastM; ++m) {
+                for (int a = 0; a < amplifications.length; ++a) {
+                    int row = (m * amplifications.length + a) * distances;
+                    for (int i = 0; i < lastD; ++i) {
+                        double e = 0;
+                        for (int k = 0; k < 3; ++k) {
+                            double v = interpolate(values[k], m, magnitudeOffset,
+                                                   a, i, distanceOffset);
+                            e = Math.max(e, relativeError(v, exact[k][row + i]));
+                        }
+                        if (e > maxError) {
+                            invalidate(m, magnitudeOffset, a, i, distanceOffset);
+                            result[1] += Math.min(e, 1);
+                        } else {
+                            result[0] = Math.max(result[0], e);
+                            result[1] += e;
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return maximum relative error of the interpolation between evenly
+         * spaced amplification nodes
+         */
+        private double measureAmplification() {
+            double max = 0;
+            double[][] exact = new double[3][1];
+            for (int m = 0; m < magnitudes; ++m) {
+                PreparedModel model = BatchAdapter.prepare(
+                        impl, event(minMagnitude + m * magnitudeStep), type, period);
+                for (int a = 0; a < amplifications.length - 1; ++a) {
+                    double ampli = 0.5 * (amplifications[a] + amplifications[a + 1]);
+                    for (int i = 0; i < distances; ++i) {
+                        model.evaluate(distance(i, 0), ampli, 0,
+                                       exact[0], exact[1], exact[2]);
+                        double e = 0;
+                        for (int k = 0; k < 3; ++k) {
+                            int row = (m * amplifications.length + a) * distances + i;
+                            double v = 0.5 * (values[k][row] + values[k][row + distances]);
+                            e = Math.max(e, relativeError(v, exact[k][0]));
+                        }
+                        if (e > maxError) {
+                            invalidate(m, 0, a, i, 0);
+                        } else {
+                            max = Math.max(max, e);
+                        }
+                    }
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Marks the cells adjacent to a sample as invalid
+         */
+        private void invalidate(int m, double magnitudeOffset, int a, int i,
+                                double distanceOffset) {
+            for (int cm = magnitudeOffset > 0 ? m : m - 1; cm <= m; ++cm) {
+                if (cm < 0 || cm > magnitudes - 2) {
+                    continue;
+                }
+                for (int ci = distanceOffset > 0 ? i : i - 1; ci <= i; ++ci) {
+                    if (ci >= 0 && ci <= distances - 2) {
+                        invalid[(cm * amplifications.length + a) * distances + ci] = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Interpolates bilinearly between the magnitude nodes m, m + 1 and the
+         * distance nodes i, i + 1 of the amplification node a
+         */
+        private double interpolate(float[] v, int m, double wm, int a, int i,
+                                   double wd) {
+            int stride = amplifications.length * distances;
+            int i0 = m * stride + a * distances + i;
+            double lo = v[i0];
+            double hi = v[i0 + (wm > 0 ? stride : 0)];
+            double at = lo + wm * (hi - lo);
+            if (wd == 0) {
+                return at;
+            }
+            lo = v[i0 + 1];
+            hi = v[i0 + 1 + (wm > 0 ? stride : 0)];
+            return at + wd * (lo + wm * (hi - lo) - at);
+        }
+
+        /**
+         * Checks if the table matches the model prepared for an event at the
+         * probe distances and the minimum and maximum amplification
+         */
+        boolean matches(PreparedModel model) {
+            double x = (model.getEvent().magnitude - minMagnitude) / magnitudeStep;
+            int m = Math.min((int) x, magnitudes - 2);
+            double wm = x - m;
+            double[][] exact = new double[3][1];
+            int[] probes = {0, amplifications.length - 1};
+            for (int a : probes) {
+                for (int p = 0; p < ProbeDistances; ++p) {
+                    // probe between the nodes, where the error is largest
+                    int i = (int) ((p + 0.5) * (distances - 1) / ProbeDistances);
+                    int cell = (m * amplifications.length + a) * distances + i;
+                    if (invalid[cell]) {
+                        continue;
+                    }
+                    model.evaluate(distance(i, 0.5), amplifications[a], 0,
+                                   exact[0], exact[1], exact[2]);
+                    for (int k = 0; k < 3; ++k) {
+                        double v = interpolate(values[k], m, wm, a, i, 0.5);
+                        if (relativeError(v, exact[k][0]) > 2 * maxError) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Model interpolating a table at the magnitude of the event. The table is
+     * interpolated in magnitude once when the model is created.
+     */
+    private class SurrogateModel extends PreparedModel {
+
+        private final PreparedModel model;
+        private final int distances;
+        private final int shift;
+        private final long base;
+        private final double scale;
+        // median and percentiles, index amplification * distances + distance
+        private final float[][] slice;
+        private final boolean[] invalid;
+
+        SurrogateModel(Table table, PreparedModel model) {
+            super(model.getEvent());
+            this.model = model;
+            this.distances = table.distances;
+            this.shift = table.shift;
+            this.base = table.base;
+            this.scale = 1.0 / (1L << shift);
+
+            double x = (event.magnitude - minMagnitude) / table.magnitudeStep;
+            int m = Math.min((int) x, table.magnitudes - 2);
+            double w = x - m;
+            int stride = amplifications.length * distances;
+            slice = new float[3][stride];
+            for (int k = 0; k < 3; ++k) {
+                float[] v = table.values[k];
+                for (int i = 0; i < stride; ++i) {
+                    double lo = v[m * stride + i];
+                    slice[k][i] = (float) (lo + w * (v[(m + 1) * stride + i] - lo));
+                }
+            }
+            invalid = Arrays.copyOfRange(table.invalid, m * stride, (m + 1) * stride);
+        }
+
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            int a = findAmplification(amplificationProxyValueSI);
+            evaluate(distanceM, amplificationProxyValueSI, a,
+                     a < 0 ? 0 : amplificationWeight(a, amplificationProxyValueSI),
+                     index, outMedian, out16, out84);
+        }
+
+        @Override
+        public void evaluate(double[] distanceM, double[] amplificationProxyValueSI,
+                             int from, int to,
+                             double[] outMedian, double[] out16, double[] out84) {
+            // neighboring points mostly share the amplification value
+            double ampli = Double.NaN;
+            int a = -1;
+            double wa = 0;
+            for (int i = from; i < to; ++i) {
+                if (amplificationProxyValueSI[i] != ampli) {
+                    ampli = amplificationProxyValueSI[i];
+                    a = findAmplification(ampli);
+                    wa = a < 0 ? 0 : amplificationWeight(a, ampli);
+                }
+                evaluate(distanceM[i], ampli, a, wa, i, outMedian, out16, out84);
+            }
+        }
+
+        /**
+         * Interpolates the slice at the lower amplification node a with the
+         * weight wa of the following node
+         */
+        private void evaluate(double distanceM, double ampli, int a, double wa,
+                              int index, double[] outMedian, double[] out16,
+                              double[] out84) {
+            long bits = Double.doubleToRawLongBits(distanceM);
+            long node = (bits >>> shift) - base;
+            if (a < 0 || node < 0 || node >= distances - 1) {
+                model.evaluate(distanceM, ampli, index, outMedian, out16, out84);
+                return;
+            }
+            int i0 = a * distances + (int) node;
+            int i1 = wa > 0 ? i0 + distances : i0;
+            if (invalid[i0] || invalid[i1]) {
+                model.evaluate(distanceM, ampli, index, outMedian, out16, out84);
+                return;
+            }
+
+            // the distance is linear in the mantissa bits within the interval
+            double wd = (bits & ((1L << shift) - 1)) * scale;
+            double median = value(slice[0], i0, i1, wd, wa);
+            if (median != median) {
+                // undefined nodes
+                model.evaluate(distanceM, ampli, index, outMedian, out16, out84);
+                return;
+            }
+            outMedian[index] = median;
+            if (out16 != null) {
+                out16[index] = value(slice[1], i0, i1, wd, wa);
+            }
+            if (out84 != null) {
+                out84[index] = value(slice[2], i0, i1, wd, wa);
+            }
+        }
+
+        private double value(float[] v, int i0, int i1, double wd, double wa) {
+            double lo = v[i0] + wd * (v[i0 + 1] - v[i0]);
+            if (i1 == i0) {
+                return lo;
+            }
+            double hi = v[i1] + wd * (v[i1 + 1] - v[i1]);
+            return lo + wa * (hi - lo);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+
+/**
+ * Spectral periods tabulated by an attenuation model and their coefficient
+ * rows. The row of a requested period is resolved once when the model is
+ * prepared instead of comparing the period with each tabulated value.
+ *
+ * Models of periods not tabulated are interpolated between the models of the
+ * neighboring tabulated periods, linearly in log period of the log of the
+ * median and percentiles. Periods outside of the tabulated range use the
+ * nearest tabulated period, for DRS scaled by the squared period ratio. This
+ * extrapolation is logged as warning once per model, parameter and period.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class PeriodIndex {
+
+    private static final Logger LOG = LogManager.getLogger(PeriodIndex.class);
+
+    private final double[] periods;
+    private final int[] rows;
+    // models, parameters and periods already warned about extrapolation
+    private final Set<String> extrapolated = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param periods tabulated periods, sorted ascending
+     * @param rows coefficient row of each tabulated period
+     */
+    public PeriodIndex(double[] periods, int[] rows) {
+        if (periods.length == 0 || periods.length != rows.length) {
+            throw new IllegalArgumentException("invalid period table");
+        }
+        for (int i = 1; i < periods.length; ++i) {
+            if (!(periods[i] > periods[i - 1])) {
+                throw new IllegalArgumentException("periods not sorted ascending");
+            }
+        }
+        this.periods = periods.clone();
+        this.rows = rows.clone();
+    }
+
+    /**
+     * Creates a period index using the position of each period as row
+     */
+    public PeriodIndex(double... periods) {
+        this(periods, sequence(periods.length));
+    }
+
+    private static int[] sequence(int n) {
+        int[] rows = new int[n];
+        for (int i = 0; i < n; ++i) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    /**
+     * @return coefficient row of a tabulated period or -1 if the period is
+     * not tabulated
+     */
+    public int row(double period) {
+        int i = Arrays.binarySearch(periods, period);
+        return i < 0 ? -1 : rows[i];
+    }
+
+    /**
+     * @return true if all periods are tabulated
+     */
+    public boolean containsAll(double[] periods) {
+        for (double period : periods) {
+            if (row(period) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Prepares the model of a period which is not tabulated from the models
+     * of the neighboring tabulated periods
+     *
+     * @param model attenuation model tabulating the periods
+     * @param event source parameters
+     * @param type PSA or DRS
+     * @param period spectral period (seconds)
+     * @return interpolated model or null if the model does not support the
+     * shaking parameter
+     */
+    public PreparedModel interpolate(AttenuationModel model, EventContext event,
+                                     Shaking.Type type, double period) {
+        int i = Arrays.binarySearch(periods, period);
+        if (i >= 0) {
+            return model.prepare(event, type, period);
+        }
+        i = -i - 1;
+        if (i == 0 || i == periods.length) {
+            double nearest = periods[i == 0 ? 0 : periods.length - 1];
+            PreparedModel m = model.prepare(event, type, nearest);
+            if (m == null) {
+                return null;
+            }
+            String name = model.getClass().getSimpleName();
+            if (extrapolated.add(name + "/" + type + "/" + period)) {
+                LOG.warn(String.format("%s %s: period %ss outside of the tabulated "
+                                       + "range %s-%ss, using the nearest "
+                                       + "tabulated period %ss%s", name, type,
+                                       period, periods[0],
+                                       periods[periods.length - 1], nearest,
+                                       type == Shaking.Type.DRS
+                                       ? " scaled by the squared period ratio" : ""));
+            }
+            double ratio = period / nearest;
+            return new Interpolated(m, null, 0,
+                                    type == Shaking.Type.DRS ? ratio * ratio : 1);
+        }
+        PreparedModel lower = model.prepare(event, type, periods[i - 1]);
+        PreparedModel upper = model.prepare(event, type, periods[i]);
+        if (lower == null || upper == null) {
+            return null;
+        }
+        double w = Math.log(period / periods[i - 1])
+                   / Math.log(periods[i] / periods[i - 1]);
+        return new Interpolated(lower, upper, w, 1);
+    }
+
+    /**
+     * Prepares the spectrum of a model per period, e.g. if some periods are
+     * interpolated and the spectrum of the model is restricted to tabulated
+     * periods
+     *
+     * @return spectrum or null if the model of any period is not available
+     */
+    public PreparedSpectrum spectrum(AttenuationModel model, EventContext event,
+                                     Shaking.Type type, double[] periods) {
+        PreparedModel[] models = new PreparedModel[periods.length];
+        for (int i = 0; i < periods.length; ++i) {
+            models[i] = model.prepare(event, type, periods[i]);
+        }
+        return BatchAdapter.spectrum(event, periods, models);
+    }
+
+    /**
+     * Model interpolated between the models of two tabulated periods
+     */
+    private static class Interpolated extends PreparedModel {
+
+        private final PreparedModel lower;
+        private final PreparedModel upper;
+        private final double w;
+        private final double scale;
+
+        /**
+         * @param upper model of the upper period, null to use the lower
+         * model only
+         * @param w weight of the upper model in log period
+         * @param scale factor applied to the interpolated values
+         */
+        Interpolated(PreparedModel lower, PreparedModel upper, double w,
+                     double scale) {
+            super(lower.getEvent());
+            this.lower = lower;
+            this.upper = upper;
+            this.w = w;
+            this.scale = scale;
+        }
+
+        @Override
+        public boolean supportsDistance() {
+            return lower.supportsDistance()
+                   && (upper == null || upper.supportsDistance());
+        }
+
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            lower.evaluate(distanceM, amplificationProxyValueSI, index,
+                           outMedian, out16, out84);
+            if (upper == null) {
+                outMedian[index] *= scale;
+                if (out16 != null) {
+                    out16[index] *= scale;
+                }
+                if (out84 != null) {
+                    out84[index] *= scale;
+                }
+                return;
+            }
+            double median = outMedian[index];
+            double p16 = out16 == null ? 0 : out16[index];
+            double p84 = out84 == null ? 0 : out84[index];
+            upper.evaluate(distanceM, amplificationProxyValueSI, index,
+                           outMedian, out16, out84);
+            outMedian[index] = interpolate(median, outMedian[index]);
+            if (out16 != null) {
+                out16[index] = interpolate(p16, out16[index]);
+            }
+            if (out84 != null) {
+                out84[index] = interpolate(p84, out84[index]);
+            }
+        }
+
+        private double interpolate(double a, double b) {
+            return scale * Math.exp((1 - w) * Math.log(a) + w * Math.log(b));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+
+/**
+ * Attenuation model prepared for one event and one shaking parameter. The
+ * terms depending on the source only are computed when the model is created,
+ * evaluate computes the remaining site dependent terms. Instances are
+ * immutable and may be used by multiple threads concurrently.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public abstract class PreparedModel {
+
+    protected final EventContext event;
+
+    protected PreparedModel(EventContext event) {
+        this.event = event;
+    }
+
+    public EventContext getEvent() {
+        return event;
+    }
+
+    /**
+     * @return true if the model supports the distance based
+     * {@link #evaluate(double, double, int, double[], double[], double[])}
+     */
+    public boolean supportsDistance() {
+        return true;
+    }
+
+    /**
+     * Evaluates the model for one target and stores the result at the given
+     * index of the output arrays. The percentile arrays may be null.
+     *
+     * @param distanceM distance of the target to the source (meter) as
+     * returned by {@link EventContext#distance}
+     * @param amplificationProxyValueSI site amplification of the target
+     * @param index index of the output arrays to write
+     * @param outMedian median output array
+     * @param out16 16th percentile output array, may be null
+     * @param out84 84th percentile output array, may be null
+     */
+    public abstract void evaluate(double distanceM, double amplificationProxyValueSI,
+                                  int index, double[] outMedian, double[] out16,
+                                  double[] out84);
+
+    /**
+     * Evaluates the model for the target points [from, to) of the coordinate
+     * arrays. Results are written to the output arrays at the index of the
+     * target point. The percentile arrays may be null.
+     */
+    public void evaluate(double[] targetLat, double[] targetLon,
+                         double[] targetElevM, double[] amplificationProxyValueSI,
+                         int from, int to,
+                         double[] outMedian, double[] out16, double[] out84) {
+        for (int i = from; i < to; ++i) {
+            evaluate(event.distance(targetLat[i], targetLon[i], targetElevM[i]),
+                     amplificationProxyValueSI[i], i, outMedian, out16, out84);
+        }
+    }
+
+    /**
+     * Evaluates the model for the target points [from, to) with precomputed
+     * distances, e.g. of a {@link org.reakteu.eewd.data.DistanceRaster}.
+     * Results are written to the output arrays at the index of the target
+     * point. The percentile arrays may be null.
+     */
+    public void evaluate(double[] distanceM, double[] amplificationProxyValueSI,
+                         int from, int to,
+                         double[] outMedian, double[] out16, double[] out84) {
+        for (int i = from; i < to; ++i) {
+            evaluate(distanceM[i], amplificationProxyValueSI[i], i,
+                     outMedian, out16, out84);
+        }
+    }
+
+    /**
+     * Evaluates the model for a single target point
+     *
+     * @return median and percentiles of the shaking
+     */
+    public Shaking evaluate(double targetLat, double targetLon,
+                            double targetElevM, double amplificationProxyValueSI) {
+        return evaluate(event.distance(targetLat, targetLon, targetElevM),
+                        amplificationProxyValueSI);
+    }
+
+    /**
+     * Evaluates the model for a single target point with a precomputed
+     * distance
+     *
+     * @return median and percentiles of the shaking
+     */
+    public Shaking evaluate(double distanceM, double amplificationProxyValueSI) {
+        double[] median = new double[1];
+        double[] p16 = new double[1];
+        double[] p84 = new double[1];
+        evaluate(distanceM, amplificationProxyValueSI, 0, median, p16, p84);
+        Shaking s = new Shaking();
+        s.expectedSI = median[0];
+        s.percentile16 = p16[0];
+        s.percentile84 = p84[0];
+        return s;
+    }
+}
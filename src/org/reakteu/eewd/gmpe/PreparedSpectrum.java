@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import org.reakteu.eewd.data.EventContext;
+
+/**
+ * Attenuation model prepared for one event and all periods of a response
+ * spectrum. The spectrum of a target point is computed in one call, so terms
+ * depending on the site only, e.g. the distance or the site amplification, are
+ * shared by all periods. Instances are immutable and may be used by multiple
+ * threads concurrently.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public abstract class PreparedSpectrum {
+
+    protected final EventContext event;
+    protected final double[] periods;
+
+    protected PreparedSpectrum(EventContext event, double[] periods) {
+        this.event = event;
+        this.periods = periods;
+    }
+
+    public EventContext getEvent() {
+        return event;
+    }
+
+    public double[] getPeriods() {
+        return periods;
+    }
+
+    /**
+     * @return true if the spectrum supports the distance based
+     * {@link #evaluate(double, double, double[], double[], double[])}
+     */
+    public boolean supportsDistance() {
+        return true;
+    }
+
+    /**
+     * Evaluates the spectrum for one target. The value of period i is stored
+     * at index i of the output arrays. The percentile arrays may be null.
+     *
+     * @param distanceM distance of the target to the source (meter) as
+     * returned by {@link EventContext#distance}
+     * @param amplificationProxyValueSI site amplification of the target
+     * @param outMedian median output array
+     * @param out16 16th percentile output array, may be null
+     * @param out84 84th percentile output array, may be null
+     */
+    public abstract void evaluate(double distanceM, double amplificationProxyValueSI,
+                                  double[] outMedian, double[] out16,
+                                  double[] out84);
+
+    /**
+     * Evaluates the spectrum for one target given by its coordinates. The
+     * value of period i is stored at index i of the output arrays. The
+     * percentile arrays may be null.
+     */
+    public void evaluate(double targetLat, double targetLon, double targetElevM,
+                         double amplificationProxyValueSI, double[] outMedian,
+                         double[] out16, double[] out84) {
+        evaluate(event.distance(targetLat, targetLon, targetElevM),
+                 amplificationProxyValueSI, outMedian, out16, out84);
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe;
+
+import java.util.Arrays;
+
+/**
+ * Prepared model interpolating a distance profile of another prepared model.
+ * The model is evaluated once per event on logarithmically spaced distances
+ * for each amplification value of the points to compute, the points are then
+ * interpolated linearly at their precomputed distance. Since a prepared model
+ * depends on the distance and the amplification only, this is valid for point
+ * sources as well as for finite ruptures.
+ *
+ * For most models the site term is additive in log space, i.e. the shaking at
+ * one amplification is the shaking at another amplification times a constant
+ * factor. This is checked per amplification value at a few probe distances
+ * against the profile of a reference amplification. Only amplifications
+ * failing the check, e.g. of models with nonlinear site response, get a
+ * profile of their own, the others scale the reference profile.
+ *
+ * Each octave of the distance range is divided into 2^n intervals, so the
+ * interval of a distance is given by the exponent and the leading mantissa
+ * bits of its floating point representation. Points outside of the distance
+ * range or with an amplification not contained in the profile are evaluated
+ * by the model.
+ *
+ * A profile created without percentiles, e.g. for a shake map displaying the
+ * median only, requires a third of the model evaluations. Requests of the
+ * percentiles are then evaluated by the model.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class RadialProfile extends PreparedModel {
+
+    public static final double DefaultStep = 0.02;
+
+    // maximum number of bits of the distance intervals per octave
+    private static final int MaxBits = 20;
+    // distances at which the separability of the site term is checked
+    private static final int Probes = 4;
+    // maximum relative variation of the site factor over distance
+    private static final double SeparableTolerance = 1e-9;
+
+    private final PreparedModel model;
+    private final double[] amplifications;
+    private final int distances;
+    private final int shift;
+    private final long base;
+    private final double scale;
+    // median and percentiles, index row * distances + distance, the
+    // percentiles are null if not computed
+    private final double[] median;
+    private final double[] p16;
+    private final double[] p84;
+    // profile row and factors of the median and percentiles per
+    // amplification
+    private final int[] rows;
+    private final double[][] factors;
+
+    private RadialProfile(PreparedModel model, double[] amplifications,
+                          int distances, int shift, long base, int[] rows,
+                          double[][] factors, int[] rowAmplifications,
+                          boolean percentiles) {
+        super(model.getEvent());
+        this.model = model;
+        this.amplifications = amplifications;
+        this.distances = distances;
+        this.shift = shift;
+        this.base = base;
+        this.scale = 1.0 / (1L << shift);
+        this.rows = rows;
+        this.factors = factors;
+
+        int size = rowAmplifications.length * distances;
+        median = new double[size];
+        p16 = percentiles ? new double[size] : null;
+        p84 = percentiles ? new double[size] : null;
+        for (int row = 0; row < rowAmplifications.length; ++row) {
+            double ampli = amplifications[rowAmplifications[row]];
+            for (int i = 0; i < distances; ++i) {
+                model.evaluate(distance(base, shift, i), ampli,
+                               row * distances + i, median, p16, p84);
+            }
+        }
+    }
+
+    private static double distance(long base, int shift, int node) {
+        return Double.longBitsToDouble((base + node) << shift);
+    }
+
+    /**
+     * Creates the distance profile of a model if it requires less
+     * evaluations than the given limit
+     *
+     * @param model prepared model supporting the distance based evaluation
+     * @param amplifications distinct amplification values, sorted ascending
+     * @param minDistanceM minimum distance of the points (meter)
+     * @param maxDistanceM maximum distance of the points (meter)
+     * @param step maximum relative distance between the profile nodes
+     * @param maxEvaluations maximum number of model evaluations
+     * @param percentiles compute the percentiles in addition to the median
+     * @return profile or null if the model does not support the distance
+     * based evaluation or the profile exceeds the evaluation limit
+     */
+    public static RadialProfile create(PreparedModel model, double[] amplifications,
+                                       double minDistanceM, double maxDistanceM,
+                                       double step, int maxEvaluations,
+                                       boolean percentiles) {
+        if (model == null || !model.supportsDistance() || amplifications.length == 0
+            || !(minDistanceM > 0 && maxDistanceM >= minDistanceM)
+            || Double.isInfinite(maxDistanceM)) {
+            return null;
+        }
+
+        int bits = Math.min(MaxBits, Math.max(0, (int) Math.ceil(-Math.log(step) / Math.log(2))));
+        int shift = 52 - bits;
+        long base = Double.doubleToRawLongBits(minDistanceM) >>> shift;
+        long distances = (Double.doubleToRawLongBits(maxDistanceM) >>> shift) - base + 2;
+        int n = amplifications.length;
+        if (distances + (long) (n - 1) * Probes > maxEvaluations) {
+            return null;
+        }
+
+        // values of the reference amplification at the probe distances
+        int ref = n / 2;
+        int[] probes = new int[Probes];
+        int outputs = percentiles ? 3 : 1;
+        double[][] reference = new double[3][Probes];
+        for (int k = 0; k < Probes; ++k) {
+            probes[k] = (int) (k * (distances - 1) / (Probes - 1));
+            model.evaluate(distance(base, shift, probes[k]), amplifications[ref],
+                           k, reference[0], percentiles ? reference[1] : null,
+                           percentiles ? reference[2] : null);
+        }
+
+        // row 0 is the profile of the reference amplification, scaled by the
+        // factors for the separable amplifications
+        int[] rows = new int[n];
+        double[][] factors = new double[3][n];
+        int[] rowAmplifications = new int[n];
+        int rowCount = 1;
+        rowAmplifications[0] = ref;
+        double[][] probe = new double[3][Probes];
+        for (int a = 0; a < n; ++a) {
+            boolean separable = true;
+            for (int j = 0; j < 3; ++j) {
+                factors[j][a] = 1;
+            }
+            if (a != ref) {
+                for (int k = 0; k < Probes; ++k) {
+                    model.evaluate(distance(base, shift, probes[k]), amplifications[a],
+                                   k, probe[0], percentiles ? probe[1] : null,
+                                   percentiles ? probe[2] : null);
+                }
+                for (int j = 0; j < outputs && separable; ++j) {
+                    double f = probe[j][0] / reference[j][0];
+                    for (int k = 1; k < Probes && separable; ++k) {
+                        double r = probe[j][k] / reference[j][k];
+                        separable = Math.abs(r - f) <= SeparableTolerance * Math.abs(f);
+                    }
+                    factors[j][a] = f;
+                }
+            }
+            if (!separable) {
+                for (int j = 0; j < 3; ++j) {
+                    factors[j][a] = 1;
+                }
+                rows[a] = rowCount;
+                rowAmplifications[rowCount++] = a;
+            }
+        }
+        if (distances * rowCount + (long) (n - 1) * Probes > maxEvaluations) {
+            return null;
+        }
+        return new RadialProfile(model, amplifications, (int) distances, shift,
+                                 base, rows, factors,
+                                 Arrays.copyOf(rowAmplifications, rowCount),
+                                 percentiles);
+    }
+
+    /**
+     * @return sorted distinct values of an array, ignoring NaN
+     */
+    public static double[] distinct(double[] values, int size) {
+        double[] sorted = Arrays.copyOf(values, size);
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < size; ++i) {
+            if (sorted[i] == sorted[i] && (n == 0 || sorted[i] != sorted[n - 1])) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, n);
+    }
+
+    /**
+     * @return number of profile rows, 1 if the site term of all
+     * amplifications is separable
+     */
+    public int getRows() {
+        return median.length / distances;
+    }
+
+    public int getDistances() {
+        return distances;
+    }
+
+    @Override
+    public void evaluate(double distanceM, double amplificationProxyValueSI,
+                         int index, double[] outMedian, double[] out16,
+                         double[] out84) {
+        evaluate(distanceM, amplificationProxyValueSI,
+                 Arrays.binarySearch(amplifications, amplificationProxyValueSI),
+                 index, outMedian, out16, out84);
+    }
+
+    @Override
+    public void evaluate(double[] distanceM, double[] amplificationProxyValueSI,
+                         int from, int to,
+                         double[] outMedian, double[] out16, double[] out84) {
+        // neighboring points mostly share the amplification value
+        double ampli = Double.NaN;
+        int a = -1;
+        for (int i = from; i < to; ++i) {
+            if (amplificationProxyValueSI[i] != ampli) {
+                ampli = amplificationProxyValueSI[i];
+                a = Arrays.binarySearch(amplifications, ampli);
+            }
+            evaluate(distanceM[i], ampli, a, i, outMedian, out16, out84);
+        }
+    }
+
+    private void evaluate(double distanceM, double ampli, int a, int index,
+                          double[] outMedian, double[] out16, double[] out84) {
+        long bits = Double.doubleToRawLongBits(distanceM);
+        long node = (bits >>> shift) - base;
+        if (a < 0 || node < 0 || node >= distances - 1
+            || p16 == null && (out16 != null || out84 != null)) {
+            model.evaluate(distanceM, ampli, index, outMedian, out16, out84);
+            return;
+        }
+
+        // the distance is linear in the mantissa bits within the interval
+        double w = (bits & ((1L << shift) - 1)) * scale;
+        int i = rows[a] * distances + (int) node;
+        double value = factors[0][a] * (median[i] + w * (median[i + 1] - median[i]));
+        if (value != value) {
+            // undefined nodes
+            model.evaluate(distanceM, ampli, index, outMedian, out16, out84);
+            return;
+        }
+        outMedian[index] = value;
+        if (out16 != null) {
+            out16[index] = factors[1][a] * (p16[i] + w * (p16[i + 1] - p16[i]));
+        }
+        if (out84 != null) {
+            out84[index] = factors[2][a] * (p84[i] + w * (p84[i + 1] - p84[i]));
+        }
+    }
+}
@@ -6,16 +6,22 @@ package org.reakteu.eewd.gmpe.impl;
  */
 // import useful packages
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
 import org.reakteu.eewd.gmpe.AttenuationPGV;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
 import org.reakteu.eewd.gmpe.AttenuationPSA;
 import org.reakteu.eewd.gmpe.AttenuationDRS;
+import org.reakteu.eewd.gmpe.AttenuationSpectrum;
+import org.reakteu.eewd.gmpe.PeriodIndex;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.gmpe.PreparedSpectrum;
+import org.reakteu.eewd.data.EventContext;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
 import static java.lang.Math.*;
 
-public class BEA2014 implements AttenuationPGA, AttenuationPGV, AttenuationPSA, AttenuationDRS {
+public class BEA2014 implements AttenuationPGA, AttenuationPGV, AttenuationPSA, AttenuationDRS,
+                                AttenuationModel, AttenuationSpectrum {
 
     public static final double[][] Cofs = {
         {4.3397, 4.46839, 4.5724, 4.55255, 4.51119, 4.49571, 4.49224, 4.51726, 4.46559, 4.46834, 4.3715, 4.34198, -1.37164, 4.14832, 4.09246, 4.08324, 4.07207, 3.77954, 3.69447, 3.45408, 3.38901, 3.06601, 2.89391, 4.27391, 3.24249},
@@ -38,6 +44,12 @@ public class BEA2014 implements AttenuationPGA, AttenuationPGV, AttenuationPSA,
 
     public static final double PI2_4 = 4 * PI * PI;
 
+    // tabulated spectral periods and their coefficient columns, 0.01 uses
+    // the published coefficients of 0.02, 0.03 and 0.05 the ones of 0.04
+    private static final PeriodIndex Periods = new PeriodIndex(
+            new double[]{0.01, 0.02, 0.03, 0.05, 0.1, 0.2, 0.4, 1, 2},
+            new int[]{0, 0, 1, 1, 3, 5, 9, 16, 20});
+
     @Override
     public Shaking getPGA(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
@@ -48,73 +60,13 @@ public class BEA2014 implements AttenuationPGA, AttenuationPGV, AttenuationPSA,
                           Float ruptureStrike) {
 
         // Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
-        // Mag is the magnitude from the EW message
-        // ampType is VS30
-        double Mw = magnitude;	// reasonable assumption for CH, other regions should perform some investigations ...
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
-
-        double Rh = distance / 1000; // in kilometers
-
-        // end of hypocentral distance computation
-        // Compute ground-motion prediction in log10 first
-        double Mref = 5.5;
-        double Rref = 1;
-        double Mh = 6.75;
-        double Vref = 800;
-        double FM;
-
-        double FD = (Cofs[1][23] + Cofs[2][23] * (Mw - Mref)) * log10(sqrt(pow(Rh, 2) + pow(Cofs[3][23], 2)) / Rref) - Cofs[4][23] * (sqrt(pow(Rh, 2) + pow(Cofs[3][23], 2)) - Rref);
-
-        if (Mw <= Mh) {
-            FM = Cofs[5][23] * (Mw - Mh) + Cofs[6][23] * pow((Mw - Mh), 2);
-        } else {
-            FM = Cofs[7][23] * (Mw - Mh);
-        }
-        double FSOF = (Cofs[9][23] + Cofs[10][23] + Cofs[11][23]) / 3;
-
-        double logpga = Cofs[0][23] + FD + FM + FSOF;
-
-        // Now add site term
-        double logpgasite = logpga + Cofs[8][23] * log10(amplificationProxyValueSI / Vref);
-
-        // Now compute plus/minus sigma bounds
-        double sigma = Cofs[15][23];
-        double logpgasiteplus = logpgasite + sigma;
-        double logpgasiteminus = logpgasite - sigma;
-
-        // Now in m/s2
-        Shaking PGA = new Shaking();
-        PGA.expectedSI = pow(10, logpgasite) / 100;
-        PGA.percentile84 = pow(10, logpgasiteplus) / 100;
-        PGA.percentile16 = pow(10, logpgasiteminus) / 100;
-
-        // Now should return Shaking ...
-        return PGA;
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGA, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
@@ -126,195 +78,225 @@ public class BEA2014 implements AttenuationPGA, AttenuationPGV, AttenuationPSA,
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-        // Returns median PGV, 16th-percentile PGA, 84th percentile PGA in m/s
-        // Mag is the magnitude from the EW message
-        // ampType is VS30
-        double Mw = magnitude;	// reasonable assumption for CH, other regions should perform some investigations ...
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
-
-        double Rh = distance / 1000; // in kilometers
-
-        // end of hypocentral distance computation
-        // Compute ground-motion prediction in log10 first
-        double Mref = 5.5;
-        double Rref = 1;
-        double Mh = 6.75;
-        double Vref = 800;
-        double FM; //init
-
-        double FD = (Cofs[1][24] + Cofs[2][24] * (Mw - Mref)) * log10(sqrt(pow(Rh, 2) + pow(Cofs[3][24], 2)) / Rref) - Cofs[4][24] * (sqrt(pow(Rh, 2) + pow(Cofs[3][24], 2)) - Rref);
-
-        if (Mw <= Mh) {
-            FM = Cofs[5][24] * (Mw - Mh) + Cofs[6][24] * pow((Mw - Mh), 2);
-        } else {
-            FM = Cofs[7][24] * (Mw - Mh);
-        }
-
-        double FSOF = (Cofs[9][24] + Cofs[10][24] + Cofs[11][24]) / 3;
-
-        double logpgv = Cofs[0][24] + FD + FM + FSOF;
-
-        // Now add site term
-        double logpgvsite = logpgv + Cofs[8][24] * log10(amplificationProxyValueSI / Vref);
-
-        // Now compute plus/minus sigma bounds
-        double sigma = Cofs[15][24];
-        double logpgvsiteplus = logpgvsite + sigma;
-        double logpgvsiteminus = logpgvsite - sigma;
-
-        // Now in m/s
-        Shaking PGV = new Shaking();
-        PGV.expectedSI = pow(10, logpgvsite) / 100;
-        PGV.percentile84 = pow(10, logpgvsiteplus) / 100;
-        PGV.percentile16 = pow(10, logpgvsiteminus) / 100;
-
-        // Now should return Shaking ...
-        return PGV;
+        // Returns median PGV, 16th-percentile PGV, 84th percentile PGV in m/s
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGV, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
     public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
                           double targetElevM, String amplificationType,
-                          double amplificationProxyValueSI,
-                          double period, EventParameters eventParameters,
+                          double amplificationProxyValueSI, double period,
+                          EventParameters eventParameters,
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-        // Returns median PSA, 16th-percentile PGA, 84th percentile PGA in m/s
-        // Mag is the magnitude from the EW message
-        // ampType is VS30
-        double Mw = magnitude;	// reasonable assumption for CH, other regions should perform some investigations ...
-        int cnt = 0; // init
-
-     // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
+        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PSA, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
 
-        double Rh = distance / 1000; // in kilometers
+    @Override
+    public Shaking getDRS(double magnitude, double sourceLat, double sourceLon,
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI, double period,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
 
-        // end of hypocentral distance computation
-        // Compute ground-motion prediction in log10 first
-        double Mref = 5.5;
-        double Rref = 1;
-        double Mh = 6.75;
-        double Vref = 800;
-        double FM; //init
+        // Returns median DRS, 16th-percentile DRS, 84th percentile DRS in m
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.DRS, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
 
-        // pick the right coefficients according to the spectral period
-        if (period == 0.01) { // using published coeffs for 0.02
-            cnt = 0;
-        } else if (period == 0.02) {
-            cnt = 0;
-        } else if (period == 0.03) { // using published coeffs for 0.04
-            cnt = 1;
-        } else if (period == 0.05) { // using published coeffs for 0.04
-            cnt = 1;
-        } else if (period == 0.1) {
-            cnt = 3;
-        } else if (period == 0.2) {
-            cnt = 5;
-        } else if (period == 0.4) {
-            cnt = 9;
-        } else if (period == 1) {
-            cnt = 16;
-        } else if (period == 2) {
-            cnt = 20;
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        switch (type) {
+            case PGA:
+                return new Prepared(event, 23, 1);
+            case PGV:
+                return new Prepared(event, 24, 1);
+            case PSA:
+            case DRS:
+                int cnt = Periods.row(period);
+                if (cnt < 0) {
+                    return Periods.interpolate(this, event, type, period);
+                }
+                return new Prepared(event, cnt, type == Shaking.Type.DRS
+                                                ? period * period / PI2_4 : 1);
+            default:
+                return null;
         }
+    }
 
-        double FD = (Cofs[1][cnt] + Cofs[2][cnt] * (Mw - Mref)) * log10(sqrt(pow(Rh, 2) + pow(Cofs[3][cnt], 2)) / Rref) - Cofs[4][cnt] * (sqrt(pow(Rh, 2) + pow(Cofs[3][cnt], 2)) - Rref);
-
-        if (Mw <= Mh) {
-            FM = Cofs[5][cnt] * (Mw - Mh) + Cofs[6][cnt] * pow((Mw - Mh), 2);
-        } else {
-            FM = Cofs[7][cnt] * (Mw - Mh);
+    @Override
+    public PreparedSpectrum prepareSpectrum(EventContext event, Shaking.Type type,
+                                            double[] periods) {
+        if (type != Shaking.Type.PSA && type != Shaking.Type.DRS) {
+            return null;
         }
+        if (!Periods.containsAll(periods)) {
+            return Periods.spectrum(this, event, type, periods);
+        }
+        return new Spectrum(event, periods, type == Shaking.Type.DRS);
+    }
 
-        double FSOF = (Cofs[9][cnt] + Cofs[10][cnt] + Cofs[11][cnt]) / 3;
-
-        double logpsa = Cofs[0][cnt] + FD + FM + FSOF;
-
-        // Now add site term
-        double logpsasite = logpsa + Cofs[8][cnt] * log10(amplificationProxyValueSI / Vref);
-
-        // Now compute plus/minus sigma bounds
-        double sigma = Cofs[15][cnt];
-        double logpsasiteplus = logpsasite + sigma;
-        double logpsasiteminus = logpsasite - sigma;
+    /**
+     * Model prepared for one event. The magnitude and style-of-faulting terms
+     * are computed once, the summation order of the original formula is kept
+     * to produce identical results.
+     */
+    private static class Prepared extends PreparedModel {
+
+        private static final double Rref = 1;
+        private static final double Vref = 800;
+
+        private final double factor;
+        private final double FM;
+        private final double FSOF;
+        private final double fd1, h2, c0, c4, c8, sigma;
+
+        Prepared(EventContext event, int cnt, double factor) {
+            super(event);
+            this.factor = factor;
+
+            // reasonable assumption for CH, other regions should perform
+            // some investigations ...
+            double Mw = event.magnitude;
+            double Mref = 5.5;
+            double Mh = 6.75;
+
+            if (Mw <= Mh) {
+                FM = Cofs[5][cnt] * (Mw - Mh) + Cofs[6][cnt] * pow((Mw - Mh), 2);
+            } else {
+                FM = Cofs[7][cnt] * (Mw - Mh);
+            }
+            FSOF = (Cofs[9][cnt] + Cofs[10][cnt] + Cofs[11][cnt]) / 3;
+            fd1 = Cofs[1][cnt] + Cofs[2][cnt] * (Mw - Mref);
+            h2 = pow(Cofs[3][cnt], 2);
+            c0 = Cofs[0][cnt];
+            c4 = Cofs[4][cnt];
+            c8 = Cofs[8][cnt];
+            sigma = Cofs[15][cnt];
+        }
 
-        // Now in m/s
-        Shaking PSA = new Shaking();
-        PSA.expectedSI = pow(10, logpsasite) / 100;
-        PSA.percentile84 = pow(10, logpsasiteplus) / 100;
-        PSA.percentile16 = pow(10, logpsasiteminus) / 100;
+        /**
+         * @return log10 of the shaking, computed from the squared
+         * hypocentral distance and the log10 site term
+         */
+        double logShaking(double Rh2, double site) {
+            double r = sqrt(Rh2 + h2);
+            double FD = fd1 * log10(r / Rref) - c4 * (r - Rref);
+            return c0 + FD + FM + FSOF + c8 * site;
+        }
 
-        // Now should return Shaking ...
-        return PSA;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            // ampType is VS30
+            double Rh = distanceM / 1000; // in kilometers
+            double logsite = logShaking(pow(Rh, 2),
+                                        log10(amplificationProxyValueSI / Vref));
+
+            outMedian[index] = pow(10, logsite) / 100 * factor;
+            if (out84 != null) {
+                out84[index] = pow(10, logsite + sigma) / 100 * factor;
+            }
+            if (out16 != null) {
+                out16[index] = pow(10, logsite - sigma) / 100 * factor;
+            }
+        }
     }
 
-    @Override
-    public Shaking getDRS(double magnitude, double sourceLat, double sourceLon, double sourceDepthM, double targetLat, double targetLon, double targetElevM, String amplificationType, double amplificationProxyValueSI, double period, EventParameters eventML,
-            Float ruptureLength,
-            Float ruptureStrike) {
-
-        Shaking PSA = getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-                             targetLat, targetLon, targetElevM,
-                             amplificationType, amplificationProxyValueSI,
-                             period, null, ruptureLength, ruptureStrike);
-
-        double accelerationToDisplacement = period * period / PI2_4;
-        PSA.expectedSI *= accelerationToDisplacement;
-        PSA.percentile16 *= accelerationToDisplacement;
-        PSA.percentile84 *= accelerationToDisplacement;
+    /**
+     * Spectrum prepared for one event. The distance and site terms are
+     * computed once per target point. Periods sharing a coefficient column,
+     * e.g. 0.01s and 0.02s, are evaluated once and only differ in the DRS
+     * factor.
+     */
+    private static class Spectrum extends PreparedSpectrum {
+
+        // model per distinct coefficient column, indices of the periods
+        // using the column and factor per period
+        private final Prepared[] models;
+        private final int[][] members;
+        private final double[] factors;
+
+        Spectrum(EventContext event, double[] periods, boolean drs) {
+            super(event, periods);
+            int n = periods.length;
+            int[] columns = new int[n];
+            int[] group = new int[n];
+            int[] sizes = new int[n];
+            int groups = 0;
+            factors = new double[n];
+            for (int i = 0; i < n; ++i) {
+                int cnt = Periods.row(periods[i]);
+                int g = 0;
+                while (g < groups && columns[g] != cnt) {
+                    ++g;
+                }
+                if (g == groups) {
+                    columns[groups++] = cnt;
+                }
+                group[i] = g;
+                ++sizes[g];
+                factors[i] = drs ? periods[i] * periods[i] / PI2_4 : 1;
+            }
+            models = new Prepared[groups];
+            members = new int[groups][];
+            for (int g = 0; g < groups; ++g) {
+                models[g] = new Prepared(event, columns[g], 1);
+                members[g] = new int[sizes[g]];
+                sizes[g] = 0;
+            }
+            for (int i = 0; i < n; ++i) {
+                members[group[i]][sizes[group[i]]++] = i;
+            }
+        }
 
-        // Now in m/s
-        return PSA;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             double[] outMedian, double[] out16, double[] out84) {
+            // ampType is VS30
+            double Rh = distanceM / 1000; // in kilometers
+            double Rh2 = pow(Rh, 2);
+            double site = log10(amplificationProxyValueSI / Prepared.Vref);
+            for (int g = 0; g < models.length; ++g) {
+                Prepared model = models[g];
+                double logsite = model.logShaking(Rh2, site);
+                double median = pow(10, logsite);
+                double p84 = out84 == null ? 0 : pow(10, logsite + model.sigma);
+                double p16 = out16 == null ? 0 : pow(10, logsite - model.sigma);
+                for (int i : members[g]) {
+                    outMedian[i] = median / 100 * factors[i];
+                    if (out84 != null) {
+                        out84[i] = p84 / 100 * factors[i];
+                    }
+                    if (out16 != null) {
+                        out16[i] = p16 / 100 * factors[i];
+                    }
+                }
+            }
+        }
     }
 }
@@ -1,205 +1,56 @@
 /**
- * 
+ *
  */
 package org.reakteu.eewd.gmpe.impl;
 
-import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
-import org.reakteu.eewd.gmpe.AttenuationPGV;
-import org.reakteu.eewd.gmpe.AttenuationPGA;
-import org.reakteu.eewd.gmpe.AttenuationPSA;
-import org.reakteu.eewd.gmpe.AttenuationDRS;
-import org.quakeml.xmlns.bedRt.x12.EventParameters;
-
-import static java.lang.Math.*;
+import java.util.Properties;
 
 /**
  * GMPEs for Central America: different GMPEs are chosen based on the focal depth.
- * Added by Carlo Cauzzi for SED-INETER Project. 
- * Based on https://hazardwiki.openquake.org/resisii2010_intro. 
+ * Added by Carlo Cauzzi for SED-INETER Project.
+ * Based on https://hazardwiki.openquake.org/resisii2010_intro.
+ *
+ * Logic tree configured by the logicTree.centralAmerica properties, the
+ * default branches are:
+ * depth below 25 km: average of Cli94 and ZEA06ASC (active shallow crust),
+ * depth from 25 km up to and including 60 km: YOU97IFC,
+ * depth greater than 60 km: average of YOU97ITS and ZEA06ITS.
  *
  */
-public class CentralAmerica implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
-
-	public static final double PI2_4 = 4 * Math.PI * Math.PI;
-
-	@Override
-	public Shaking getPGA(double magnitude, double sourceLat, double sourceLon,
-			double sourceDepthM, double targetLat, double targetLon,
-			double targetElevM, String amplificationType,
-			double amplificationProxyValueSI,
-			EventParameters eventParameters,
-            Float ruptureLength,
-            Float ruptureStrike) {
-
-		//compute hypodepth in km
-		double depth = sourceDepthM / 1000; //depth in km
-
-
-		// Initialise PSA and PGA;
-		Shaking PGA = new Shaking();
-
-
-		//Active shallow crustal seismicity: we take the average of Cli94 and ZEA06ASC
-		Cli94 cli94 = new Cli94();
-		Shaking PGA_Cli94 = cli94.getPGA(magnitude, sourceLat, sourceLon, sourceDepthM,
-				targetLat, targetLon, targetElevM,
-				amplificationType, amplificationProxyValueSI, null, ruptureLength, ruptureStrike);
-
-		ZEA06ASC zea06asc = new ZEA06ASC();
-		Shaking PGA_zea06asc = zea06asc.getPGA(magnitude, sourceLat, sourceLon, sourceDepthM,
-				targetLat, targetLon, targetElevM,
-				amplificationType, amplificationProxyValueSI, null, ruptureLength, ruptureStrike);
-
-		PGA.expectedSI = 0.5 * (PGA_Cli94.expectedSI + PGA_zea06asc.expectedSI);
-		PGA.percentile16 = 0.5 * (PGA_Cli94.percentile16 + PGA_zea06asc.percentile16);
-		PGA.percentile84 = 0.5 * (PGA_Cli94.percentile84 + PGA_zea06asc.percentile84);
+public class CentralAmerica extends LogicTree {
 
+	public static final String PropertyPrefix = "logicTree.centralAmerica";
 
-		// If depth is between 25 and 60 km, the above PSA are substituted by YOU97IFC model
-		if (depth >= 25 && depth <= 60 ) {
-			YOU97IFC you97ifc = new YOU97IFC();
-			PGA = you97ifc.getPGA(magnitude, sourceLat, sourceLon, sourceDepthM,
-					targetLat, targetLon, targetElevM,
-					amplificationType, amplificationProxyValueSI, null, ruptureLength, ruptureStrike);
-
-			//        double accelerationToDisplacement = period * period / PI2_4;
-			//        PSA.expectedSI *= accelerationToDisplacement;
-			//        PSA.percentile16 *= accelerationToDisplacement;
-			//        PSA.percentile84 *= accelerationToDisplacement;
-
-			// Now in m/s
-		}
-
-		// If depth is larger than 60, the above PSA are substituted by the average of ZEA06ITS & YOU97ITS
-		if (depth > 60) {
-
-			YOU97ITS you97its = new YOU97ITS();
-			Shaking PGA_you97its = you97its.getPGA(magnitude, sourceLat, sourceLon, sourceDepthM,
-					targetLat, targetLon, targetElevM,
-					amplificationType, amplificationProxyValueSI, null, ruptureLength, ruptureStrike);
-
-			ZEA06ITS zea06its = new ZEA06ITS();
-			Shaking PGA_zea06its = zea06its.getPGA(magnitude, sourceLat, sourceLon, sourceDepthM,
-					targetLat, targetLon, targetElevM,
-					amplificationType, amplificationProxyValueSI, null, ruptureLength, ruptureStrike);
-
-			PGA.expectedSI = 0.5 * (PGA_you97its.expectedSI + PGA_zea06its.expectedSI);
-			PGA.percentile16 = 0.5 * (PGA_you97its.percentile16 + PGA_zea06its.percentile16);
-			PGA.percentile84 = 0.5 * (PGA_you97its.percentile84 + PGA_zea06its.percentile84);
-
-
-			//        double accelerationToDisplacement = period * period / PI2_4;
-			//        PSA.expectedSI *= accelerationToDisplacement;
-			//        PSA.percentile16 *= accelerationToDisplacement;
-			//        PSA.percentile84 *= accelerationToDisplacement;
-
-			// Now in m/s
-		}
-		return PGA;
+	public CentralAmerica() {
+		super(PropertyPrefix, defaults());
 	}
-	@Override
-	public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
-			double sourceDepthM, double targetLat, double targetLon,
-			double targetElevM, String amplificationType,
-			double amplificationProxyValueSI, double period,
-			EventParameters eventML,
-            Float ruptureLength,
-            Float ruptureStrike) {
 
-		//compute hypodepth in km
-		double depth = sourceDepthM / 1000; //depth in km
-
-
-		// Initialise PSA and PGA;
-		Shaking PSA = new Shaking();
-
-
-		//Active shallow crustal seismicity: we take the average of Cli94 and ZEA06ASC
-		Cli94 cli94 = new Cli94();
-		Shaking PSA_Cli94 = cli94.getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-				targetLat, targetLon, targetElevM,
-				amplificationType, amplificationProxyValueSI,
-				period, eventML, ruptureLength, ruptureStrike);
-
-		ZEA06ASC zea06asc = new ZEA06ASC();
-		Shaking PSA_zea06asc = zea06asc.getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-				targetLat, targetLon, targetElevM,
-				amplificationType, amplificationProxyValueSI,
-				period, eventML, ruptureLength, ruptureStrike);
-
-		PSA.expectedSI = 0.5 * (PSA_Cli94.expectedSI + PSA_zea06asc.expectedSI);
-		PSA.percentile16 = 0.5 * (PSA_Cli94.percentile16 + PSA_zea06asc.percentile16);
-		PSA.percentile84 = 0.5 * (PSA_Cli94.percentile84 + PSA_zea06asc.percentile84);
-
-
-		// If depth is between 25 and 60 km, the above PSA are substituted by YOU97IFC model
-		if (depth >= 25 && depth <= 60 ) {
-			YOU97IFC you97ifc = new YOU97IFC();
-			PSA = you97ifc.getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-					targetLat, targetLon, targetElevM,
-					amplificationType, amplificationProxyValueSI,
-					period, eventML, ruptureLength, ruptureStrike);
-
-			//        double accelerationToDisplacement = period * period / PI2_4;
-			//        PSA.expectedSI *= accelerationToDisplacement;
-			//        PSA.percentile16 *= accelerationToDisplacement;
-			//        PSA.percentile84 *= accelerationToDisplacement;
+	private static Properties defaults() {
+		Properties p = new Properties();
+		p.setProperty(PropertyPrefix + ".branches",
+				"cli94, zea06asc, you97ifc, you97its, zea06its");
+		branch(p, "cli94", Cli94.class, 0.5, null, "25");
+		branch(p, "zea06asc", ZEA06ASC.class, 0.5, null, "25");
+		branch(p, "you97ifc", YOU97IFC.class, 1, "25", "60");
+		branch(p, "you97its", YOU97ITS.class, 0.5, "60", null);
+		branch(p, "zea06its", ZEA06ITS.class, 0.5, "60", null);
+		// 60 km is part of the intermediate depth branch
+		p.setProperty(PropertyPrefix + ".you97ifc.maxDepthInclusive", "true");
+		p.setProperty(PropertyPrefix + ".you97its.minDepthExclusive", "true");
+		p.setProperty(PropertyPrefix + ".zea06its.minDepthExclusive", "true");
+		return p;
+	}
 
-			// Now in m/s
+	private static void branch(Properties p, String name, Class<?> impl,
+			double weight, String minDepth, String maxDepth) {
+		String prefix = PropertyPrefix + "." + name + ".";
+		p.setProperty(prefix + "class", impl.getName());
+		p.setProperty(prefix + "weight", String.valueOf(weight));
+		if (minDepth != null) {
+			p.setProperty(prefix + "minDepth", minDepth);
 		}
-
-		// If depth is larger than 60, the above PSA are substituted by the average of ZEA06ITS & YOU97ITS
-		if (depth > 60) {
-
-			YOU97ITS you97its = new YOU97ITS();
-			Shaking PSA_you97its = you97its.getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-					targetLat, targetLon, targetElevM,
-					amplificationType, amplificationProxyValueSI,
-					period, eventML, ruptureLength, ruptureStrike);
-
-			ZEA06ITS zea06its = new ZEA06ITS();
-			Shaking PSA_zea06its = zea06its.getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-					targetLat, targetLon, targetElevM,
-					amplificationType, amplificationProxyValueSI,
-					period, eventML, ruptureLength, ruptureStrike);
-
-			PSA.expectedSI = 0.5 * (PSA_you97its.expectedSI + PSA_zea06its.expectedSI);
-			PSA.percentile16 = 0.5 * (PSA_you97its.percentile16 + PSA_zea06its.percentile16);
-			PSA.percentile84 = 0.5 * (PSA_you97its.percentile84 + PSA_zea06its.percentile84);
-
-
-			//        double accelerationToDisplacement = period * period / PI2_4;
-			//        PSA.expectedSI *= accelerationToDisplacement;
-			//        PSA.percentile16 *= accelerationToDisplacement;
-			//        PSA.percentile84 *= accelerationToDisplacement;
-
-			// Now in m/s
+		if (maxDepth != null) {
+			p.setProperty(prefix + "maxDepth", maxDepth);
 		}
-		return PSA;
 	}
-
-	@Override	
-	public Shaking getDRS(double magnitude, double sourceLat, double sourceLon,
-			double sourceDepthM, double targetLat, double targetLon,
-			double targetElevM, String amplificationType,
-			double amplificationProxyValueSI, double period,
-			EventParameters eventML,
-            Float ruptureLength,
-            Float ruptureStrike) {
-
-		Shaking PSA = getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-				targetLat, targetLon, targetElevM,
-				amplificationType, amplificationProxyValueSI,
-				period, null, ruptureLength, ruptureStrike);
-
-		double accelerationToDisplacement = period * period / PI2_4;
-		PSA.expectedSI *= accelerationToDisplacement;
-		PSA.percentile16 *= accelerationToDisplacement;
-		PSA.percentile84 *= accelerationToDisplacement;
-
-		// Now in m/s
-		return PSA;
-	}
-
 }
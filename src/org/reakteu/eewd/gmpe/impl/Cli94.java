@@ -6,16 +6,20 @@ package org.reakteu.eewd.gmpe.impl;
  */
 
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
 import org.reakteu.eewd.gmpe.AttenuationPGV;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
 import org.reakteu.eewd.gmpe.AttenuationPSA;
 import org.reakteu.eewd.gmpe.AttenuationDRS;
+import org.reakteu.eewd.gmpe.PeriodIndex;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.data.EventContext;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
 import static java.lang.Math.*;
 
-public class Cli94 implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
+public class Cli94 implements AttenuationPGA, AttenuationPSA, AttenuationDRS,
+                              AttenuationModel {
     
 	// Coefficients of the GMPE
 	//       period  c1        c2       c3        c4         c5       SigmaB  r_SA     r_std
@@ -35,6 +39,11 @@ public class Cli94 implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
     
     public static final double PI2_4 = 4 * PI * PI;
     public static final double PI_2 = 2 * PI;
+
+    // tabulated spectral periods and their coefficient rows
+    private static final PeriodIndex Periods = new PeriodIndex(
+            new double[]{0.025, 0.05, 0.1, 0.2, 0.5, 1, 2, 4},
+            new int[]{1, 2, 3, 4, 5, 6, 7, 8});
     
 
     @Override
@@ -47,80 +56,15 @@ public class Cli94 implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
                           Float ruptureStrike) {
 
         // Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
-        // Mag is the magnitude from the EW message
-        // ampType is S derived form VS30
-
-        double rmin = 6.056877878; // cut-off distance
-        double Mw = magnitude;	// reasonable assumption
-        double S = 1; // initialise site term
-
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-        
-        double Rh = distance / 1000; // in kilometers
-
-        // end of distance computation
-
-       
-        
-        // Apply distance cutoff
-        double Ru = max(rmin, Rh);
-        
-        
-        // Site term
-        if (amplificationProxyValueSI < 760 ){
-            S = 1;
-        } else {
-        	S = 0;
-        }
-        
-        if (amplificationProxyValueSI == -1 ) {
-        	S = log(-1);
-        } 
-
-        // Compute ground-motion prediction in natural log first including site term
-        double logpgasite = Cofs[0][1] + Cofs[0][2] * Mw + Cofs[0][3] * log(Ru) + Cofs[0][4] * Ru + Cofs[0][5] * S;
-
-
-        // Now compute plus/minus sigma bounds
-        double sigma = Cofs[0][6] / Cofs[0][8];
-        double logpgasiteplus = logpgasite + sigma;
-        double logpgasiteminus = logpgasite - sigma;
-
-        // Now in m/s2, including correction from max to gm
-        Shaking PGA = new Shaking() ;
-        PGA.expectedSI = exp(logpgasite) / Cofs[0][7];
-        PGA.percentile84 = exp(logpgasiteplus) / Cofs[0][7];
-        PGA.percentile16 = exp(logpgasiteminus) / Cofs[0][7];
-
-        // Now should return Shaking ...
-        return PGA;
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGA, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
-    
     @Override
     public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
@@ -130,113 +74,14 @@ public class Cli94 implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-    	// Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
-        // magnitude is the magnitude from the EW message
-        // ampType is site term derived form VS30
-
-        double rmin = 6.056877878; // cut-off distance
-        double Mw = magnitude;	// reasonable assumption
-        double S = 1; // initialise site term
-
-        int cnt = 0; // init
-        
-        double amp = 1; //init
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-        
-        double Rh = distance / 1000; // in kilometers
-
-        // end of distance computation
-       
-        
-        // Apply distance cutoff
-        double Ru = max(rmin, Rh);
-        
-        
-     // Site term
-        if (amplificationProxyValueSI < 760 ){
-            S = 1;
-        } else {
-        	S = 0;
-        }
-        
-        if (amplificationProxyValueSI == -1 ) {
-        	S = log(-1);
-        }
-        
-        
-        // pick the right coefficients according to the spectral period
-        if (period == 0.025) {
-            cnt = 1;
- 
-        } else if (period == 0.05) {
-            cnt = 2;
- 
-
-        } else if (period == 0.1) {
-            cnt = 3;
-            
-
-        } else if (period == 0.2) {
-            cnt = 4;
- 
-        } else if (period == 0.5) {
-            cnt = 5;
- 
-
-        } else if (period == 1) {
-            cnt = 6;
- 
-            
-        } else if (period == 2) {
-            cnt = 7;
-
-            
-        } else if (period == 4) {
-            cnt = 8;
-            
-        }
-        
-        // Original predictions are in PSV
-        double logpsvsite = Cofs[cnt][1] + Cofs[cnt][2] * Mw + Cofs[cnt][3] * log(Ru) + Cofs[cnt][4] * Ru + Cofs[cnt][5] * S;
-
-        
-        // Now compute plus/minus sigma bounds
-        double sigma = Cofs[cnt][6] / Cofs[cnt][8];
-        double logpsvsiteplus = logpsvsite + sigma;
-        double logpsvsiteminus = logpsvsite - sigma;
-
-        // Now in m/s2, including correction from max to gm e pseudo-relationship
-        Shaking PSA = new Shaking() ;
-        PSA.expectedSI = (PI_2 / period) * exp(logpsvsite) / Cofs[cnt][7];
-        PSA.percentile84 = (PI_2 / period) * exp(logpsvsiteplus) / Cofs[cnt][7];
-        PSA.percentile16 = (PI_2 / period) * exp(logpsvsiteminus) / Cofs[cnt][7];
-
-        // Now should return Shaking ...
-        return PSA;
+        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PSA, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
@@ -244,21 +89,91 @@ public class Cli94 implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
                           double sourceDepthM, double targetLat, double targetLon,
                           double targetElevM, String amplificationType,
                           double amplificationProxyValueSI, double period,
-                          EventParameters eventML,
+                          EventParameters eventParameters,
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-        Shaking PSA = getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-                             targetLat, targetLon, targetElevM,
-                             amplificationType, amplificationProxyValueSI,
-                             period, null, ruptureLength, ruptureStrike);
+        // Returns median DRS, 16th-percentile DRS, 84th percentile DRS in m
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.DRS, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
 
-        double accelerationToDisplacement = period * period / PI2_4;
-        PSA.expectedSI *= accelerationToDisplacement;
-        PSA.percentile16 *= accelerationToDisplacement;
-        PSA.percentile84 *= accelerationToDisplacement;
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        switch (type) {
+            case PGA:
+                return new Prepared(event, 0, 1, 1);
+            case PSA:
+            case DRS:
+                int cnt = Periods.row(period);
+                if (cnt < 0) {
+                    return Periods.interpolate(this, event, type, period);
+                }
+                return new Prepared(event, cnt, PI_2 / period,
+                                    type == Shaking.Type.DRS
+                                    ? period * period / PI2_4 : 1);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Model prepared for one event. The magnitude term is computed once, the
+     * summation order of the original formula is kept to produce identical
+     * results.
+     */
+    private static class Prepared extends PreparedModel {
+
+        private final double[] c;
+        private final double toSI;
+        private final double factor;
+        private final double m0;
+        private final double sigma;
+
+        /**
+         * @param toSI conversion of the predicted value, e.g. PSV to PSA
+         * @param factor factor applied to the final value
+         */
+        Prepared(EventContext event, int cnt, double toSI, double factor) {
+            super(event);
+            this.c = Cofs[cnt];
+            this.toSI = toSI;
+            this.factor = factor;
+
+            double Mw = event.magnitude;
+            m0 = c[1] + c[2] * Mw;
+            sigma = c[6] / c[8];
+        }
 
-        // Now in m/s
-        return PSA;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double rmin = 6.056877878; // cut-off distance
+
+            // soil term, ampType is VS30
+            double S = amplificationProxyValueSI < 760 ? 1 : 0;
+            if (amplificationProxyValueSI == -1) {
+                S = log(-1);
+            }
+
+            double Rh = distanceM / 1000; // in kilometers
+            double Ru = max(rmin, Rh);
+            double logsite = m0 + c[3] * log(Ru) + c[4] * Ru + c[5] * S;
+
+            outMedian[index] = toSI * exp(logsite) / c[7] * factor;
+            if (out84 != null) {
+                out84[index] = toSI * exp(logsite + sigma) / c[7] * factor;
+            }
+            if (out16 != null) {
+                out16[index] = toSI * exp(logsite - sigma) / c[7] * factor;
+            }
+        }
     }
 }
@@ -6,14 +6,17 @@ package org.reakteu.eewd.gmpe.impl;
  */
 // import useful packages
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
 import org.reakteu.eewd.gmpe.AttenuationPGV;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.data.EventContext;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
 import static java.lang.Math.*;
 
-public class ISNet implements AttenuationPGA, AttenuationPGV {
+public class ISNet implements AttenuationPGA, AttenuationPGV,
+                              AttenuationModel {
     // Returns median PGA, 16th-percentile PGA, 84th percentile PGA
     // Mag is the magnitude from the EW message
 
@@ -25,53 +28,15 @@ public class ISNet implements AttenuationPGA, AttenuationPGV {
                           EventParameters eventParameters,
                           Float ruptureLength,
                           Float ruptureStrike) {
-    	// Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
-
-        double R = distance / 1000; // in kilometers
-
-        // Compute log10(PGA_m)
-        double logpga, logpgasigma;
-        if (magnitude >= 4) {
-            // Akkar and Bommer (BSSA,2007) [cm/s^2]
-            logpga = 1.647 + 0.767 * magnitude - 0.074 * pow(magnitude, 2) + (-3.162 + 0.321 * magnitude) * log10(sqrt(pow(R, 2) + pow(7.682, 2))) - 2;	// - 2 for meters
-            logpgasigma = sqrt(pow(0.557 - 0.049 * magnitude, 2) + pow(0.189 - 0.017 * magnitude, 2));
-        } else {
-            // Emolo et al. (JGE,2010) [m/s^2]
-            logpga = -2.024 + 0.469 * magnitude - 1.442 * log10(R);
-            logpgasigma = 0.444;
-        }
-
-        // Return shaking in m/s^2
-        Shaking PGA = new Shaking();
-        PGA.expectedSI = pow(10, logpga);
-        PGA.percentile84 = pow(10, logpga + logpgasigma);
-        PGA.percentile16 = pow(10, logpga - logpgasigma);
 
-        return PGA;
+        // Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGA, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
@@ -82,52 +47,78 @@ public class ISNet implements AttenuationPGA, AttenuationPGV {
                           EventParameters eventParameters,
                           Float ruptureLength,
                           Float ruptureStrike) {
-    	// Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
+
+        // Returns median PGV, 16th-percentile PGV, 84th percentile PGV in m/s
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGV, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
+
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        double magnitude = event.magnitude;
+        if (type == Shaking.Type.PGA) {
+            if (magnitude >= 4) {
+                return new Prepared(event, false,
+                                    1.647 + 0.767 * magnitude - 0.074 * pow(magnitude, 2),
+                                    -3.162 + 0.321 * magnitude, pow(7.682, 2),
+                                    sqrt(pow(0.557 - 0.049 * magnitude, 2) + pow(0.189 - 0.017 * magnitude, 2)));
+            }
+            return new Prepared(event, true, -2.024 + 0.469 * magnitude, 1.442,
+                                0, 0.444);
+        } else if (type == Shaking.Type.PGV) {
+            if (magnitude >= 4) {
+                return new Prepared(event, false,
+                                    -1.36 + 1.063 * magnitude - 0.079 * pow(magnitude, 2),
+                                    -2.948 + 0.306 * magnitude, pow(5.547, 2),
+                                    sqrt(pow(0.85 - 0.096 * magnitude, 2) + pow(0.313 - 0.040 * magnitude, 2)));
+            }
+            return new Prepared(event, true, -3.943 + 0.540 * magnitude, 1.458,
+                                0, 0.359);
         }
+        return null;
+    }
 
+    /**
+     * Model prepared for one event: Akkar and Bommer (2007) for M >= 4,
+     * Emolo et al. (2010) for smaller magnitudes, with precomputed magnitude
+     * terms
+     */
+    private static class Prepared extends PreparedModel {
 
-        double R = distance / 1000; // in kilometers
+        private final boolean small;
+        private final double m0, m1, h2, sigma;
 
-        // Compute log10(PGV_cm)
-        double logpgv, logpgvsigma;
-        if (magnitude >= 4) {
-            // Akkar and Bommer (BSSA,2007) [cm/s]
-            logpgv = -1.36 + 1.063 * magnitude - 0.079 * pow(magnitude, 2) + (-2.948 + 0.306 * magnitude) * log10(sqrt(pow(R, 2) + pow(5.547, 2))) - 2;	// - 2 for meters
-            logpgvsigma = sqrt(pow(0.85 - 0.096 * magnitude, 2) + pow(0.313 - 0.040 * magnitude, 2));
-        } else {
-            // Emolo et al. (JGE,2010) [m/s]
-            logpgv = -3.943 + 0.540 * magnitude - 1.458 * log10(R);
-            logpgvsigma = 0.359;
+        Prepared(EventContext event, boolean small, double m0, double m1,
+                 double h2, double sigma) {
+            super(event);
+            this.small = small;
+            this.m0 = m0;
+            this.m1 = m1;
+            this.h2 = h2;
+            this.sigma = sigma;
         }
 
-        // Return shaking in m/s
-        Shaking PGV = new Shaking();
-        PGV.expectedSI = pow(10, logpgv);
-        PGV.percentile84 = pow(10, logpgv + logpgvsigma);
-        PGV.percentile16 = pow(10, logpgv - logpgvsigma);
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double R = distanceM / 1000; // in kilometers
+            double log = small ? m0 - m1 * log10(R)
+                         : m0 + m1 * log10(sqrt(pow(R, 2) + h2)) - 2; // - 2 for meters
 
-        return PGV;
+            outMedian[index] = pow(10, log);
+            if (out84 != null) {
+                out84[index] = pow(10, log + sigma);
+            }
+            if (out16 != null) {
+                out16[index] = pow(10, log - sigma);
+            }
+        }
     }
 }
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2014-2015 by gempa GmbH - http://gempa.de
+ * License: http://www.gnu.org/licenses/gpl.html GPL version 2 or higher
+ */
+package org.reakteu.eewd.gmpe.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.quakeml.xmlns.bedRt.x12.EventParameters;
+import org.reakteu.eewd.Application;
+import org.reakteu.eewd.data.EventContext;
+import org.reakteu.eewd.data.Shaking;
+import org.reakteu.eewd.gmpe.AttenuationDRS;
+import org.reakteu.eewd.gmpe.AttenuationModel;
+import org.reakteu.eewd.gmpe.AttenuationPGA;
+import org.reakteu.eewd.gmpe.AttenuationPGV;
+import org.reakteu.eewd.gmpe.AttenuationPSA;
+import org.reakteu.eewd.gmpe.BatchAdapter;
+import org.reakteu.eewd.gmpe.PreparedModel;
+
+/**
+ * Weighted logic tree of attenuation models. The branches are read from the
+ * properties below the prefix of the tree, {@code logicTree} by default:
+ * <pre>
+ * logicTree.branches = a, b
+ * logicTree.a.class = org.reakteu.eewd.gmpe.impl.Cli94
+ * logicTree.a.weight = 0.5
+ * logicTree.a.maxDepth = 25
+ * </pre>
+ * A branch is used for an event if its focal depth (km) is within
+ * [{@code minDepth}, {@code maxDepth}) and its magnitude within
+ * [{@code minMagnitude}, {@code maxMagnitude}), unset limits are unbounded.
+ * The depth limits may be changed to (minDepth, ...) by
+ * {@code minDepthExclusive = true} and to (..., maxDepth] by
+ * {@code maxDepthInclusive = true}.
+ * The median and percentiles are the weighted means of the branches used
+ * for the event, the weights are normalized to a sum of 1. DRS is derived
+ * from the mean PSA of the branches.
+ *
+ * The branch models are instantiated once and prepared once per event. All
+ * branches are evaluated at the same precomputed distance. The branches of a
+ * point are evaluated one after another since the points are already
+ * distributed over the worker pool.
+ *
+ * @author Stephan Herrnkind herrnkind at gempa dot de
+ */
+public class LogicTree implements AttenuationPGA, AttenuationPGV, AttenuationPSA, AttenuationDRS,
+                                  AttenuationModel {
+
+    private static final Logger LOG = LogManager.getLogger(LogicTree.class);
+
+    public static final String PropertyPrefix = "logicTree";
+    public static final String PropertyBranches = "branches";
+
+    public static final double PI2_4 = 4 * Math.PI * Math.PI;
+
+    private final String prefix;
+    private final Branch[] branches;
+
+    public LogicTree() {
+        this(PropertyPrefix, new Properties());
+    }
+
+    /**
+     * @param prefix property prefix of the tree
+     * @param defaults configuration used for properties not set in the
+     * application properties
+     */
+    protected LogicTree(String prefix, Properties defaults) {
+        this.prefix = prefix;
+        Application app = Application.getInstance();
+        Properties properties = new Properties(defaults);
+        if (app != null) {
+            for (String key : app.getProperties().stringPropertyNames()) {
+                if (key.startsWith(prefix + ".")) {
+                    properties.setProperty(key, app.getProperties().getProperty(key));
+                }
+            }
+        }
+
+        List<Branch> list = new ArrayList<>();
+        Map<String, Object> instances = new HashMap<>();
+        String names = properties.getProperty(prefix + "." + PropertyBranches, "");
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String p = prefix + "." + name + ".";
+            String className = properties.getProperty(p + "class", "").trim();
+            Object impl = instances.get(className);
+            if (impl == null) {
+                try {
+                    impl = Class.forName(className).getDeclaredConstructor().newInstance();
+                    instances.put(className, impl);
+                } catch (ClassNotFoundException cnfe) {
+                    LOG.error("could not find class " + className + " of logic tree branch " + p);
+                    continue;
+                } catch (ReflectiveOperationException ex) {
+                    LOG.error("could not create instance of " + className
+                              + " for logic tree branch " + p, ex);
+                    continue;
+                }
+            }
+            Branch branch = new Branch(
+                    name, impl,
+                    value(properties, p + "weight", 1),
+                    value(properties, p + "minDepth", Double.NEGATIVE_INFINITY),
+                    value(properties, p + "maxDepth", Double.POSITIVE_INFINITY),
+                    value(properties, p + "minDepthExclusive", false),
+                    value(properties, p + "maxDepthInclusive", false),
+                    value(properties, p + "minMagnitude", Double.NEGATIVE_INFINITY),
+                    value(properties, p + "maxMagnitude", Double.POSITIVE_INFINITY));
+            if (!(branch.weight > 0)) {
+                LOG.warn("ignoring logic tree branch " + p + " without positive weight");
+                continue;
+            }
+            list.add(branch);
+        }
+        branches = list.toArray(new Branch[list.size()]);
+        if (branches.length == 0) {
+            LOG.warn("logic tree " + prefix + " has no branches");
+        } else {
+            LOG.info("logic tree " + prefix + " created with " + branches.length + " branch(es)");
+        }
+    }
+
+    private static double value(Properties properties, String key, double def) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException nfe) {
+                LOG.warn(String.format("invalid double found in property: %s",
+                                       key));
+            }
+        }
+        return def;
+    }
+
+    private static boolean value(Properties properties, String key, boolean def) {
+        String value = properties.getProperty(key);
+        return value == null ? def : Boolean.parseBoolean(value.trim());
+    }
+
+    @Override
+    public Shaking getPGA(double magnitude, double sourceLat, double sourceLon,
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
+        return evaluate(new EventContext(magnitude, sourceLat, sourceLon,
+                                         sourceDepthM, amplificationType,
+                                         eventParameters, ruptureLength,
+                                         ruptureStrike),
+                        Shaking.Type.PGA, 0, targetLat, targetLon, targetElevM,
+                        amplificationProxyValueSI);
+    }
+
+    @Override
+    public Shaking getPGV(double magnitude, double sourceLat, double sourceLon,
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
+        return evaluate(new EventContext(magnitude, sourceLat, sourceLon,
+                                         sourceDepthM, amplificationType,
+                                         eventParameters, ruptureLength,
+                                         ruptureStrike),
+                        Shaking.Type.PGV, 0, targetLat, targetLon, targetElevM,
+                        amplificationProxyValueSI);
+    }
+
+    @Override
+    public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI, double period,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
+        return evaluate(new EventContext(magnitude, sourceLat, sourceLon,
+                                         sourceDepthM, amplificationType,
+                                         eventParameters, ruptureLength,
+                                         ruptureStrike),
+                        Shaking.Type.PSA, period, targetLat, targetLon,
+                        targetElevM, amplificationProxyValueSI);
+    }
+
+    @Override
+    public Shaking getDRS(double magnitude, double sourceLat, double sourceLon,
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI, double period,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
+        return evaluate(new EventContext(magnitude, sourceLat, sourceLon,
+                                         sourceDepthM, amplificationType,
+                                         eventParameters, ruptureLength,
+                                         ruptureStrike),
+                        Shaking.Type.DRS, period, targetLat, targetLon,
+                        targetElevM, amplificationProxyValueSI);
+    }
+
+    private Shaking evaluate(EventContext event, Shaking.Type type,
+                             double period, double targetLat, double targetLon,
+                             double targetElevM, double amplificationProxyValueSI) {
+        PreparedModel model = prepare(event, type, period);
+        return model == null ? null
+               : model.evaluate(targetLat, targetLon, targetElevM,
+                                amplificationProxyValueSI);
+    }
+
+    /**
+     * Prepares the branches used for the event
+     *
+     * @return prepared tree or null if no branch is used for the event or a
+     * used branch does not support the shaking parameter
+     */
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        double factor = 1;
+        if (type == Shaking.Type.DRS) {
+            // the spectral acceleration is converted after averaging
+            type = Shaking.Type.PSA;
+            factor = period * period / PI2_4;
+        } else if (type == Shaking.Type.Intensity) {
+            return null;
+        }
+
+        double depth = event.depth / 1000; // depth in km
+        int n = 0;
+        double sum = 0;
+        PreparedModel[] models = new PreparedModel[branches.length];
+        double[] weights = new double[branches.length];
+        for (Branch branch : branches) {
+            if (!branch.matches(depth, event.magnitude)) {
+                continue;
+            }
+            models[n] = BatchAdapter.prepare(branch.impl, event, type, period);
+            if (models[n] == null) {
+                LOG.debug(String.format("logic tree %s: branch %s does not support %s",
+                                        prefix, branch.name, type.toString()));
+                return null;
+            }
+            weights[n] = branch.weight;
+            sum += branch.weight;
+            ++n;
+        }
+        if (n == 0) {
+            LOG.debug(String.format("logic tree %s: no branch for depth %.1fkm, magnitude %.1f",
+                                    prefix, depth, event.magnitude));
+            return null;
+        }
+        for (int i = 0; i < n; ++i) {
+            weights[i] /= sum;
+        }
+        return new Prepared(event, Arrays.copyOf(models, n),
+                            Arrays.copyOf(weights, n), factor);
+    }
+
+    /**
+     * Branch of the tree with the depth and magnitude range of the events it
+     * is used for
+     */
+    private static class Branch {
+
+        private final String name;
+        private final Object impl;
+        private final double weight;
+        private final double minDepth, maxDepth;
+        private final boolean minDepthExclusive, maxDepthInclusive;
+        private final double minMagnitude, maxMagnitude;
+
+        Branch(String name, Object impl, double weight, double minDepth,
+               double maxDepth, boolean minDepthExclusive,
+               boolean maxDepthInclusive, double minMagnitude,
+               double maxMagnitude) {
+            this.name = name;
+            this.impl = impl;
+            this.weight = weight;
+            this.minDepth = minDepth;
+            this.maxDepth = maxDepth;
+            this.minDepthExclusive = minDepthExclusive;
+            this.maxDepthInclusive = maxDepthInclusive;
+            this.minMagnitude = minMagnitude;
+            this.maxMagnitude = maxMagnitude;
+        }
+
+        boolean matches(double depth, double magnitude) {
+            return (minDepthExclusive ? depth > minDepth : depth >= minDepth)
+                   && (maxDepthInclusive ? depth <= maxDepth : depth < maxDepth)
+                   && magnitude >= minMagnitude && magnitude < maxMagnitude;
+        }
+    }
+
+    /**
+     * Weighted mean of the prepared branches. The values of each branch are
+     * temporarily stored in the output arrays.
+     */
+    private static class Prepared extends PreparedModel {
+
+        private final PreparedModel[] models;
+        private final double[] weights;
+        private final double factor;
+        private final boolean distance;
+
+        Prepared(EventContext event, PreparedModel[] models, double[] weights,
+                 double factor) {
+            super(event);
+            this.models = models;
+            this.weights = weights;
+            this.factor = factor;
+            boolean d = true;
+            for (PreparedModel model : models) {
+                d &= model.supportsDistance();
+            }
+            this.distance = d;
+        }
+
+        @Override
+        public boolean supportsDistance() {
+            return distance;
+        }
+
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double median = 0, p16 = 0, p84 = 0;
+            for (int k = 0; k < models.length; ++k) {
+                models[k].evaluate(distanceM, amplificationProxyValueSI, index,
+                                   outMedian, out16, out84);
+                median += weights[k] * outMedian[index];
+                p16 += out16 == null ? 0 : weights[k] * out16[index];
+                p84 += out84 == null ? 0 : weights[k] * out84[index];
+            }
+            store(index, median, p16, p84, outMedian, out16, out84);
+        }
+
+        @Override
+        public void evaluate(double[] targetLat, double[] targetLon,
+                             double[] targetElevM, double[] amplificationProxyValueSI,
+                             int from, int to,
+                             double[] outMedian, double[] out16, double[] out84) {
+            if (distance) {
+                super.evaluate(targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI, from, to, outMedian,
+                               out16, out84);
+                return;
+            }
+            // branches without distance based evaluation, e.g. scalar
+            // implementations, are evaluated per coordinate
+            for (int i = from; i < to; ++i) {
+                double median = 0, p16 = 0, p84 = 0;
+                for (int k = 0; k < models.length; ++k) {
+                    models[k].evaluate(targetLat, targetLon, targetElevM,
+                                       amplificationProxyValueSI, i, i + 1,
+                                       outMedian, out16, out84);
+                    median += weights[k] * outMedian[i];
+                    p16 += out16 == null ? 0 : weights[k] * out16[i];
+                    p84 += out84 == null ? 0 : weights[k] * out84[i];
+                }
+                store(i, median, p16, p84, outMedian, out16, out84);
+            }
+        }
+
+        @Override
+        public Shaking evaluate(double targetLat, double targetLon,
+                                double targetElevM, double amplificationProxyValueSI) {
+            if (distance) {
+                return super.evaluate(targetLat, targetLon, targetElevM,
+                                      amplificationProxyValueSI);
+            }
+            double[] median = new double[1];
+            double[] p16 = new double[1];
+            double[] p84 = new double[1];
+            evaluate(new double[]{targetLat}, new double[]{targetLon},
+                     new double[]{targetElevM},
+                     new double[]{amplificationProxyValueSI}, 0, 1, median,
+                     p16, p84);
+            Shaking s = new Shaking();
+            s.expectedSI = median[0];
+            s.percentile16 = p16[0];
+            s.percentile84 = p84[0];
+            return s;
+        }
+
+        private void store(int index, double median, double p16, double p84,
+                           double[] outMedian, double[] out16, double[] out84) {
+            outMedian[index] = factor * median;
+            if (out16 != null) {
+                out16[index] = factor * p16;
+            }
+            if (out84 != null) {
+                out84[index] = factor * p84;
+            }
+        }
+    }
+}
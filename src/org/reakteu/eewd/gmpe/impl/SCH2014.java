@@ -27,17 +27,21 @@ package org.reakteu.eewd.gmpe.impl;
  */
 import static java.lang.Math.*;
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
 import org.reakteu.eewd.gmpe.AttenuationPSA;
 import org.reakteu.eewd.gmpe.AttenuationDRS;
+import org.reakteu.eewd.gmpe.PeriodIndex;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.data.EventContext;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
 /**
  * @author Billy Burgoa Rosso
  */
 
-public class SCH2014 implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
+public class SCH2014 implements AttenuationPGA, AttenuationPSA, AttenuationDRS,
+                                AttenuationModel {
 
     //Coefficients GMPE
     // The first row in each matrix is the coeficients for PGA
@@ -105,364 +109,158 @@ public class SCH2014 implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
     public static final double PI2_4 = 4 * PI * PI;
     public static final double PI_2 = 2 * PI;
 
+    // tabulated spectral periods and their coefficient rows of the crustal
+    // (Cofs) and subduction (CofsSub) coefficients
+    private static final PeriodIndex Periods = new PeriodIndex(
+            new double[]{0.02, 0.075, 0.1, 0.15, 0.2, 0.24, 0.303, 0.34, 0.4, 0.44, 0.5,
+                         0.6, 0.752, 0.9, 1.0, 1.25, 1.493, 2.0, 2.5, 3.03, 4.0, 5.0},
+            new int[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+                      19, 20, 21, 22});
+    private static final PeriodIndex PeriodsSub = new PeriodIndex(
+            new double[]{0.02, 0.04, 0.075, 0.1, 0.15, 0.2, 0.24, 0.303, 0.34, 0.4, 0.44,
+                         0.5, 0.6, 0.752, 0.9, 1.0, 1.25, 1.493, 2.0, 2.5, 3.03, 4.0, 5.0},
+            new int[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+                      19, 20, 21, 22, 23});
+
     @Override
     public Shaking getPGA(double magnitude, double sourceLat, double sourceLon,
-            double sourceDepthM, double targetLat, double targetLon,
-            double targetElevM, String amplificationType,
-            double amplificationProxyValueSI,
-            EventParameters eventParameters,
-            Float ruptureLength,
-            Float ruptureStrike) {
-        
-        // Returns PGA, 16th-percentile PGA, 84th percentile PGA in cm/s2 (?)
-       
-        double rmin = 10.0; // Minumum Distance
-        double Mw = magnitude;
-        double S = 1;
-        double H = 0;
-
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-
-        double distance;
-
-        if (ruptureLength != null) {
-
-            double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1], lExtremes[0], lExtremes[2]};
-            double[] end = {lExtremes[4], lExtremes[3], lExtremes[5]};
-            double[] current = {pTarget[0], pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-
-        } else {
-
-            distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
-        double Rh = distance / 1000; // in kilometers
-
-        // Apply distance cutoff
-        double Ru = max(rmin, Rh);
-
-        // Site term
-        if (amplificationProxyValueSI < 760) {
-            //S III and IV are for soft soil
-            S = 1;
-            H = 0;
-
-        } else {
-            // S I is rock site
-            S = 0;
-            H = 0;
-        }
-
-        if (amplificationProxyValueSI == -1) {
-            // 
-            S = log(-1);
-            H = 0;
-        }
-
-        double depthKm = sourceDepthM / 1000.; // Depth in km
-
-        //Shallow or Crustal Events
-        if (depthKm < 25) {
-
-            // Compute ground-motion prediction
-            double logpgasite = Cofs[0][2] + Cofs[0][3] * Mw + Cofs[0][4] * log(Math.sqrt(Ru * Ru + Cofs[0][5] * Cofs[0][5])) + Cofs[0][6] * S + Cofs[0][7] * H;
-
-            //Compute +/- sigma bounds
-            double logpgasiteplus = logpgasite + Cofs[0][8];
-            double logpgasiteminus = logpgasite - Cofs[0][8];
-
-            // The original PGA is in cm/s*2 
-            // So it is applied a basic conversion from cm to m
-            Shaking PGA = new Shaking();
-//            PGA.expectedSI = pow(10,logpgasite)/100;
-//            PGA.percentile84 = pow(10,logpgasiteplus)/100;
-//            PGA.percentile16 = pow(10,logpgasiteminus)/100;
-
-            PGA.expectedSI = pow(10,logpgasite);
-            PGA.percentile84 = pow(10,logpgasiteplus);
-            PGA.percentile16 = pow(10,logpgasiteminus);
-
-            return PGA;
-        } //Subduction Events
-        else {
-
-            // Compute ground-motion prediction
-            double logpgasite = CofsSub[0][2] + CofsSub[0][3] * Mw + CofsSub[0][4] * log(Math.sqrt(Ru * Ru + pow(5, 2))) + CofsSub[0][5] * S + CofsSub[0][6] * H;
-
-            //Compute +/- sigma bounds
-            double logpgasiteplus = logpgasite + CofsSub[0][7];
-            double logpgasiteminus = logpgasite - CofsSub[0][7];
-
-            // The original PGA is in cm/s*2 
-            // So it is applied a basic conversion from cm to m
-            // and the PGA is in m/s*2
-            Shaking PGA = new Shaking();
-//            PGA.expectedSI = pow(10,logpgasite)/100;
-//            PGA.percentile84 = pow(10,logpgasiteplus)/100;
-//            PGA.percentile16 = pow(10,logpgasiteminus)/100;
-
-            PGA.expectedSI = pow(10,logpgasite);
-            PGA.percentile84 = pow(10,logpgasiteplus);
-            PGA.percentile16 = pow(10,logpgasiteminus);
-
-            return PGA;
-
-        }
-
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
+
+        // Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGA, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
     public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
-            double sourceDepthM, double targetLat, double targetLon,
-            double targetElevM, String amplificationType,
-            double amplificationProxyValueSI, double period,
-            EventParameters eventParameters,
-            Float ruptureLength,
-            Float ruptureStrike) {
-        // Returns PsA, 16th-percentile PGA, 84th percentile PGA in cm/s2 (?)
-        
-        double rmin = 10.0; //Minimum Distance
-        double Mw = magnitude;
-        double S = 1; //site term 
-        double H = 0; // site term
-        int cnt = 1; // counter value
-
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-
-        double distance;
-
-        if (ruptureLength != null) {
-
-            double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1], lExtremes[0], lExtremes[2]};
-            double[] end = {lExtremes[4], lExtremes[3], lExtremes[5]};
-            double[] current = {pTarget[0], pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI, double period,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
+
+        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PSA, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
 
-        } else {
+    @Override
+    public Shaking getDRS(double magnitude, double sourceLat, double sourceLon,
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI, double period,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
+
+        // Returns median DRS, 16th-percentile DRS, 84th percentile DRS in m
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.DRS, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
 
-            distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        switch (type) {
+            case PGA:
+                return new Prepared(event, 0, 1);
+            case PSA:
+            case DRS:
+                PeriodIndex periods = isSubduction(event) ? PeriodsSub : Periods;
+                int cnt = periods.row(period);
+                if (cnt < 0) {
+                    return periods.interpolate(this, event, type, period);
+                }
+                return new Prepared(event, cnt, type == Shaking.Type.DRS
+                                                ? period * period / PI2_4 : 1);
+            default:
+                return null;
         }
+    }
 
-        double Rh = distance / 1000; // in kilometers
-
-        // Apply distance cutoff
-        double Ru = max(rmin, Rh);
-
-        // Site terms
-        if (amplificationProxyValueSI < 760) {
-            //S III and IV are for soft soil
-            S = 1;
-            H = 0;
-
-        } else {
-            // S I is rock site
-            S = 0;
-            H = 0;
-        }
+    private static boolean isSubduction(EventContext event) {
+        return !(event.depth / 1000. < 25);
+    }
 
-        if (amplificationProxyValueSI == -1) { 
-            // 
-            S = log(-1);
-            H = 0;
+    /**
+     * Model prepared for one event. The coefficient set is chosen once by the
+     * focal depth, the summation order of the original formula is kept to
+     * produce identical results.
+     */
+    private static class Prepared extends PreparedModel {
+
+        private final double factor;
+        private final double m0, c4, h2, cS, cH, sigma;
+
+        Prepared(EventContext event, int cnt, double factor) {
+            super(event);
+            this.factor = factor;
+
+            double Mw = event.magnitude;
+            if (isSubduction(event)) {
+                double[] c = CofsSub[cnt];
+                m0 = c[2] + c[3] * Mw;
+                c4 = c[4];
+                h2 = pow(5, 2);
+                cS = c[5];
+                cH = c[6];
+                sigma = c[7];
+            } else {
+                double[] c = Cofs[cnt];
+                m0 = c[2] + c[3] * Mw;
+                c4 = c[4];
+                h2 = c[5] * c[5];
+                cS = c[6];
+                cH = c[7];
+                sigma = c[8];
+            }
         }
 
-        double depthKm = sourceDepthM / 1000.0; //depth in km
-
-        // pick the right coefficients according to the spectral period
-        //Shallow events
-        if (depthKm < 25) {
-
-            if (period == 0.02) {
-                cnt = 1;
-            } else if (period == 0.075) {
-                cnt = 2;
-            } else if (period == 0.1) {
-                cnt = 3;
-            } else if (period == 0.15) {
-                cnt = 4;
-            } else if (period == 0.2) {
-                cnt = 5;
-            } else if (period == 0.24) {
-                cnt = 6;
-            } else if (period == 0.303) {
-                cnt = 7;
-            } else if (period == 0.34) {
-                cnt = 8;
-            } else if (period == 0.4) {
-                cnt = 9;
-            } else if (period == 0.44) {
-                cnt = 10;
-            } else if (period == 0.5) {
-                cnt = 11;
-            } else if (period == 0.6) {
-                cnt = 12;
-
-            } else if (period == 0.752) {
-                cnt = 13;
-
-            } else if (period == 0.9) {
-                cnt = 14;
-
-            } else if (period == 1.0) {
-                cnt = 15;
-
-            } else if (period == 1.25) {
-                cnt = 16;
-
-            } else if (period == 1.493) {
-                cnt = 17;
-
-            } else if (period == 2.0) {
-                cnt = 18;
-
-            } else if (period == 2.5) {
-                cnt = 19;
-
-            } else if (period == 3.03) {
-                cnt = 20;
-
-            } else if (period == 4.0) {
-                cnt = 21;
-
-            } else if (period == 5.0) {
-                cnt = 22;
-
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double rmin = 10.0; // Minimum Distance
+            double H = 0;
+
+            // soil term, ampType is VS30
+            double S = amplificationProxyValueSI < 760 ? 1 : 0;
+            if (amplificationProxyValueSI == -1) {
+                S = log(-1);
             }
 
-            // Compute PSA
-            double logpsasite = Cofs[cnt][2] + Cofs[cnt][3] * Mw + Cofs[cnt][4] * log(Math.sqrt(Ru * Ru + Cofs[cnt][5] * Cofs[cnt][5])) + Cofs[cnt][6] * S + Cofs[cnt][7] * H;
-
-            double logpsasiteplus = logpsasite + Cofs[cnt][8];
-            double logpsasiteminus = logpsasite - Cofs[cnt][8];
-
-            Shaking PSA = new Shaking();
-//            PSA divided by 100 to have in m/s**2
-//            PSA.expectedSI = pow(10,logpsasite)/100;
-//            PSA.percentile84 = pow(10,logpsasiteplus)/100;
-//            PSA.percentile16 = pow(10,logpsasiteminus)/100;  
-
-            PSA.expectedSI = pow(10,logpsasite);
-            PSA.percentile84 = pow(10,logpsasiteplus);
-            PSA.percentile16 = pow(10,logpsasiteminus);
-            return PSA;
-        } 
-        //Depth >= 25 km
-        else {
-
-            if (period == 0.02) {
-                cnt = 1;
-            } else if (period == 0.04) {
-                cnt = 2;
-            } else if (period == 0.075) {
-                cnt = 3;
-            } else if (period == 0.1) {
-                cnt = 4;
-
-            } else if (period == 0.15) {
-                cnt = 5;
-
-            } else if (period == 0.2) {
-                cnt = 6;
-
-            } else if (period == 0.24) {
-                cnt = 7;
-
-            } else if (period == 0.303) {
-                cnt = 8;
-
-            } else if (period == 0.34) {
-                cnt = 9;
-
-            } else if (period == 0.4) {
-                cnt = 10;
-
-            } else if (period == 0.44) {
-                cnt = 11;
-
-            } else if (period == 0.5) {
-                cnt = 12;
-
-            } else if (period == 0.6) {
-                cnt = 13;
-
-            } else if (period == 0.752) {
-                cnt = 14;
-
-            } else if (period == 0.9) {
-                cnt = 15;
-
-            } else if (period == 1.0) {
-                cnt = 16;
-
-            } else if (period == 1.25) {
-                cnt = 17;
-
-            } else if (period == 1.493) {
-                cnt = 18;
-
-            } else if (period == 2.0) {
-                cnt = 19;
-
-            } else if (period == 2.5) {
-                cnt = 20;
-
-            } else if (period == 3.03) {
-                cnt = 21;
-
-            } else if (period == 4.0) {
-                cnt = 22;
-
-            } else if (period == 5.0) {
-                cnt = 23;
+            double Rh = distanceM / 1000; // in kilometers
+            double Ru = max(rmin, Rh);
+            double logsite = m0 + c4 * log(Math.sqrt(Ru * Ru + h2)) + cS * S + cH * H;
 
+            outMedian[index] = pow(10, logsite) * factor;
+            if (out84 != null) {
+                out84[index] = pow(10, logsite + sigma) * factor;
+            }
+            if (out16 != null) {
+                out16[index] = pow(10, logsite - sigma) * factor;
             }
-
-            // Compute PSA
-            double logpsasite = CofsSub[cnt][2] + CofsSub[cnt][3] * Mw + CofsSub[cnt][4] * log(Math.sqrt(Ru * Ru + pow(5, 2))) + CofsSub[cnt][5] * S + CofsSub[cnt][6] * H;
-
-            double logpsasiteplus = logpsasite + CofsSub[cnt][7];
-            double logpsasiteminus = logpsasite - CofsSub[cnt][7];
-
-            Shaking PSA = new Shaking();
-            //PSA divided by 100 to have in m/s**2
-//            PSA.expectedSI = pow(10,logpsasite)/100;
-//            PSA.percentile84 = pow(10,logpsasiteplus)/100;
-//            PSA.percentile16 = pow(10,logpsasiteminus)/100;
-
-            PSA.expectedSI = pow(10,logpsasite);
-            PSA.percentile84 = pow(10,logpsasiteplus);
-            PSA.percentile16 = pow(10,logpsasiteminus);
-            return PSA;
         }
-
-    }
-
-    @Override
-    public Shaking getDRS(double magnitude, double sourceLat, double sourceLon,
-            double sourceDepthM, double targetLat, double targetLon,
-            double targetElevM, String amplificationType,
-            double amplificationProxyValueSI, double period,
-            EventParameters eventParameters,
-            Float ruptureLength,
-            Float ruptureStrike) {
-
-        Shaking PSA = getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-                targetLat, targetLon, targetElevM,
-                amplificationType, amplificationProxyValueSI,
-                period, null, ruptureLength, ruptureStrike);
-
-        double accelerationToDisplacement = period * period / PI2_4;
-        PSA.expectedSI *= accelerationToDisplacement;
-        PSA.percentile16 *= accelerationToDisplacement;
-        PSA.percentile84 *= accelerationToDisplacement;
-
-        return PSA;
     }
 }
@@ -6,11 +6,16 @@ package org.reakteu.eewd.gmpe.impl;
  * the parameterisation by Cauzzi et al. (GJI,2014)
  */
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
 import org.reakteu.eewd.gmpe.AttenuationPGV;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
 import org.reakteu.eewd.gmpe.AttenuationPSA;
 import org.reakteu.eewd.gmpe.AttenuationDRS;
+import org.reakteu.eewd.gmpe.AttenuationSpectrum;
+import org.reakteu.eewd.gmpe.PeriodIndex;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.gmpe.PreparedSpectrum;
+import org.reakteu.eewd.data.EventContext;
 import org.reakteu.eewd.data.EventData;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
@@ -18,8 +23,8 @@ import org.apache.commons.math3.*;
 
 import static java.lang.Math.*;
 
-
-public class Swiss implements AttenuationPGA, AttenuationPGV, AttenuationPSA, AttenuationDRS {
+public class Swiss implements AttenuationPGA, AttenuationPGV, AttenuationPSA, AttenuationDRS,
+                              AttenuationModel, AttenuationSpectrum {
 
     public static final double[][] CofsForeland = {
         {-4.8734444890499615e+00, 5.7255139238339519e+00, -3.2351171788383506e+00, 1.1753012922786823e+00, -2.2577904419461686e-01, 2.1104710708239459e-02, -7.6233728465190120e-04, 7.4754695839979135e-01, -2.8587026680357791e-01, 2.8522264972244808e-02, -1.4745926647067747e-03, -1.8388979803739185e+00, -7.7828595688719682e-01, 2.2898722461238621e-01, -1.2605940688534385e-02, 7.8494228230835739e-01, 6.3277279490167593e-01, -1.7398944574490496e-01, 1.0325971760028901e-02, -1.5205723450111922e-01, -1.2267103903416217e-01, 3.4545766610307123e-02, -2.1674727351593762e-03, 4.4371298316269785e-02},
@@ -51,12 +56,29 @@ public class Swiss implements AttenuationPGA, AttenuationPGV, AttenuationPSA, At
 
     public static final double PI2_4 = 4 * PI * PI;
 
+    // tabulated spectral periods
+    private static final PeriodIndex Periods = new PeriodIndex(
+            0.01, 0.02, 0.03, 0.05, 0.1, 0.2, 0.4, 1, 2);
+
+    // coefficient row, sigma and site amplification divisor per tabulated
+    // period
+    private static final double[][] PeriodTerms = {
+        {1, 0.3346, 2.58},
+        {2, 0.3346, 2.57},
+        {3, 0.3346, 2.57},
+        {4, 0.3348, 2.56},
+        {5, 0.2953, 2.55},
+        {6, 0.2884, 2.52},
+        {7, 0.2641, 2.47},
+        {8, 0.2751, 2.29},
+        {9, 0.2840, 2.01}
+    };
+
     public static final double[][] getCofs(double lat, double lon) {
         return (0.39 * lon + 44) < lat ? CofsForeland : CofsAlpine;
     }
     
    
-
     @Override
     public Shaking getPGA(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
@@ -67,79 +89,17 @@ public class Swiss implements AttenuationPGA, AttenuationPGV, AttenuationPSA, At
                           Float ruptureStrike) {
 
         // Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
-        // Mag is the magnitude from the EW message
-        // ampType in Switzerland is deltaI, i.e. intensity increments
-        // GMP coefficients are region dependent, i.e. different in the Swiss Alps and in the Swiss Foreland
-        double rmin = 3; // simplified cut-off distance
-        double Mw = magnitude;	// reasonable assumption in CH
-        double[][] cofs = getCofs(sourceLat, sourceLon);
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
-        double Rh = distance / 1000; // in kilometers
-
-        // end of distance computation
-        
-        // Assume Rrup ~ Rh for magnitude < 5.8
-        double Rrup = Rh;
-        // else estimate Rrup based on Cauzzi et al. (2014)
-        
-        if (Mw >= 5.8){
-            Rrup = Rh + 7.5 * Mw - 38 - 1.38 - 0.014 * exp(Mw); // 7.5 * Mw + 38 included to avoid negative distances at points with Rh = 0 ... 
-        }
-
-        // define the distance cut-off
-        double Ru = max(rmin, Rrup);
-
-        // define the distance metric used in the attenuation formulas
-        double d = log10(Ru);
-
-        // Compute ground-motion prediction in log10 first
-        double logpga = cofs[0][0] + cofs[0][1] * Mw + cofs[0][2] * pow(Mw, 2) + cofs[0][3] * pow(Mw, 3) + cofs[0][4] * pow(Mw, 4) + cofs[0][5] * pow(Mw, 5) + cofs[0][6] * pow(Mw, 6) + (cofs[0][7] + cofs[0][8] * Mw + cofs[0][9] * pow(Mw, 2) + cofs[0][10] * pow(Mw, 3)) * d + (cofs[0][11] + cofs[0][12] * Mw + cofs[0][13] * pow(Mw, 2) + cofs[0][14] * pow(Mw, 3)) * pow(d, 2) + (cofs[0][15] + cofs[0][16] * Mw + cofs[0][17] * pow(Mw, 2) + cofs[0][18] * pow(Mw, 3)) * pow(d, 3) + (cofs[0][19] + cofs[0][20] * Mw + cofs[0][21] * pow(Mw, 2) + cofs[0][22] * pow(Mw, 3)) * pow(d, 4);
-
-        // Now add site term
-        double logpgasite = logpga + (amplificationProxyValueSI / 2.58);
-
-        // Now compute plus/minus sigma bounds
-        double sigma = 0.2910;
-        double logpgasiteplus = logpgasite + sigma;
-        double logpgasiteminus = logpgasite - sigma;
-
-        // Now in m/s2
-        Shaking PGA = new Shaking();
-        PGA.expectedSI = pow(10, logpgasite) / 100;
-        PGA.percentile84 = pow(10, logpgasiteplus) / 100;
-        PGA.percentile16 = pow(10, logpgasiteminus) / 100;
-
-        // Now should return Shaking ...
-        return PGA;
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGA, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
-    public Shaking getPGV(double Mag, double sourceLat, double sourceLon,
+    public Shaking getPGV(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
                           double targetElevM, String amplificationType,
                           double amplificationProxyValueSI,
@@ -148,78 +108,36 @@ public class Swiss implements AttenuationPGA, AttenuationPGV, AttenuationPSA, At
                           Float ruptureStrike) {
 
         // Returns median PGV, 16th-percentile PGV, 84th percentile PGV in m/s
-        // Mag is the magnitude from the EW message
-        // ampType in Switzerland is deltaI, i.e. intensity increments
-        // GMP coefficients are region dependent, i.e. different in the Swiss Alps and in the Swiss Foreland
-        double rmin = 3; // set cut-off distance
-        double Mw = Mag;	// reasonable assumption in CH
-        double[][] cofs = getCofs(sourceLat, sourceLon);
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
-        double Rh = distance / 1000; // in kilometers
-
-        // end of distance computation
-        
-        // Assume Rrup ~ Rh
-        double Rrup = Rh;
-        // else estimate Rrup based on Cauzzi et al. (2014)
-        
-        if (Mw >= 5.8){
-            Rrup = Rh + 7.5 * Mw - 38 - 1.38 - 0.014 * exp(Mw); // 7.5 * Mw + 38 included to avoid negative distances at points with Rh = 0 ...
-        }
-
-        // define the distance cut-off
-        double Ru = max(rmin, Rrup);
-
-        // define the distance metric used in the attenuation formulas
-        double d = log10(Ru);
-
-        double logpgv = cofs[10][0] + cofs[10][1] * Mw + cofs[10][2] * pow(Mw, 2) + cofs[10][3] * pow(Mw, 3) + cofs[10][4] * pow(Mw, 4) + cofs[10][5] * pow(Mw, 5) + cofs[10][6] * pow(Mw, 6) + (cofs[10][7] + cofs[10][8] * Mw + cofs[10][9] * pow(Mw, 2) + cofs[10][10] * pow(Mw, 3)) * d + (cofs[10][11] + cofs[10][12] * Mw + cofs[10][13] * pow(Mw, 2) + cofs[10][14] * pow(Mw, 3)) * pow(d, 2) + (cofs[10][15] + cofs[10][16] * Mw + cofs[10][17] * pow(Mw, 2) + cofs[10][18] * pow(Mw, 3)) * pow(d, 3) + (cofs[10][19] + cofs[10][20] * Mw + cofs[10][21] * pow(Mw, 2) + cofs[10][22] * pow(Mw, 3)) * pow(d, 4);
-
-        // Now add site term
-        double logpgvsite = logpgv + (amplificationProxyValueSI / 2.35);
-
-        // Now compute plus/minus sigma bounds
-        double sigma = 0.2953;
-        double logpgvsiteplus = logpgvsite + sigma;
-        double logpgvsiteminus = logpgvsite - sigma;
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGV, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
 
-        // Now in m/s
-        Shaking PGV = new Shaking();
-        PGV.expectedSI = pow(10, logpgvsite) / 100;
-        PGV.percentile84 = pow(10, logpgvsiteplus) / 100;
-        PGV.percentile16 = pow(10, logpgvsiteminus) / 100;
+    @Override
+    public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
+                          double sourceDepthM, double targetLat, double targetLon,
+                          double targetElevM, String amplificationType,
+                          double amplificationProxyValueSI, double period,
+                          EventParameters eventParameters,
+                          Float ruptureLength,
+                          Float ruptureStrike) {
 
-        // Now should return Shaking ...
-        return PGV;
+        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PSA, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
-    public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
+    public Shaking getDRS(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
                           double targetElevM, String amplificationType,
                           double amplificationProxyValueSI, double period,
@@ -227,146 +145,166 @@ public class Swiss implements AttenuationPGA, AttenuationPGV, AttenuationPSA, At
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2 for a given spectral period T
-        // Mag is the magnitude from the EW message
-        // ampType in Switzerland is deltaI, i.e. intensity increments
-        // Coefficients are region dependent, i.e. different in the Swiss Alps and in the Swiss Foreland
-        double rmin = 3; // set cut-off distance
-        double Mw = magnitude;	// reasonable assumption in CH
-        double[][] cofs = getCofs(sourceLat, sourceLon);
-
-        int cnt = 0; // init
-        double sigma = 0; //init
-        double amp = 1; //init
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-        
-        double Rh = distance / 1000; // in kilometers
-
-        // end of distance computation
-        
-        // Assume Rrup ~ Rh
-        double Rrup = Rh;
-        // else estimate Rrup based on Cauzzi et al. (2014)
-        
-        if (Mw >= 5.8){
-            Rrup = Rh + 7.5 * Mw - 38 - 1.38 - 0.014 * exp(Mw); // 7.5 * Mw + 38 included to avoid negative distances at points with Rh = 0 ...
-        }
+        // Returns median DRS, 16th-percentile DRS, 84th percentile DRS in m
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.DRS, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
 
-        // define the distance cut-off
-        double Ru = max(rmin, Rrup);
-
-        // define the distance metric used in the attenuation formulas
-        double d = log10(Ru);
-
-        // pick the right coefficients according to the spectral period
-        if (period == 0.01) {
-            cnt = 1;
-            sigma = 0.3346;
-            amp = 2.58;
-        } else if (period == 0.02) {
-            cnt = 2;
-            sigma = 0.3346;
-            amp = 2.57;
-
-        } else if (period == 0.03) {
-            cnt = 3;
-            sigma = 0.3346;
-            amp = 2.57;
-
-        } else if (period == 0.05) {
-            cnt = 4;
-            sigma = 0.3348;
-            amp = 2.56;
-
-        } else if (period == 0.1) {
-            cnt = 5;
-            sigma = 0.2953;
-            amp = 2.55;
-
-        } else if (period == 0.2) {
-            cnt = 6;
-            sigma = 0.2884;
-            amp = 2.52;
-
-        } else if (period == 0.4) {
-            cnt = 7;
-            sigma = 0.2641;
-            amp = 2.47;
-
-        } else if (period == 1) {
-            cnt = 8;
-            sigma = 0.2751;
-            amp = 2.29;
-
-        } else if (period == 2) {
-            cnt = 9;
-            sigma = 0.2840;
-            amp = 2.01;
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        double[] terms;
+        switch (type) {
+            case PGA:
+                return new Prepared(event, 0, 2.58, 0.2910, 1);
+            case PGV:
+                return new Prepared(event, 10, 2.35, 0.2953, 1);
+            case PSA:
+            case DRS:
+                int row = Periods.row(period);
+                if (row < 0) {
+                    return Periods.interpolate(this, event, type, period);
+                }
+                terms = PeriodTerms[row];
+                return new Prepared(event, (int) terms[0], terms[2], terms[1],
+                                    type == Shaking.Type.DRS
+                                    ? period * period / PI2_4 : 1);
+            default:
+                return null;
         }
+    }
 
-        double logpsa = cofs[cnt][0] + cofs[cnt][1] * Mw + cofs[cnt][2] * pow(Mw, 2) + cofs[cnt][3] * pow(Mw, 3) + cofs[cnt][4] * pow(Mw, 4) + cofs[cnt][5] * pow(Mw, 5) + cofs[cnt][6] * pow(Mw, 6) + (cofs[cnt][7] + cofs[cnt][8] * Mw + cofs[cnt][9] * pow(Mw, 2) + cofs[cnt][10] * pow(Mw, 3)) * d + (cofs[cnt][11] + cofs[cnt][12] * Mw + cofs[cnt][13] * pow(Mw, 2) + cofs[cnt][14] * pow(Mw, 3)) * pow(d, 2) + (cofs[cnt][15] + cofs[cnt][16] * Mw + cofs[cnt][17] * pow(Mw, 2) + cofs[cnt][18] * pow(Mw, 3)) * pow(d, 3) + (cofs[cnt][19] + cofs[cnt][20] * Mw + cofs[cnt][21] * pow(Mw, 2) + cofs[cnt][22] * pow(Mw, 3)) * pow(d, 4);
+    @Override
+    public PreparedSpectrum prepareSpectrum(EventContext event, Shaking.Type type,
+                                            double[] periods) {
+        if (type != Shaking.Type.PSA && type != Shaking.Type.DRS) {
+            return null;
+        }
+        if (!Periods.containsAll(periods)) {
+            return Periods.spectrum(this, event, type, periods);
+        }
+        Prepared[] models = new Prepared[periods.length];
+        for (int i = 0; i < periods.length; ++i) {
+            models[i] = (Prepared) prepare(event, type, periods[i]);
+        }
+        return new Spectrum(event, periods, models);
+    }
 
-        // Now add site term
-        double logpsasite = logpsa + (amplificationProxyValueSI / amp);
+    /**
+     * Model prepared for one event. The polynomial terms depending on the
+     * magnitude only are computed once, the summation order of the original
+     * formula is kept to produce identical results.
+     */
+    private static class Prepared extends PreparedModel {
+
+        private final double amp;
+        private final double sigma;
+        private final double factor;
+        private final double m0, m1, m2, m3, m4;
+        private final boolean finite;
+        private final double r1, r2;
+
+        Prepared(EventContext event, int cnt, double amp, double sigma,
+                 double factor) {
+            super(event);
+            this.amp = amp;
+            this.sigma = sigma;
+            this.factor = factor;
+
+            // GMP coefficients are region dependent, i.e. different in the
+            // Swiss Alps and in the Swiss Foreland
+            double Mw = event.magnitude; // reasonable assumption in CH
+            double[] c = getCofs(event.latitude, event.longitude)[cnt];
+
+            m0 = c[0] + c[1] * Mw + c[2] * pow(Mw, 2) + c[3] * pow(Mw, 3) + c[4] * pow(Mw, 4) + c[5] * pow(Mw, 5) + c[6] * pow(Mw, 6);
+            m1 = c[7] + c[8] * Mw + c[9] * pow(Mw, 2) + c[10] * pow(Mw, 3);
+            m2 = c[11] + c[12] * Mw + c[13] * pow(Mw, 2) + c[14] * pow(Mw, 3);
+            m3 = c[15] + c[16] * Mw + c[17] * pow(Mw, 2) + c[18] * pow(Mw, 3);
+            m4 = c[19] + c[20] * Mw + c[21] * pow(Mw, 2) + c[22] * pow(Mw, 3);
+
+            // assume Rrup ~ Rh for magnitude < 5.8, else estimate Rrup based
+            // on Cauzzi et al. (2014)
+            finite = Mw >= 5.8;
+            r1 = 7.5 * Mw;
+            r2 = 0.014 * exp(Mw);
+        }
 
-        // Now compute plus/minus sigma bounds
-        double logpsasiteplus = logpsasite + sigma;
-        double logpsasiteminus = logpsasite - sigma;
+        /**
+         * @return log10 of the rupture distance, limited to the cut-off
+         * distance
+         */
+        double logDistance(double distanceM) {
+            double rmin = 3; // simplified cut-off distance
+            double Rh = distanceM / 1000; // in kilometers
+            // 7.5 * Mw + 38 included to avoid negative distances at points
+            // with Rh = 0
+            double Rrup = finite ? Rh + r1 - 38 - 1.38 - r2 : Rh;
+            return log10(max(rmin, Rrup));
+        }
 
-        // Now in m/s2
-        Shaking PSA = new Shaking();
-        PSA.expectedSI = pow(10, logpsasite) / 100;
-        PSA.percentile84 = pow(10, logpsasiteplus) / 100;
-        PSA.percentile16 = pow(10, logpsasiteminus) / 100;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double d = logDistance(distanceM);
+            evaluate(d, pow(d, 2), pow(d, 3), pow(d, 4),
+                     amplificationProxyValueSI, index, outMedian, out16, out84);
+        }
 
-        // Now should return Shaking ...
-        return PSA;
+        /**
+         * Evaluates the model with the powers of the log distance
+         */
+        void evaluate(double d, double d2, double d3, double d4,
+                      double amplificationProxyValueSI, int index,
+                      double[] outMedian, double[] out16, double[] out84) {
+            // ground-motion prediction in log10 plus site term, ampType in
+            // Switzerland is deltaI, i.e. intensity increments
+            double logsite = m0 + m1 * d + m2 * d2 + m3 * d3 + m4 * d4
+                             + (amplificationProxyValueSI / amp);
+
+            outMedian[index] = pow(10, logsite) / 100 * factor;
+            if (out84 != null) {
+                out84[index] = pow(10, logsite + sigma) / 100 * factor;
+            }
+            if (out16 != null) {
+                out16[index] = pow(10, logsite - sigma) / 100 * factor;
+            }
+        }
     }
 
-    @Override
-    public Shaking getDRS(double magnitude, double sourceLat, double sourceLon,
-                          double sourceDepthM, double targetLat, double targetLon,
-                          double targetElevM, String amplificationType,
-                          double amplificationProxyValueSI, double period,
-                          EventParameters eventML,
-                          Float ruptureLength,
-                          Float ruptureStrike) {
+    /**
+     * Spectrum prepared for one event. The rupture distance and the powers of
+     * its logarithm are computed once per target point for all periods.
+     */
+    private static class Spectrum extends PreparedSpectrum {
 
-        Shaking PSA = getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-                             targetLat, targetLon, targetElevM,
-                             amplificationType, amplificationProxyValueSI,
-                             period, null, ruptureLength, ruptureStrike);
+        private final Prepared[] models;
 
-        double accelerationToDisplacement = period * period / PI2_4;
-        PSA.expectedSI *= accelerationToDisplacement;
-        PSA.percentile16 *= accelerationToDisplacement;
-        PSA.percentile84 *= accelerationToDisplacement;
+        Spectrum(EventContext event, double[] periods, Prepared[] models) {
+            super(event, periods);
+            this.models = models;
+        }
 
-        // Now in m/s
-        return PSA;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             double[] outMedian, double[] out16, double[] out84) {
+            if (models.length == 0) {
+                return;
+            }
+            // the distance terms do not depend on the period
+            double d = models[0].logDistance(distanceM);
+            double d2 = pow(d, 2);
+            double d3 = pow(d, 3);
+            double d4 = pow(d, 4);
+            for (int i = 0; i < models.length; ++i) {
+                models[i].evaluate(d, d2, d3, d4, amplificationProxyValueSI, i,
+                                   outMedian, out16, out84);
+            }
+        }
     }
 }
@@ -6,16 +6,20 @@ package org.reakteu.eewd.gmpe.impl;
  */
 
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
 import org.reakteu.eewd.gmpe.AttenuationPGV;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
 import org.reakteu.eewd.gmpe.AttenuationPSA;
 import org.reakteu.eewd.gmpe.AttenuationDRS;
+import org.reakteu.eewd.gmpe.PeriodIndex;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.data.EventContext;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
 import static java.lang.Math.*;
 
-public class YOU97ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
+public class YOU97ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS,
+                                 AttenuationModel {
 
 	// Set of coefficients for soil
 	// IMT   C1        C2         C3       C4       C5
@@ -75,6 +79,12 @@ public class YOU97ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
     double add_soil = 0.3643;
     
     public static final double PI2_4 = 4 * PI * PI;
+
+    // tabulated spectral periods and their coefficient rows
+    private static final PeriodIndex Periods = new PeriodIndex(
+            new double[]{0.075, 0.10, 0.20, 0.30, 0.40, 0.50, 0.75, 1.00, 1.50, 2.00,
+                         3.00, 4.00},
+            new int[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
     
 
     @Override
@@ -86,85 +96,16 @@ public class YOU97ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-    	// Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
-        // magnitude is the magnitude from the EW message
-        // ampType is site term derived form VS30
-
-        double Mw = magnitude;	// reasonable assumption
-
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-        
-
-        double depth = sourceDepthM / 1000; 
-        double Rh = distance / 1000; // in kilometers
-      
-        
-        // Assume Rrup ~ Rh for magnitude < 5.8
-        double Rrup = Rh;
-              
-        
-        // else estimate Rrup based on Cauzzi et al. (BEE2015)
-        
-        if (Mw >= 5.8){
-            Rrup = Rh + 7.5 * Mw - 38 - 1.38 - 0.014 * exp(Mw); // 7.5 * Mw + 38 included to avoid negative distances at points with Rh = 0 ... 
-        }
-
-                
-        // Compute ground-motion prediction in natural log first including site term and slab terms (no 17 and 18)
-        double logpgasite = add_rock + A1_rock + A2_rock * Mw + Cofs_rock[0][1] + Cofs_rock[0][2] * pow((A3_rock - Mw),3) + Cofs_rock[0][3] * log(Rrup + A4_rock * exp(A5_rock * Mw)) + A6_rock * depth;
-        
-        if (amplificationProxyValueSI < 760) {
-        	
-        	logpgasite = add_soil + A1_soil + A2_soil * Mw + Cofs_soil[0][1] + Cofs_soil[0][2] * pow((A3_soil - Mw),3) + Cofs_soil[0][3] * log(Rrup + A4_soil * exp(A5_soil * Mw)) + A6_soil * depth;
-        }
-
-        if (amplificationProxyValueSI == -1 ) {
-        	logpgasite = log(-1);
-        }
-
-        // Now compute plus/minus sigma bounds
-        double sigma = Cofs_rock[0][4] + Cofs_rock[0][5] * Mw;
-        if (Mw > 8) {
-        	sigma = Cofs_rock[0][4] + Cofs_rock[0][5] * 8;
-        }
-        double logpgasiteplus = logpgasite + sigma;
-        double logpgasiteminus = logpgasite - sigma;
-
-        // Now in m/s2
-        Shaking PGA = new Shaking() ;
-        PGA.expectedSI = exp(logpgasite) * 9.806;
-        PGA.percentile84 = exp(logpgasiteplus) * 9.806;
-        PGA.percentile16 = exp(logpgasiteminus) * 9.806;
-
-        // Now should return Shaking ...
-        return PGA;
+        // Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGA, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
-    
     @Override
     public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
@@ -174,118 +115,14 @@ public class YOU97ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2 for a given spectral period T
-        // Mag is the magnitude from the EW message
-        // ampType is S derived form VS30
-
-        
-        int cnt = 0;
-        double scale = 1;
-        double add_rock = 0.3846;
-        double add_soil = 0.3643;
-
-        // pick the right coefficients according to the spectral period
-        if (period == 0.075) {
-            cnt = 1;
-        } else if (period == 0.10) {
-            cnt = 2;
-        } else if (period == 0.20) {
-            cnt = 3;
-        } else if (period == 0.30) {
-            cnt = 4;
-        } else if (period == 0.40) {
-            cnt = 5;
-        } else if (period == 0.50) {
-            cnt = 6;
-        } else if (period == 0.75) {
-            cnt = 7;
-        } else if (period == 1.00) {
-            cnt = 8;
-        } else if (period == 1.50) {
-            cnt = 9;
-        } else if (period == 2.00) {
-            cnt = 10;
-        } else if (period == 3.00) {
-            cnt = 11;
-        } else if (period == 4.00) {
-            cnt = 12;
-            scale = 1 / 0.399;
-        }
-        
-     // Mag is the magnitude from the EW message
-        double Mw = magnitude;	// reasonable assumption
-
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-        
-
-        double depth = sourceDepthM / 1000; 
-        double Rh = distance / 1000; // in kilometers
-        
-      
-        
-        // Assume Rrup ~ Rh for magnitude < 5.8
-        double Rrup = Rh;
-              
-        
-        // else estimate Rrup based on Cauzzi et al. (BEE2015)
-        
-        if (Mw >= 5.8){
-            Rrup = Rh + 7.5 * Mw - 38 - 1.38 - 0.014 * exp(Mw); // 7.5 * Mw + 38 included to avoid negative distances at points with Rh = 0 ... 
-        }
-
-                
-        // Compute ground-motion prediction in natural log first including site term and slab terms (no 17 and 18)
-        double logpsasite = scale * (add_rock + A1_rock + A2_rock * Mw + Cofs_rock[cnt][1] + Cofs_rock[cnt][2] * pow((A3_rock - Mw),3) + Cofs_rock[cnt][3] * log(Rrup + A4_rock * exp(A5_rock * Mw)) + A6_rock * depth);
-        
-        if (amplificationProxyValueSI < 760) {
-        	
-        	logpsasite = (add_soil + A1_soil + A2_soil * Mw + Cofs_soil[cnt][1] + Cofs_soil[cnt][2] * pow((A3_soil - Mw),3) + Cofs_soil[cnt][3] * log(Rrup + A4_soil * exp(A5_soil * Mw)) + A6_soil * depth);
-        }
-
-        if (amplificationProxyValueSI == -1 ) {
-        	logpsasite = log(-1);
-        }
-
-        // Now compute plus/minus sigma bounds
-        double sigma = Cofs_rock[cnt][4] + Cofs_rock[cnt][5] * Mw;
-        if (Mw > 8) {
-        	sigma = Cofs_rock[cnt][4] + Cofs_rock[cnt][5] * 8;
-        }
-        double logpsasiteplus = logpsasite + sigma;
-        double logpsasiteminus = logpsasite - sigma;
-
-        // Now in m/s2
-        Shaking PSA = new Shaking() ;
-        PSA.expectedSI = exp(logpsasite) * 9.806;
-        PSA.percentile84 = exp(logpsasiteplus) * 9.806;
-        PSA.percentile16 = exp(logpsasiteminus) * 9.806;
-
-        // Now should return Shaking ...
-        return PSA;
+        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PSA, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
@@ -293,21 +130,118 @@ public class YOU97ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
                           double sourceDepthM, double targetLat, double targetLon,
                           double targetElevM, String amplificationType,
                           double amplificationProxyValueSI, double period,
-                          EventParameters eventML,
+                          EventParameters eventParameters,
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-        Shaking PSA = getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-                             targetLat, targetLon, targetElevM,
-                             amplificationType, amplificationProxyValueSI,
-                             period, null, ruptureLength, ruptureStrike);
+        // Returns median DRS, 16th-percentile DRS, 84th percentile DRS in m
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.DRS, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
+
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        int cnt;
+        switch (type) {
+            case PGA:
+                return new Prepared(event, 0, 1, 1);
+            case PSA:
+            case DRS:
+                cnt = Periods.row(period);
+                if (cnt < 0) {
+                    return Periods.interpolate(this, event, type, period);
+                }
+                return new Prepared(event, cnt, cnt == 12 ? 1 / 0.399 : 1,
+                                    type == Shaking.Type.DRS
+                                    ? period * period / PI2_4 : 1);
+            default:
+                return null;
+        }
+    }
 
-        double accelerationToDisplacement = period * period / PI2_4;
-        PSA.expectedSI *= accelerationToDisplacement;
-        PSA.percentile16 *= accelerationToDisplacement;
-        PSA.percentile84 *= accelerationToDisplacement;
+    /**
+     * Model prepared for one event. All terms depending on the magnitude and
+     * depth only are computed once, the summation order of the original
+     * formula is kept to produce identical results.
+     */
+    private class Prepared extends PreparedModel {
+
+        private final double[] cr;
+        private final double[] cs;
+        private final double scale;
+        private final double factor;
+        private final boolean finite;
+        private final double r1, r2;
+        private final double rock0, rock1, rock2;
+        private final double soil0, soil1, soil2;
+        private final double sigma;
+
+        /**
+         * @param scale scale of the rock prediction
+         * @param factor factor applied to the final value
+         */
+        Prepared(EventContext event, int cnt, double scale, double factor) {
+            super(event);
+            this.cr = Cofs_rock[cnt];
+            this.cs = Cofs_soil[cnt];
+            this.scale = scale;
+            this.factor = factor;
+
+            double Mw = event.magnitude;
+            double depth = event.depth / 1000; // in kilometers
+
+            // assume Rrup ~ Rh for magnitude < 5.8, else estimate Rrup based
+            // on Cauzzi et al. (2014)
+            finite = Mw >= 5.8;
+            r1 = 7.5 * Mw;
+            r2 = 0.014 * exp(Mw);
+
+            rock0 = add_rock + A1_rock + A2_rock * Mw + cr[1] + cr[2] * pow((A3_rock - Mw), 3);
+            rock1 = A4_rock * exp(A5_rock * Mw);
+            rock2 = A6_rock * depth;
+            soil0 = add_soil + A1_soil + A2_soil * Mw + cs[1] + cs[2] * pow((A3_soil - Mw), 3);
+            soil1 = A4_soil * exp(A5_soil * Mw);
+            soil2 = A6_soil * depth;
+
+            if (Mw > 8) {
+                sigma = cr[4] + cr[5] * 8;
+            } else {
+                sigma = cr[4] + cr[5] * Mw;
+            }
+        }
 
-        // Now in m/s
-        return PSA;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            // ampType is VS30
+            double logsite;
+            if (amplificationProxyValueSI == -1) {
+                logsite = log(-1);
+            } else {
+                double Rh = distanceM / 1000; // in kilometers
+                double Rrup = finite ? Rh + r1 - 38 - 1.38 - r2 : Rh;
+                if (amplificationProxyValueSI < 760) {
+                    logsite = soil0 + cs[3] * log(Rrup + soil1) + soil2;
+                } else {
+                    logsite = scale * (rock0 + cr[3] * log(Rrup + rock1) + rock2);
+                }
+            }
+
+            // in m/s2
+            outMedian[index] = exp(logsite) * 9.806 * factor;
+            if (out84 != null) {
+                out84[index] = exp(logsite + sigma) * 9.806 * factor;
+            }
+            if (out16 != null) {
+                out16[index] = exp(logsite - sigma) * 9.806 * factor;
+            }
+        }
     }
 }
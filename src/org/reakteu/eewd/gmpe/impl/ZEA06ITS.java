@@ -6,16 +6,20 @@ package org.reakteu.eewd.gmpe.impl;
  */
 
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
 import org.reakteu.eewd.gmpe.AttenuationPGV;
 import org.reakteu.eewd.gmpe.AttenuationPGA;
 import org.reakteu.eewd.gmpe.AttenuationPSA;
 import org.reakteu.eewd.gmpe.AttenuationDRS;
+import org.reakteu.eewd.gmpe.PeriodIndex;
+import org.reakteu.eewd.gmpe.PreparedModel;
+import org.reakteu.eewd.data.EventContext;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
 import static java.lang.Math.*;
 
-public class ZEA06ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS {
+public class ZEA06ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS,
+                                 AttenuationModel {
 	
 	
 	// Coefficients of the GMPE
@@ -46,6 +50,13 @@ public class ZEA06ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
 
     
     public static final double PI2_4 = 4 * PI * PI;
+
+    // tabulated spectral periods and their coefficient rows
+    private static final PeriodIndex Periods = new PeriodIndex(
+            new double[]{0.05, 0.10, 0.15, 0.20, 0.25, 0.30, 0.40, 0.50, 0.60, 0.70,
+                         0.80, 0.90, 1.00, 1.25, 1.50, 2.00, 2.50, 3.00, 4.00, 5.00},
+            new int[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18,
+                      19, 20});
     
 
     @Override
@@ -58,114 +69,15 @@ public class ZEA06ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
                           Float ruptureStrike) {
 
         // Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
-        // magnitude is the magnitude from the EW message
-        // ampType is site term derived form VS30
-
-
-        double Mw = magnitude;	// reasonable assumption
-        double S = 0; // initialise site term
-
-
-        // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-        
-        double depth = sourceDepthM / 1000; 
-        double Rh = distance / 1000; // in kilometers
-        
-        // Assume Rrup ~ Rh for magnitude < 5.8
-        double Rrup = Rh;
-        
-        // Distance cutoff
-        if (Rrup == 0) {
-        	Rrup = 0.1;
-        }
-        
-        
-        // else estimate Rrup based on Cauzzi et al. (BEE2015)
-        
-        if (Mw >= 5.8){
-            Rrup = Rh + 7.5 * Mw - 38 - 1.38 - 0.014 * exp(Mw); // 7.5 * Mw + 38 included to avoid negative distances at points with Rh = 0 ... 
-        }
-
-        
-        // Site term
-        if (amplificationProxyValueSI > 1100 ){
-            S = Cofs[0][7];
-        } else if (amplificationProxyValueSI > 600 ) {
-            S = Cofs[0][8];
-        } else if (amplificationProxyValueSI > 300 ) {
-            S = Cofs[0][9];
-        } else if (amplificationProxyValueSI > 200 ) {
-            S = Cofs[0][10];
-        } else {
-            S = Cofs[0][11];
-        }
-        
-        if (amplificationProxyValueSI == -1 ) {
-        	S = log(-1);
-        }
-        
-        // Some other period-independent parameters
-        double P = Cofs[0][19];
-        double M = 6.5;
-        double hc = 15;
-        double dterm = 0;
-        
-        if (depth > 125) {
-        	depth = 125;
-        }
-        
-        if (depth >= hc) {
-        	dterm = Cofs[0][5] * (depth - hc);
-        }
-        
-        
-        
-        // SOF term is not included as it is unknown in real-time
-        
-        // Compute ground-motion prediction in natural log first including site term and slab terms (no 17 and 18)
-        double logpgasite = P * (Mw - M) + Cofs[0][13] * pow((Mw - M),2) + Cofs[0][14] + Cofs[0][1] * Mw + Cofs[0][2] * Rrup - log(Rrup + Cofs[0][3] * exp(Cofs[0][4] * Mw)) + dterm + S + Cofs[0][17] + Cofs[0][18] * log(Rrup);
-
-
-        // Now compute plus/minus sigma bounds
-        double sigma = sqrt(pow(Cofs[0][12],2) + pow(Cofs[0][15],2));
-        double logpgasiteplus = logpgasite + sigma;
-        double logpgasiteminus = logpgasite - sigma;
-
-        // Now in m/s2
-        Shaking PGA = new Shaking() ;
-        PGA.expectedSI = exp(logpgasite) / 100;
-        PGA.percentile84 = exp(logpgasiteplus) / 100;
-        PGA.percentile16 = exp(logpgasiteminus) / 1000;
-
-        // Now should return Shaking ...
-        return PGA;
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PGA, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
- 
-    
     @Override
     public Shaking getPSA(double magnitude, double sourceLat, double sourceLon,
                           double sourceDepthM, double targetLat, double targetLon,
@@ -175,156 +87,14 @@ public class ZEA06ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-    	// Returns median PGA, 16th-percentile PGA, 84th percentile PGA in m/s2
-        // magnitude is the magnitude from the EW message
-        // ampType is site term derived form VS30
-
-        
-        int cnt = 0;
-        
-        // pick the right coefficients according to the spectral period
-        if (period == 0.05) {
-            cnt = 1;
-        } else if (period == 0.10) {
-            cnt = 2;
-        } else if (period == 0.15) {
-            cnt = 3;
-        } else if (period == 0.20) {
-            cnt = 4;
-        } else if (period == 0.25) {
-            cnt = 5;
-        } else if (period == 0.30) {
-            cnt = 6;
-        } else if (period == 0.40) {
-            cnt = 7;
-        } else if (period == 0.50) {
-            cnt = 8;
-        } else if (period == 0.60) {
-            cnt = 9;
-        } else if (period == 0.70) {
-            cnt = 10;
-        } else if (period == 0.80) {
-            cnt = 11;
-        } else if (period == 0.90) {
-            cnt = 12;
-        } else if (period == 1.00) {
-            cnt = 13;
-        } else if (period == 1.25) {
-            cnt = 14;
-        } else if (period == 1.50) {
-            cnt = 15;
-        } else if (period == 2.00) {
-            cnt = 16;
-        } else if (period == 2.50) {
-            cnt = 17;
-        } else if (period == 3.00) {
-            cnt = 18;
-        } else if (period == 4.00) {
-            cnt = 19;
-        } else if (period == 5.00) {
-            cnt = 20;
-            }
-        
-        double Mw = magnitude;	// reasonable assumption
-        double S = 0; // initialise site term
-
-
-     // Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
-
-        double depth = sourceDepthM / 1000;
-        double Rh = distance / 1000; // in kilometers
-        
-        // Assume Rrup ~ Rh for magnitude < 5.8
-        double Rrup = Rh;
-        
-        // Distance cutoff
-        if (Rrup == 0) {
-        	Rrup = 0.1;
-        }
-        
-        
-        // else estimate Rrup based on Cauzzi et al. (BEE2015)
-        
-        if (Mw >= 5.8){
-            Rrup = Rh + 7.5 * Mw - 38 - 1.38 - 0.014 * exp(Mw); // 7.5 * Mw + 38 included to avoid negative distances at points with Rh = 0 ... 
-        }
-
-        
-        // Site term
-        if (amplificationProxyValueSI > 1100 ){
-            S = Cofs[cnt][7];
-        } else if (amplificationProxyValueSI > 600 ) {
-            S = Cofs[cnt][8];
-        } else if (amplificationProxyValueSI > 300 ) {
-            S = Cofs[cnt][9];
-        } else if (amplificationProxyValueSI > 200 ) {
-            S = Cofs[cnt][10];
-        } else {
-            S = Cofs[cnt][11];
-        }
-        
-        if (amplificationProxyValueSI == -1 ) {
-        	S = log(-1);
-        }
-        
-        // Some other period-independent parameters
-        double P = Cofs[cnt][19];
-        double M = 6.5;
-        double hc = 15;
-        double dterm = 0;
-        
-        if (depth > 125) {
-        	depth = 125;
-        }
-        
-        if (depth >= hc) {
-        	dterm = Cofs[cnt][5] * (depth - hc);
-        }
-        
-        
-        
-        // SOF term is not included as it is unknown in real-time
-
-        // PSA including site term and slab terms (no 17 and 18)
-        double logpsasite = P * (Mw - M) + Cofs[cnt][13] * pow((Mw - M),2) + Cofs[cnt][14] + Cofs[cnt][1] * Mw + Cofs[cnt][2] * Rrup - log(Rrup + Cofs[cnt][3] * exp(Cofs[cnt][4] * Mw)) + dterm + S + Cofs[cnt][17] + Cofs[cnt][18] * log(Rrup);
-
-        
-        // Now compute plus/minus sigma bounds
-        double sigma = sqrt(pow(Cofs[cnt][12],2) + pow(Cofs[cnt][15],2));
-        double logpsasiteplus = logpsasite + sigma;
-        double logpsasiteminus = logpsasite - sigma;
-
-        // Now in m/s2
-        Shaking PSA = new Shaking() ;
-        PSA.expectedSI = exp(logpsasite) / 100;
-        PSA.percentile84 = exp(logpsasiteplus) / 100;
-        PSA.percentile16 = exp(logpsasiteminus) / 100;
-
-        // Now should return Shaking ...
-        return PSA;
+        // Returns median PSA, 16th-percentile PSA, 84th percentile PSA in m/s2
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.PSA, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
     }
 
     @Override
@@ -332,21 +102,126 @@ public class ZEA06ITS implements AttenuationPGA, AttenuationPSA, AttenuationDRS
                           double sourceDepthM, double targetLat, double targetLon,
                           double targetElevM, String amplificationType,
                           double amplificationProxyValueSI, double period,
-                          EventParameters eventML,
+                          EventParameters eventParameters,
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-        Shaking PSA = getPSA(magnitude, sourceLat, sourceLon, sourceDepthM,
-                             targetLat, targetLon, targetElevM,
-                             amplificationType, amplificationProxyValueSI,
-                             period, null, ruptureLength, ruptureStrike);
+        // Returns median DRS, 16th-percentile DRS, 84th percentile DRS in m
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.DRS, period).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
+
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        switch (type) {
+            case PGA:
+                return new Prepared(event, 0, 1, 1000);
+            case PSA:
+            case DRS:
+                int cnt = Periods.row(period);
+                if (cnt < 0) {
+                    return Periods.interpolate(this, event, type, period);
+                }
+                return new Prepared(event, cnt, type == Shaking.Type.DRS
+                                                ? period * period / PI2_4 : 1,
+                                    100);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Model prepared for one event. All terms depending on the magnitude and
+     * depth only are computed once, the summation order of the original
+     * formula is kept to produce identical results.
+     */
+    private static class Prepared extends PreparedModel {
+
+        private final double[] c;
+        private final double factor;
+        private final double div16;
+        private final boolean finite;
+        private final double r1, r2;
+        private final double dterm;
+        private final double m0, m1;
+        private final double sigma;
+
+        /**
+         * @param factor factor applied to the final value
+         * @param div16 divisor of the 16th percentile
+         */
+        Prepared(EventContext event, int cnt, double factor, double div16) {
+            super(event);
+            this.c = Cofs[cnt];
+            this.factor = factor;
+            this.div16 = div16;
+
+            double Mw = event.magnitude;
+
+            // assume Rrup ~ Rh for magnitude < 5.8, else estimate Rrup based
+            // on Cauzzi et al. (2014)
+            finite = Mw >= 5.8;
+            r1 = 7.5 * Mw;
+            r2 = 0.014 * exp(Mw);
+
+            double P = c[19];
+            double M = 6.5;
+            double hc = 15;
+            double depth = event.depth / 1000; // in kilometers
+            if (depth > 125) {
+                depth = 125;
+            }
+            dterm = depth >= hc ? c[5] * (depth - hc) : 0;
+            m0 = P * (Mw - M) + c[13] * pow((Mw - M), 2) + c[14] + c[1] * Mw;
+            m1 = c[3] * exp(c[4] * Mw);
+            sigma = sqrt(pow(c[12], 2) + pow(c[15], 2));
+        }
 
-        double accelerationToDisplacement = period * period / PI2_4;
-        PSA.expectedSI *= accelerationToDisplacement;
-        PSA.percentile16 *= accelerationToDisplacement;
-        PSA.percentile84 *= accelerationToDisplacement;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double Rh = distanceM / 1000; // in kilometers
+            double Rrup = Rh;
+            if (Rrup == 0) {
+                Rrup = 0.1;
+            }
+            if (finite) {
+                Rrup = Rh + r1 - 38 - 1.38 - r2;
+            }
 
-        // Now in m/s
-        return PSA;
+            // site class, ampType is VS30
+            double S;
+            if (amplificationProxyValueSI > 1100) {
+                S = c[7];
+            } else if (amplificationProxyValueSI > 600) {
+                S = c[8];
+            } else if (amplificationProxyValueSI > 300) {
+                S = c[9];
+            } else if (amplificationProxyValueSI > 200) {
+                S = c[10];
+            } else {
+                S = c[11];
+            }
+            if (amplificationProxyValueSI == -1) {
+                S = log(-1);
+            }
+
+            double logsite = m0 + c[2] * Rrup - log(Rrup + m1) + dterm + S + c[17] + c[18] * log(Rrup);
+
+            outMedian[index] = exp(logsite) / 100 * factor;
+            if (out84 != null) {
+                out84[index] = exp(logsite + sigma) / 100 * factor;
+            }
+            if (out16 != null) {
+                out16[index] = exp(logsite - sigma) / div16 * factor;
+            }
+        }
     }
 }
@@ -6,12 +6,14 @@ package org.reakteu.eewd.ipe.impl;
  * and Eq. (5) of the paper and define the amplificationProxyValueSI accordingly.
  */
 // import useful packages
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
+import org.reakteu.eewd.gmpe.PreparedModel;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 import org.reakteu.eewd.data.Shaking;
 import org.reakteu.eewd.ipe.AttenuationInt;
+import org.reakteu.eewd.data.EventContext;
 
-public class AEA12 implements AttenuationInt {
+public class AEA12 implements AttenuationInt, AttenuationModel {
     // Returns mean I, plus / minus one sigma
     // Mag is the magnitude from the EW message
 
@@ -24,58 +26,64 @@ public class AEA12 implements AttenuationInt {
                           Float ruptureLength,
                           Float ruptureStrike) {
 
-    	// Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
+        // Returns median intensity, 16th-percentile, 84th percentile
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.Intensity, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
+
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        return type == Shaking.Type.Intensity ? new Prepared(event) : null;
+    }
 
+    /**
+     * Model prepared for one event with precomputed magnitude terms
+     */
+    private static class Prepared extends PreparedModel {
 
-        double R = distance / 1000; // in kilometers
-        double I;// = 2; // initialise I
-        // Compute I (any scale)
+        private static final double c2 = -1.402;
+        private static final double c4 = 0.078;
 
-        double Mw = magnitude;
+        private final double m0;
+        private final double RM2;
 
-        double RM = -0.209 + 2.042 * Math.exp(Mw - 5);
+        Prepared(EventContext event) {
+            super(event);
 
-        double c0 = 2.085;
-        double c1 = 1.428;
-        double c2 = -1.402;
-        double c4 = 0.078;
-        //double m1 = -0.209;
-        //double m2 = 2.042;
+            double Mw = event.magnitude;
+            double RM = -0.209 + 2.042 * Math.exp(Mw - 5);
+            RM2 = RM * RM;
 
-        if (R <= 50) {
-            I = c0 + c1 * Mw + c2 * Math.log(Math.sqrt(R * R + RM * RM));
-        } else {
-            I = c0 + c1 * Mw + c2 * Math.log(Math.sqrt(R * R + RM * RM)) + c4 * Math.log(R / 50);
+            double c0 = 2.085;
+            double c1 = 1.428;
+            m0 = c0 + c1 * Mw;
         }
 
-        Shaking Int = new Shaking();
-        Int.expectedSI = I;
-        Int.percentile84 = I + (0.82 + 0.37 / (1 + (R / 22.9) * (R / 22.9)));
-        Int.percentile16 = I - (0.82 + 0.37 / (1 + (R / 22.9) * (R / 22.9)));
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double R = distanceM / 1000; // in kilometers
+            double I;
+            if (R <= 50) {
+                I = m0 + c2 * Math.log(Math.sqrt(R * R + RM2));
+            } else {
+                I = m0 + c2 * Math.log(Math.sqrt(R * R + RM2)) + c4 * Math.log(R / 50);
+            }
 
-        return Int;
+            outMedian[index] = I;
+            if (out84 != null) {
+                out84[index] = I + (0.82 + 0.37 / (1 + (R / 22.9) * (R / 22.9)));
+            }
+            if (out16 != null) {
+                out16[index] = I - (0.82 + 0.37 / (1 + (R / 22.9) * (R / 22.9)));
+            }
+        }
     }
 }
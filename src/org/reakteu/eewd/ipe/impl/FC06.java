@@ -5,13 +5,15 @@ package org.reakteu.eewd.ipe.impl;
  */
 // import useful packages
 import org.reakteu.eewd.data.Shaking;
-import org.reakteu.eewd.utils.GeoCalc;
+import org.reakteu.eewd.gmpe.AttenuationModel;
+import org.reakteu.eewd.gmpe.PreparedModel;
 import org.quakeml.xmlns.bedRt.x12.EventParameters;
 
 import static java.lang.Math.*;
 import org.reakteu.eewd.ipe.AttenuationInt;
+import org.reakteu.eewd.data.EventContext;
 
-public class FC06 implements AttenuationInt {
+public class FC06 implements AttenuationInt, AttenuationModel {
     // Returns mean I, plus / minus one sigma
     // Mag is the magnitude from the EW message
 
@@ -23,43 +25,49 @@ public class FC06 implements AttenuationInt {
                           EventParameters eventParameters,
                           Float ruptureLength,
                           Float ruptureStrike) {
-    	// Compute distance
-        //double[] pEvent = GeoCalc.Geo2Cart(sourceLat, sourceLon, -sourceDepthM); deprecated
-        //double[] pTarget = GeoCalc.Geo2Cart(targetLat, targetLon, targetElevM); deprectaed
-        
-        double[] pEvent = {sourceLat, sourceLon, -sourceDepthM};
-        double[] pTarget = {targetLat, targetLon, targetElevM};
-        
-        
-        double distance;
-        
-        if (ruptureLength != null) {
-        	
-        	double[] lExtremes = GeoCalc.CentroidToExtremes(ruptureStrike, ruptureLength, sourceLon, sourceLat, -sourceDepthM);
-            double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-            double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-            double[] current = {pTarget[0],pTarget[1]};
-            double d = GeoCalc.DistanceFromLine(start, end, current);
-            distance = Math.sqrt(d * d + (sourceDepthM + targetElevM) * (sourceDepthM + targetElevM));
-             
-            
-        } else {
-        
-        	distance = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-        }
 
+        // Returns median intensity, 16th-percentile, 84th percentile
+        return prepare(new EventContext(magnitude, sourceLat, sourceLon,
+                                        sourceDepthM, amplificationType,
+                                        eventParameters, ruptureLength,
+                                        ruptureStrike),
+                       Shaking.Type.Intensity, 0).evaluate(
+                               targetLat, targetLon, targetElevM,
+                               amplificationProxyValueSI);
+    }
+
+    @Override
+    public PreparedModel prepare(EventContext event, Shaking.Type type,
+                                 double period) {
+        return type == Shaking.Type.Intensity ? new Prepared(event) : null;
+    }
+
+    /**
+     * Model prepared for one event with precomputed magnitude term
+     */
+    private static class Prepared extends PreparedModel {
 
-        double R = distance / 1000; // in kilometers
+        private final double m0;
 
-        // Compute I (EMS98 scale)
-        double Mw = magnitude;
-        double I = 1.0157 + 1.2566 * Mw - 0.6547 * log(sqrt(R * R + 4));
+        Prepared(EventContext event) {
+            super(event);
+            m0 = 1.0157 + 1.2566 * event.magnitude;
+        }
 
-        Shaking Int = new Shaking();
-        Int.expectedSI = I;
-        Int.percentile84 = I + 0.5344;
-        Int.percentile16 = I - 0.5344;
+        @Override
+        public void evaluate(double distanceM, double amplificationProxyValueSI,
+                             int index, double[] outMedian, double[] out16,
+                             double[] out84) {
+            double R = distanceM / 1000; // in kilometers
+            double I = m0 - 0.6547 * log(sqrt(R * R + 4));
 
-        return Int;
+            outMedian[index] = I;
+            if (out84 != null) {
+                out84[index] = I + 0.5344;
+            }
+            if (out16 != null) {
+                out16[index] = I - 0.5344;
+            }
+        }
     }
 }
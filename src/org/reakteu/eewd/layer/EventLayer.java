@@ -14,6 +14,7 @@ import com.bbn.openmap.omGraphics.OMLine;
 import com.bbn.openmap.proj.Length;
 import com.bbn.openmap.proj.coords.LatLonPoint;
 import java.awt.AlphaComposite;
+import org.reakteu.eewd.data.EventContext;
 import org.reakteu.eewd.data.EventData;
 import org.reakteu.eewd.data.EventTimeListener;
 import org.reakteu.eewd.utils.GeoCalc;
@@ -202,29 +203,11 @@ public class EventLayer extends OMGraphicHandlerLayer implements EventTimeListen
         String shaking = "-";
         if (target != null) {
             if (originTimeOffset != null) {
-            	// double[] pEvent = GeoCalc.Geo2Cart(event.latitude, event.longitude, -event.depth); deprecated
-                // double[] pTarget = GeoCalc.Geo2Cart(target.latitude, target.longitude, target.altitude); deprecated
-                double[] pEvent = {event.latitude, event.longitude, -event.depth};
-                double[] pTarget = {target.latitude, target.longitude, target.altitude};
-                // double d = GeoCalc.Distance3D(pEvent, pTarget); deprecated
-                //double d = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-                double d;
-                
-                if (event.ruptureLength != null) {
-                	
-                	double[] lExtremes = GeoCalc.CentroidToExtremes(event.ruptureStrike, event.ruptureLength, event.longitude, event.latitude, -event.depth);
-                    double[] start = {lExtremes[1],lExtremes[0],lExtremes[2]};
-                    double[] end = {lExtremes[4],lExtremes[3],lExtremes[5]};
-                    double[] current = {pTarget[0],pTarget[1]};
-                    double di = GeoCalc.DistanceFromLine(start, end, current);
-                    d = Math.sqrt(di * di + (event.depth + target.altitude) * (event.depth + target.altitude));
-                     
-                    
-                } else {
-                
-                	d = GeoCalc.Distance3DDegToM(pEvent, pTarget);
-                }
-                
+                // distance to the rupture line if available, to the
+                // hypocenter otherwise
+                double d = new EventContext(event, null).distance(
+                        target.latitude, target.longitude, target.altitude);
+
                 double eta = d / vs - originTimeOffset;
                 remaining = String.format("%d", (int) (eta / 1000.0));
                 distance = String.format("distance: %dkm", (int) (d / 1000.0));
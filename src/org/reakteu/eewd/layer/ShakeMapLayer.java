@@ -8,23 +8,31 @@ import com.bbn.openmap.layer.OMGraphicHandlerLayer;
 import com.bbn.openmap.omGraphics.OMGraphicList;
 import com.bbn.openmap.omGraphics.OMRaster;
 import com.bbn.openmap.omGraphics.OMScalingRaster;
+import com.bbn.openmap.util.PaletteHelper;
 import java.awt.Color;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.Box;
+import javax.swing.ButtonGroup;
+import javax.swing.JPanel;
+import javax.swing.JRadioButton;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.reakteu.eewd.Application;
-import org.reakteu.eewd.data.AmplificationPoint;
-import org.reakteu.eewd.data.POI;
+import org.reakteu.eewd.data.ShakeMapGrid;
 import org.reakteu.eewd.data.Shaking;
 import org.reakteu.eewd.utils.Gradient;
 
@@ -45,28 +53,16 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
     };
     private static final int ColorNaN = new Color(128, 128, 128, 128).getRGB();
 
-    public class Point extends AmplificationPoint {
-
-        public double value = 0.0;
-        public int x;
-        public int y;
-        public POI site;
-
-        public Point(double latitude, double longitude, double altitude,
-                     double amplification) {
-            super(latitude, longitude, altitude, amplification);
-            x = 0;
-            y = 0;
-        }
-    }
-
     private final OMScalingRaster mapRaster;
-    private final List<Point> points;
+    private final ShakeMapGrid grid;
     private final BufferedImage[] mapImages;
     private int currentImage;
-    private final BufferedImage scaleImage;
-    private final Gradient gradient;
-    private final boolean logScale;
+    // ARGB value of the pixel drawn, guarded by this
+    private final int[] pixel = new int[1];
+    private final Map<Shaking.Type, Palette> palettes;
+    private final Set<Shaking.Type> validTypes;
+    private Shaking.Type parameter;
+    private Box paletteBox = null;
 
     private double latNorth;
     private double latSouth;
@@ -75,25 +71,120 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
     private double dLat;
     private double dLon;
 
+    /**
+     * Color gradient and scale image of one shaking parameter. The gradient
+     * is copied to arrays to look up the colors of the grid points without
+     * allocating iterators.
+     */
+    private static class Palette {
+
+        private final double[] positions;
+        private final Color[] colors;
+        private final boolean logScale;
+        private final BufferedImage scaleImage;
+
+        Palette(Gradient gradient, boolean logScale, BufferedImage scaleImage) {
+            this.positions = new double[gradient.size()];
+            this.colors = new Color[gradient.size()];
+            int i = 0;
+            for (Map.Entry<Double, Color> entry : gradient.entrySet()) {
+                positions[i] = entry.getKey();
+                colors[i++] = entry.getValue();
+            }
+            this.logScale = logScale;
+            this.scaleImage = scaleImage;
+        }
+
+        /**
+         * @return color at a position of the gradient, see
+         * {@link Gradient#colorAt(double, boolean)}
+         */
+        int colorAt(double position) {
+            for (int i = 0; i < positions.length; ++i) {
+                if (positions[i] == position) {
+                    return colors[i].getRGB();
+                } else if (positions[i] > position) {
+                    if (i == 0) {
+                        return colors[i].getRGB();
+                    }
+                    return Gradient.blend(colors[i - 1], colors[i],
+                                          (position - positions[i - 1])
+                                          / (positions[i] - positions[i - 1]));
+                }
+            }
+            return positions.length == 0 ? 0
+                   : colors[positions.length - 1].getRGB();
+        }
+    }
+
     public ShakeMapLayer() {
 
-        points = new ArrayList();
+        Application app = Application.getInstance();
+        grid = new ShakeMapGrid(app.getShakeMapParameters());
         // 2 images for double buffering, 1 image for fast reset
         mapImages = new BufferedImage[3];
         currentImage = 0;
 
+        parameter = app.getShakeMapParameter();
+        validTypes = EnumSet.noneOf(Shaking.Type.class);
+        palettes = new EnumMap<>(Shaking.Type.class);
+        for (Shaking.Type type : app.getShakeMapParameters()) {
+            palettes.put(type, createPalette(type));
+        }
+
+        latNorth = 0;
+        latSouth = 0;
+        lonWest = 0;
+        lonEast = 0;
+        dLat = 0;
+        dLon = 0;
+
+        loadGrid();
+
+        mapRaster = new OMScalingRaster(latNorth, lonWest, latSouth, lonEast, mapImages[2]);
+    }
+
+    /**
+     * Creates the palette of a shaking parameter. The value range is read
+     * from the shakeMap.[param].minValue, maxValue and logScale properties.
+     * For the configured shake map parameter shakeMap.minValue, maxValue and
+     * logScale are used as fallback.
+     */
+    private Palette createPalette(Shaking.Type type) {
         Application app = Application.getInstance();
-        gradient = new Gradient();
 
-        double minValue = app.getProperty(Application.PropertySMMinValue, 0.0);
-        double maxValue = app.getProperty(Application.PropertySMMaxValue, 1.0);
-        logScale = app.getProperty(Application.PropertySMLogScale, false);
+        // defaults in display units: g, cm/s or intensity
+        double minValue, maxValue;
+        boolean logScale;
+        if (type == Shaking.Type.PGA || type == Shaking.Type.PSA) {
+            minValue = 0.001;
+            maxValue = 1.0;
+            logScale = true;
+        } else if (type == Shaking.Type.PGV || type == Shaking.Type.DRS) {
+            minValue = 0.01;
+            maxValue = 100.0;
+            logScale = true;
+        } else {
+            minValue = 1.0;
+            maxValue = 10.0;
+            logScale = false;
+        }
+        if (type == app.getShakeMapParameter()) {
+            minValue = app.getProperty(Application.PropertySMMinValue, minValue);
+            maxValue = app.getProperty(Application.PropertySMMaxValue, maxValue);
+            logScale = app.getProperty(Application.PropertySMLogScale, logScale);
+        }
+        String prefix = Application.PropertySM + "." + type.toString();
+        minValue = app.getProperty(prefix + ".minValue", minValue);
+        maxValue = app.getProperty(prefix + ".maxValue", maxValue);
+        logScale = app.getProperty(prefix + ".logScale", logScale);
 
         if (logScale) {
             minValue = minValue > 0 ? Math.log10(minValue) : 0;
             maxValue = maxValue > 0 ? Math.log10(maxValue) : 0;
         }
 
+        Gradient gradient = new Gradient();
         double[] values = new double[GradientColors.length];
         double delta = minValue < maxValue ? (maxValue - minValue) / (GradientColors.length - 1) : 0;
         int i = 0;
@@ -103,22 +194,10 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
             minValue += delta;
         }
 
-        latNorth = 0;
-        latSouth = 0;
-        lonWest = 0;
-        lonEast = 0;
-        dLat = 0;
-        dLon = 0;
-
-        loadGrid();
-
-        mapRaster = new OMScalingRaster(latNorth, lonWest, latSouth, lonEast, mapImages[2]);
-
-        Shaking.Type smParam = app.getShakeMapParameter();
-        String labelText = smParam.labelString();
-        if (smParam == Shaking.Type.PGA || smParam == Shaking.Type.PSA) {
+        String labelText = type.labelString();
+        if (type == Shaking.Type.PGA || type == Shaking.Type.PSA) {
             labelText += ", g";
-        } else if (smParam == Shaking.Type.PGV || smParam == Shaking.Type.DRS) {
+        } else if (type == Shaking.Type.PGV || type == Shaking.Type.DRS) {
             labelText += ", cm/s";
         }
 
@@ -129,7 +208,7 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
         int stepW = (w - 2 * xMargin) / steps;
         w = stepW * steps + 1 + 2 * xMargin;
 
-        scaleImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage scaleImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = scaleImage.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         FontMetrics fm = g.getFontMetrics();
@@ -174,6 +253,8 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
         g.drawLine(x, yTick, x, y2Gradient);
         g.drawLine(xMargin, h - 1, x, h - 1);
         g.dispose();
+
+        return new Palette(gradient, logScale, scaleImage);
     }
 
     private boolean loadGrid() {
@@ -188,7 +269,7 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
             br = new BufferedReader(new FileReader(fileName));
             String line;
             String[] parts;
-            Point p, previous = null;
+            double lat, lon, prevLat = 0, prevLon = 0;
             double diff;
             while ((line = br.readLine()) != null) {
                 parts = line.split(",", 4);
@@ -196,45 +277,47 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
                     continue;
                 }
 
+                double alt, ampli;
                 try {
-                    p = new Point(
-                            Double.parseDouble(parts[1]), // latitude
-                            Double.parseDouble(parts[0]), // longitude
-                            Double.parseDouble(parts[2]), // altitude
-                            Double.parseDouble(parts[3]) // amplification
-                    );
+                    lat = Double.parseDouble(parts[1]);
+                    lon = Double.parseDouble(parts[0]);
+                    alt = Double.parseDouble(parts[2]);
+                    ampli = Double.parseDouble(parts[3]);
                 } catch (NumberFormatException nfe) {
                     continue;
                 }
 
                 // determine boundary and minimum grid resolution
-                if (previous == null) {
-                    latSouth = latNorth = p.latitude;
+                if (grid.isEmpty()) {
+                    latSouth = latNorth = lat;
                 } else {
-                    if (p.longitude != previous.longitude) {
-                        latSouth = Math.min(latSouth, p.latitude);
-                        latNorth = Math.max(latNorth, previous.latitude);
-                        diff = diffLon(previous.longitude, p.longitude);
+                    if (lon != prevLon) {
+                        latSouth = Math.min(latSouth, lat);
+                        latNorth = Math.max(latNorth, prevLat);
+                        diff = diffLon(prevLon, lon);
                         dLon = dLon == 0 ? diff : Math.min(dLon, diff);
                     }
 
-                    diff = Math.abs(p.latitude - previous.latitude);
+                    diff = Math.abs(lat - prevLat);
                     dLat = dLat == 0 ? diff : Math.min(dLat, diff);
                 }
-                points.add(p);
-                previous = p;
+                grid.add(lat, lon, alt, ampli);
+                prevLat = lat;
+                prevLon = lon;
             }
             br.close();
         } catch (IOException ioe) {
             LOG.error(String.format("could not read POI file '%s'", fileName), ioe);
         }
 
-        if (points.isEmpty()) {
+        if (grid.isEmpty()) {
             return false;
         }
 
-        lonWest = points.get(0).longitude;
-        lonEast = points.get(points.size() - 1).longitude;
+        double[] latitudes = grid.getLatitude();
+        double[] longitudes = grid.getLongitude();
+        lonWest = longitudes[0];
+        lonEast = longitudes[grid.size() - 1];
 
         int width = dLon == 0 ? 1 : (int) (diffLon(lonWest, lonEast) / dLat) + 1;
         int height = dLat == 0 ? 1 : (int) ((latNorth - latSouth) / dLon) + 1;
@@ -244,26 +327,33 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
         mapImages[2] = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 
         // map point coordinates to image index
-        for (Iterator<Point> it = points.iterator(); it.hasNext();) {
-            Point p = it.next();
-            p.x = (int) (diffLon(lonWest, p.longitude) / dLon);
-            p.y = (int) ((latNorth - p.latitude) / dLat);
+        int[] xs = grid.getX();
+        int[] ys = grid.getY();
+        for (int i = 0; i < grid.size(); ++i) {
+            int x = (int) (diffLon(lonWest, longitudes[i]) / dLon);
+            int y = (int) ((latNorth - latitudes[i]) / dLat);
 
-            if (p.x < 0 || p.x > width - 1 || p.y < 0 || p.y > height - 1) {
+            if (x < 0 || x > width - 1 || y < 0 || y > height - 1) {
                 LOG.warn(String.format("could not assign image index to "
-                                       + "point (%f/%f), removing", p.latitude,
-                                       p.longitude));
-                it.remove();
+                                       + "point (%f/%f), removing", latitudes[i],
+                                       longitudes[i]));
+                x = y = -1;
             }
+            xs[i] = x;
+            ys[i] = y;
         }
+        grid.compact();
+        grid.orderPasses(app.getProperty(Application.PropertySMProgressiveStep, 1));
 
         LOG.info(String.format("created shake map data structure,\n"
                                + "  points: %d\n"
                                + "  lat(min/max/d): %f/%f/%f\n"
                                + "  lon(min/max/d): %f/%f/%f\n"
-                               + "  img(w/h): %d/%d", points.size(),
+                               + "  img(w/h): %d/%d\n"
+                               + "  passes: %d", grid.size(),
                                latSouth, latNorth, dLat,
-                               lonWest, lonEast, dLon, width, height));
+                               lonWest, lonEast, dLon, width, height,
+                               grid.getPassCount()));
         return true;
     }
 
@@ -271,42 +361,154 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
         return max < min ? max - min + 360 : max - min;
     }
 
-    public List<Point> getPoints() {
-        return points;
+    public ShakeMapGrid getGrid() {
+        return grid;
     }
 
-    public void updateImage(boolean valid) {
+    /**
+     * @return shaking parameter currently displayed
+     */
+    public Shaking.Type getParameter() {
+        return parameter;
+    }
+
+    /**
+     * Switches the displayed shaking parameter. The image is redrawn from the
+     * values of the last computation without recomputing the grid.
+     */
+    public synchronized void setParameter(Shaking.Type type) {
+        if (type == parameter || !palettes.containsKey(type)) {
+            return;
+        }
+        parameter = type;
+        updateImage();
+    }
+
+    /**
+     * @return true if the value of the shaking parameter is displayed with
+     * the first color of the gradient, as all values up to the configured
+     * minimum value
+     */
+    public boolean isMinimumColor(Shaking.Type type, double value) {
+        Palette palette = palettes.get(type);
+        if (palette.logScale) {
+            return value > 0 && Math.log10(value) <= palette.positions[0];
+        }
+        return value <= palette.positions[0];
+    }
+
+    /**
+     * @return RGB value of the color gradient used to display the value of a
+     * shaking parameter in display units
+     */
+    public int getColor(Shaking.Type type, double value) {
+        Palette palette = palettes.get(type);
+        if (palette == null) {
+            return ColorNaN;
+        }
+        return colorAt(palette, value);
+    }
+
+    private static int colorAt(Palette palette, double value) {
+        if (palette.logScale) {
+            return value > 0 && value == value
+                   ? palette.colorAt(Math.log10(value))
+                   : ColorNaN;
+        }
+        return value == value
+               ? palette.colorAt(value)
+               : ColorNaN;
+    }
+
+    /**
+     * Displays the values of the grid points up to and including a refinement
+     * pass. Only the points of the given pass are drawn on top of the image of
+     * the previous pass, each as a square of the pass step size.
+     *
+     * @param pass refinement pass, see {@link ShakeMapGrid#getPassCount()}
+     * @param reset start with an empty image, e.g. for the first pass of a new
+     * computation
+     * @param types shaking parameters computed, nothing is drawn if the
+     * displayed parameter is not among them
+     */
+    public synchronized void updatePass(int pass, boolean reset,
+                                        Set<Shaking.Type> types) {
+        if (!types.contains(parameter)) {
+            return;
+        }
+        BufferedImage prev = mapImages[currentImage];
+        currentImage = 1 - currentImage;
+        BufferedImage img = mapImages[currentImage];
+        img.setData(reset ? mapImages[2].getRaster() : prev.getRaster());
+
+        draw(img, grid.getPassStart(pass), grid.getPassEnd(pass),
+             grid.getPassStep(pass));
+
+        // swap image
+        mapRaster.setImage(img);
+        doPrepare();
+    }
+
+    /**
+     * Displays the result of a completed computation
+     *
+     * @param valid shaking parameters computed successfully, the values of
+     * all other parameters are reset
+     */
+    public synchronized void updateImage(Set<Shaking.Type> valid) {
+        validTypes.clear();
+        validTypes.addAll(valid);
+        for (Shaking.Type type : palettes.keySet()) {
+            if (!validTypes.contains(type)) {
+                Arrays.fill(grid.getValue(type), 0, grid.size(), 0.0f);
+            }
+        }
+        updateImage();
+    }
+
+    private void updateImage() {
         // get next image and reset it
         currentImage = 1 - currentImage;
         BufferedImage img = mapImages[currentImage];
         img.setData(mapImages[2].getRaster());
 
-        if (valid) {
-            int rgb;
-            // assign RGB values
-            if (logScale) {
-                for (Point p : points) {
-                    rgb = p.value > 0 && p.value == p.value
-                          ? gradient.colorAt(Math.log10(p.value), false)
-                          : ColorNaN;
-                    img.setRGB(p.x, p.y, rgb);
-                }
-            } else {
-                for (Point p : points) {
-                    rgb = p.value == p.value
-                          ? gradient.colorAt(p.value, false)
-                          : ColorNaN;
-                    img.setRGB(p.x, p.y, rgb);
-                }
-            }
-        } else {
-            for (Point p : points) {
-                p.value = 0.0;
-            }
+        if (validTypes.contains(parameter)) {
+            draw(img, 0, grid.size(), 1);
         }
 
         // swap image
         mapRaster.setImage(img);
+        doPrepare();
+    }
+
+    /**
+     * Assigns the RGB values of the grid points [from, to) to squares of
+     * step x step pixels starting at the image index of the point. The ARGB
+     * value is written to the raster directly, BufferedImage.setRGB()
+     * allocates a pixel array per call.
+     */
+    private void draw(BufferedImage img, int from, int to, int step) {
+        Palette palette = palettes.get(parameter);
+        float[] values = grid.getValue(parameter);
+        int[] xs = grid.getX();
+        int[] ys = grid.getY();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        WritableRaster raster = img.getRaster();
+        for (int i = from; i < to; ++i) {
+            pixel[0] = colorAt(palette, values[i]);
+            if (step == 1) {
+                raster.setDataElements(xs[i], ys[i], pixel);
+                continue;
+            }
+            int xEnd = Math.min(width, xs[i] + step);
+            int yEnd = Math.min(height, ys[i] + step);
+            for (int y = ys[i]; y < yEnd; ++y) {
+                for (int x = xs[i]; x < xEnd; ++x) {
+                    raster.setDataElements(x, y, pixel);
+                }
+            }
+        }
     }
 
     public synchronized OMGraphicList prepare() {
@@ -324,6 +526,7 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
 
         mapRaster.generate(getProjection());
 
+        BufferedImage scaleImage = palettes.get(parameter).scaleImage;
         OMRaster scaleRaster = new OMRaster(15, getHeight() - scaleImage.getHeight() - 10, scaleImage);
         scaleRaster.generate(getProjection());
 
@@ -333,4 +536,31 @@ public class ShakeMapLayer extends OMGraphicHandlerLayer implements
         return list;
     }
 
+    @Override
+    public java.awt.Component getGUI() {
+        if (paletteBox == null) {
+            paletteBox = Box.createVerticalBox();
+
+            JPanel layerPanel = PaletteHelper.createPaletteJPanel("Shake Map Parameter");
+
+            ActionListener al = new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    setParameter(Shaking.Type.valueOf(e.getActionCommand()));
+                }
+            };
+
+            ButtonGroup group = new ButtonGroup();
+            for (Shaking.Type type : palettes.keySet()) {
+                JRadioButton button = new JRadioButton(type.labelString());
+                button.addActionListener(al);
+                button.setActionCommand(type.name());
+                button.setSelected(type == parameter);
+                group.add(button);
+                layerPanel.add(button);
+            }
+            paletteBox.add(layerPanel);
+        }
+        return paletteBox;
+    }
 }
@@ -29,6 +29,8 @@ import org.apache.logging.log4j.Logger;
 import org.reakteu.eewd.Application;
 import org.reakteu.eewd.data.EventData;
 import org.reakteu.eewd.data.EventTimeListener;
+import org.reakteu.eewd.data.Shaking;
+import org.reakteu.eewd.data.ShakingCalculator;
 
 /**
  *
@@ -42,10 +44,12 @@ public class StationLayer extends OMGraphicHandlerLayer
     public static final String ShowNamesProperty = "showNames";
 
     protected final Map<String, POI> stations;
+    protected final ShakeMapLayer shakeMap;
 
     protected boolean drawTriggered = false;
     protected boolean showingInfoLine = false;
     protected boolean showNames = false;
+    protected boolean showShaking = false;
 
     protected double size;
     protected int[] xs = new int[]{0, 0, 0};
@@ -54,12 +58,20 @@ public class StationLayer extends OMGraphicHandlerLayer
     protected Box paletteBox = null;
     protected JCheckBox showNamesButton = null;
 
-    public StationLayer(Map<String, POI> stations) {
+    /**
+     * @param stations stations to display
+     * @param shakeMap provides the parameter and color gradient used to
+     * display the shaking of the stations, may be null
+     */
+    public StationLayer(Map<String, POI> stations, ShakeMapLayer shakeMap) {
         Application app = Application.getInstance();
         this.stations = stations;
+        this.shakeMap = shakeMap;
         setSize(8);
 
         showNames = app.getProperty(Application.PropertyShowStationName, false);
+        showShaking = shakeMap != null
+                      && app.getProperty(Application.PropertyShowStationShaking, false);
         //setProjectionChangePolicy(new com.bbn.openmap.layer.policy.NullProjectionChangePolicy());
     }
 
@@ -89,11 +101,20 @@ public class StationLayer extends OMGraphicHandlerLayer
         OMPoly poly;
         OMText text;
         Font f = java.awt.Font.decode("SansSerif Bold");
+        Shaking.Type type = showShaking ? shakeMap.getParameter() : null;
 
         for (POI station : stations.values()) {
             poly = new OMPoly(station.latitude, station.longitude,
                               xs, ys, COORDMODE_ORIGIN);
             poly.setFillPaint(Color.ORANGE);
+            if (type != null) {
+                // color of the displayed shake map parameter
+                Shaking s = station.shakingValues.get(type);
+                if (s != null) {
+                    poly.setFillPaint(new Color(shakeMap.getColor(
+                            type, s.expectedSI * ShakingCalculator.displayScale(type)), true));
+                }
+            }
             poly.setAppObject(station);
             if (drawTriggered && station.triggered) {
                 poly.setLinePaint(Color.RED);
@@ -4,15 +4,18 @@
  */
 package org.reakteu.eewd.utils;
 
-import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
-import org.apache.commons.math3.geometry.euclidean.twod.Segment;
-import org.apache.commons.math3.geometry.euclidean.twod.Line;
-
-
 /**
  * Provides conversion and distance calculations on geodetic and Cartesian
  * coordinates
  *
+ * The source to site distances are computed in a plane in which the latitude
+ * and longitude differences are scaled by the length of one degree at the
+ * source, see {@link #DegreeScale}. The primitive kernels take this scale as
+ * argument so that it is computed once per source instead of once per point,
+ * and they do not allocate any objects. They follow the operations of the
+ * array based functions and agree with them within a relative tolerance of
+ * 1e-12, in practice the results are identical.
+ *
  * @author Stephan Herrnkind herrnkind at gempa dot de
  */
 public class GeoCalc {
@@ -145,33 +148,101 @@ public class GeoCalc {
      * @return distance in m
      */
     public static double Distance3DDegToM(double[] a, double[] b) {
-    	double scale = GeoCalc.Haversine (a[0], a[1], a[0]+0.7071, a[1]+0.7071);
-    	double dlon = b[1] - a[1];
-    	double dlat = b[0] - a[0];
-    	double dz = b[2] - a[2];
-    	double hdist = Math.sqrt(dlon * dlon + dlat * dlat) * scale; //m
-    	double dist = Math.sqrt(hdist * hdist + dz * dz); //m
-    	return dist;
-    	
+        return Distance3DDegToM(a[0], a[1], a[2], b[0], b[1], b[2],
+                                DegreeScale(a[0], a[1]));
     }
-        
-    /** Carlo Cauzzi 09.03.2020 
+
+    /**
+     * Calculates the distance between two points using the length of one
+     * degree at the first point
+     *
+     * @param lat1 latitude of first point (degree)
+     * @param lon1 longitude of first point (degree)
+     * @param z1 elevation of first point (meter)
+     * @param lat2 latitude of second point (degree)
+     * @param lon2 longitude of second point (degree)
+     * @param z2 elevation of second point (meter)
+     * @param scale length of one degree at the first point (meter), see
+     * {@link #DegreeScale}
+     * @return distance in m
+     */
+    public static double Distance3DDegToM(double lat1, double lon1, double z1,
+                                          double lat2, double lon2, double z2,
+                                          double scale) {
+        double dlon = lon2 - lon1;
+        double dlat = lat2 - lat1;
+        double dz = z2 - z1;
+        double hdist = Math.sqrt(dlon * dlon + dlat * dlat) * scale;
+        return Math.sqrt(hdist * hdist + dz * dz);
+    }
+
+    /** Carlo Cauzzi 09.03.2020
      * Calculates distance from point c to line segment defined by two extreme points a and b
      * @param start fist point of the segment
      * @param end second point of the segment
      * @param current target point
      * @return distance in m
      */
-    public static double DistanceFromLine(double[] start, double[] end, double[] current)  {
-    	double scale = GeoCalc.Haversine (start[0], start[1], start[0]+0.7071, start[1]+0.7071);
-    	Vector2D a  = new Vector2D(start[0],start[1]);
-    	Vector2D b  = new Vector2D(end[0],end[1]);
-    	Vector2D c  = new Vector2D(current[0],current[1]);
-    	Segment segment = new Segment(a, b, new Line(a, b, 1.0e-10));
-    	double d = segment.distance(c);
-    	return d * scale;
+    public static double DistanceFromLine(double[] start, double[] end, double[] current) {
+        return DistanceFromSegmentDeg(start[0], start[1], end[0], end[1],
+                                      current[0], current[1])
+               * DegreeScale(start[0], start[1]);
     }
-    
+
+    /**
+     * Calculates the distance of a point to a line segment in degree. Follows
+     * the operations of the commons-math Segment.distance() without
+     * allocating temporary vectors.
+     *
+     * @param startLat latitude of the segment start (degree)
+     * @param startLon longitude of the segment start (degree)
+     * @param endLat latitude of the segment end (degree)
+     * @param endLon longitude of the segment end (degree)
+     * @param lat latitude of the point (degree)
+     * @param lon longitude of the point (degree)
+     * @return distance in degree, multiply by {@link #DegreeScale} of the
+     * segment start to obtain meter
+     */
+    public static double DistanceFromSegmentDeg(double startLat, double startLon,
+                                                double endLat, double endLon,
+                                                double lat, double lon) {
+        double dLat = endLat - startLat;
+        double dLon = endLon - startLon;
+        double r = ((lat - startLat) * dLat + (lon - startLon) * dLon)
+                   / (dLat * dLat + dLon * dLon);
+
+        double x, y;
+        // point is not on the segment, return the shortest distance to the
+        // end points
+        if (r < 0 || r > 1) {
+            x = lat - startLat;
+            y = lon - startLon;
+            double dist1 = Math.sqrt(x * x + y * y);
+            x = lat - endLat;
+            y = lon - endLon;
+            double dist2 = Math.sqrt(x * x + y * y);
+            return Math.min(dist1, dist2);
+        }
+
+        // distance to the projection on the segment
+        x = lat - (startLat + r * dLat);
+        y = lon - (startLon + r * dLon);
+        return Math.sqrt(x * x + y * y);
+    }
+
+    /**
+     * Calculates the length of one degree at a location as used by the
+     * distance functions, i.e. the Haversine distance to the point shifted by
+     * 0.7071 degree in latitude and longitude
+     *
+     * @param lat latitude (degree)
+     * @param lon longitude (degree)
+     * @return length in m
+     */
+    public static double DegreeScale(double lat, double lon) {
+        return Haversine(lat, lon, lat + 0.7071, lon + 0.7071);
+    }
+
     /** Carlo 10.03.2020
      * Haversine formula 
      * @param lat1 latitude of first point